@@ -0,0 +1,167 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang.SerializationUtils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * <p>
+ *   Binary safe, reversible encoding of keys into memcache keys, used by {@link KeyMarshallers#BASE64_SERIALIZE}.
+ * </p>
+ * <p>
+ *   The first character of an encoded key denotes its type. Strings are stored as the url safe base64
+ *   encoding of their utf-8 bytes, integers and longs in decimal and all other keys as the url safe base64
+ *   encoding of their java serialization. Encodings which exceed the key limit of memcache are replaced
+ *   by the {@link Murmur3} hash of their bytes and can't be decoded anymore.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class Base64Keys {
+
+    private static final int MAX_KEY_LENGTH = 250;
+
+    private static final char STRING = 's';
+    private static final char INTEGER = 'i';
+    private static final char LONG = 'l';
+    private static final char SERIALIZED = 'o';
+    private static final char HASHED = 'h';
+
+    private static final char[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        Arrays.fill(VALUES, -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = i;
+        }
+    }
+
+    private Base64Keys() {
+
+    }
+
+    static String encode(Serializable key) {
+        Preconditions.checkNotNull(key, "Key");
+        if (key instanceof String) {
+            return encode(STRING, String.class.cast(key).getBytes(Charsets.UTF_8));
+        } else if (key instanceof Integer) {
+            return INTEGER + key.toString();
+        } else if (key instanceof Long) {
+            return LONG + key.toString();
+        } else {
+            return encode(SERIALIZED, SerializationUtils.serialize(key));
+        }
+    }
+
+    private static String encode(char type, byte[] data) {
+        // every 3 bytes become 4 characters, the last group is not padded
+        if (1 + (data.length * 4 + 2) / 3 <= MAX_KEY_LENGTH) {
+            return toBase64(type, data);
+        } else {
+            final byte[] typed = new byte[data.length + 1];
+            typed[0] = (byte) type;
+            System.arraycopy(data, 0, typed, 1, data.length);
+            return HASHED + Murmur3.hash128Hex(typed, 0);
+        }
+    }
+
+    /**
+     * Decodes the given memcache key.
+     *
+     * @param encoded the memcache key
+     * @return the original key or null if the key was hashed
+     * @throws IllegalArgumentException if encoded is no valid key of this encoding
+     */
+    static Serializable decode(String encoded) {
+        Preconditions.checkArgument(encoded.length() > 0, "Empty key");
+        final String body = encoded.substring(1);
+        switch (encoded.charAt(0)) {
+            case STRING: {
+                return new String(fromBase64(body), Charsets.UTF_8);
+            }
+            case INTEGER: {
+                return Integer.valueOf(body);
+            }
+            case LONG: {
+                return Long.valueOf(body);
+            }
+            case SERIALIZED: {
+                return Serializable.class.cast(SerializationUtils.deserialize(fromBase64(body)));
+            }
+            case HASHED: {
+                return null;
+            }
+            default: {
+                throw new IllegalArgumentException("Unknown key type: " + encoded);
+            }
+        }
+    }
+
+    private static String toBase64(char type, byte[] data) {
+        final char[] chars = new char[1 + (data.length * 4 + 2) / 3];
+        chars[0] = type;
+        int c = 1;
+        int i = 0;
+        for (; i + 2 < data.length; i += 3) {
+            final int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            chars[c++] = ALPHABET[bits >>> 18];
+            chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+            chars[c++] = ALPHABET[(bits >>> 6) & 0x3F];
+            chars[c++] = ALPHABET[bits & 0x3F];
+        }
+        final int remaining = data.length - i;
+        if (remaining > 0) {
+            final int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+            chars[c++] = ALPHABET[bits >>> 18];
+            chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+            if (remaining == 2) {
+                chars[c] = ALPHABET[(bits >>> 6) & 0x3F];
+            }
+        }
+        return new String(chars);
+    }
+
+    private static byte[] fromBase64(String encoded) {
+        final int length = encoded.length();
+        Preconditions.checkArgument(length % 4 != 1, "Invalid base64 length: %s", length);
+        final byte[] data = new byte[length * 3 / 4];
+        int bits = 0;
+        int count = 0;
+        int d = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = encoded.charAt(i);
+            final int value = c < VALUES.length ? VALUES[c] : -1;
+            Preconditions.checkArgument(value >= 0, "Invalid base64 character: %s", c);
+            bits = bits << 6 | value;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                data[d++] = (byte) (bits >>> count);
+            }
+        }
+        return data;
+    }
+
+}
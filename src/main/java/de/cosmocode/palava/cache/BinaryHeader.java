@@ -0,0 +1,91 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.apache.commons.lang.SerializationUtils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The compact {@link MetaValue} header of the binary marshallers.
+ *
+ * @since 1.0
+ */
+final class BinaryHeader {
+
+    private BinaryHeader() {
+
+    }
+
+    /**
+     * Writes the metadata of the given input, if it is a meta value.
+     *
+     * @param input the input of the marshaller
+     * @param output the output to write to
+     * @return the actual value that has to be written after the header
+     * @throws IOException if writing fails
+     */
+    static Object write(Object input, DataOutput output) throws IOException {
+        if (input instanceof MetaValue) {
+            final MetaValue metaValue = MetaValue.class.cast(input);
+            output.writeBoolean(true);
+            final byte[] key = SerializationUtils.serialize(metaValue.getKey());
+            output.writeInt(key.length);
+            output.write(key);
+            output.writeLong(metaValue.getIdleTimeInSeconds());
+            output.writeLong(metaValue.getLifeTimeInSeconds());
+            if (metaValue.getIdleTimeInSeconds() > 0) {
+                output.writeLong(metaValue.getStoredAt().getTime());
+                output.writeLong(metaValue.getLastAccessedAt().getTime());
+            }
+            return metaValue.getValue();
+        } else {
+            output.writeBoolean(false);
+            return input;
+        }
+    }
+
+    /**
+     * Reads the metadata written by {@link #write(Object, DataOutput)}.
+     *
+     * @param input the input to read from
+     * @return a meta value without value or null if no metadata was written
+     * @throws IOException if reading fails
+     */
+    static MetaValue read(DataInput input) throws IOException {
+        if (!input.readBoolean()) {
+            return null;
+        }
+
+        final MetaValue metaValue = new MetaValue();
+        final byte[] key = new byte[input.readInt()];
+        input.readFully(key);
+        metaValue.setKey(Serializable.class.cast(SerializationUtils.deserialize(key)));
+        metaValue.setIdleTimeInSeconds(input.readLong());
+        metaValue.setLifeTimeInSeconds(input.readLong());
+        if (metaValue.getIdleTimeInSeconds() > 0) {
+            metaValue.setStoredAt(new Date(input.readLong()));
+            metaValue.setLastAccessedAt(new Date(input.readLong()));
+        }
+        return metaValue;
+    }
+
+}
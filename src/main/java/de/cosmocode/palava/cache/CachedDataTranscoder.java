@@ -0,0 +1,52 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/**
+ * Transcoder that passes the raw {@link CachedData} through, for operations
+ * that don't need to decode the stored values.
+ *
+ * @since 1.0
+ */
+enum CachedDataTranscoder implements Transcoder<CachedData> {
+
+    INSTANCE;
+
+    @Override
+    public boolean asyncDecode(CachedData cachedData) {
+        return false;
+    }
+
+    @Override
+    public CachedData encode(CachedData o) {
+        return o;
+    }
+
+    @Override
+    public CachedData decode(CachedData cachedData) {
+        return cachedData;
+    }
+
+    @Override
+    public int getMaxSize() {
+        return CachedData.MAX_SIZE;
+    }
+
+}
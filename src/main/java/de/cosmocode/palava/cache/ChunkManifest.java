@@ -0,0 +1,139 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The entry stored under the key of a value that was split into several chunks.
+ * It describes where the chunks are stored and how their concatenation has to be decoded.
+ *
+ * @since 1.0
+ */
+final class ChunkManifest {
+
+    private final String generation;
+    private final int chunks;
+    private final long length;
+    private final int flags;
+    private final long accessedAt;
+
+    ChunkManifest(String generation, int chunks, long length, int flags) {
+        this(generation, chunks, length, flags, 0L);
+    }
+
+    private ChunkManifest(String generation, int chunks, long length, int flags, long accessedAt) {
+        this.generation = generation;
+        this.chunks = chunks;
+        this.length = length;
+        this.flags = flags;
+        this.accessedAt = accessedAt;
+    }
+
+    /**
+     * The unique generation of the chunks, which is part of their keys,
+     * so that concurrent writes never mix their chunks.
+     *
+     * @return the generation
+     */
+    public String getGeneration() {
+        return generation;
+    }
+
+    public int getChunks() {
+        return chunks;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * The transcoder flags of the concatenated payload.
+     *
+     * @return the payload flags
+     */
+    public int getFlags() {
+        return flags;
+    }
+
+    /**
+     * The time the chunked value was last accessed, which supersedes the access time stored
+     * in the chunks, so that idle based values are touched without rewriting them.
+     *
+     * @return the access time in milliseconds or 0 if the value was never touched
+     */
+    public long getAccessedAt() {
+        return accessedAt;
+    }
+
+    /**
+     * Creates a manifest of the same chunks, accessed at the given time.
+     *
+     * @param time the access time in milliseconds
+     * @return the touched manifest
+     */
+    ChunkManifest touch(long time) {
+        return new ChunkManifest(generation, chunks, length, flags, time);
+    }
+
+    byte[] encode() {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        final DataOutputStream dataStream = new DataOutputStream(byteStream);
+        try {
+            dataStream.writeUTF(generation);
+            dataStream.writeInt(chunks);
+            dataStream.writeLong(length);
+            dataStream.writeInt(flags);
+            dataStream.writeLong(accessedAt);
+            dataStream.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return byteStream.toByteArray();
+    }
+
+    static ChunkManifest decode(byte[] data) {
+        final DataInputStream dataStream = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            final String generation = dataStream.readUTF();
+            final int chunks = dataStream.readInt();
+            final long length = dataStream.readLong();
+            final int flags = dataStream.readInt();
+            final long accessedAt = dataStream.readLong();
+            return new ChunkManifest(generation, chunks, length, flags, accessedAt);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkManifest{" +
+                "generation='" + generation + '\'' +
+                ", chunks=" + chunks +
+                ", length=" + length +
+                ", flags=" + flags +
+                ", accessedAt=" + accessedAt +
+                '}';
+    }
+
+}
@@ -0,0 +1,465 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * <p>
+ *   Stores values of one cache region in memcache, splitting payloads that exceed the chunk size
+ *   into several chunk items plus a {@link ChunkManifest} under the original key.
+ * </p>
+ * <p>
+ *   Payloads are streamed through the marshaller directly into the chunks and read back
+ *   with one multi-get, so a large value is never held in memory twice.
+ * </p>
+ * <p>
+ *   Unless the {@link OversizePolicy} is {@link OversizePolicy#CHUNK}, payloads are buffered instead
+ *   and payloads exceeding the chunk size are handled according to the policy.
+ *   The sizes of all stored payloads are accounted in the {@link ValueSizeStats}, once per write,
+ *   except for the rewrites of {@link #touch(String, int, MetaValue)}.
+ * </p>
+ * <p>
+ *   If {@link SlabShaping} is enabled, every written item except for touches is related to the slab classes
+ *   of memcached using the {@link SlabStats}, and in {@link SlabShaping#COMPACT} mode single item payloads are
+ *   compressed if that moves them into a smaller slab class.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class ChunkedValues {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ChunkedValues.class);
+
+    private static final Random RANDOM = new Random();
+
+    // payloads this small rarely shrink when compressed
+    private static final int MIN_COMPACT_LENGTH = 256;
+
+    private static final int NOT_COMPACTABLE = MarshallerTranscoder.FLAG_COMPRESSED |
+        MarshallerTranscoder.FLAG_ABSENT | MarshallerTranscoder.FLAG_CHUNKED;
+
+    private final Provider<MemcachedClientIF> currentClient;
+    private final MarshallerTranscoder transcoder;
+    private final int chunkSize;
+    private final OversizePolicy policy;
+    private final ValueSizeStats stats;
+    private final LocalValues localValues;
+    private final SlabShaping shaping;
+    private final SlabStats slabStats;
+    private final OperationGuard guard;
+
+    ChunkedValues(Provider<MemcachedClientIF> currentClient, MarshallerTranscoder transcoder, int chunkSize) {
+        this(currentClient, transcoder, chunkSize, OversizePolicy.CHUNK, new ValueSizeStats(), null,
+            SlabShaping.NONE, null, new OperationGuard("chunks"));
+    }
+
+    /**
+     * Creates a new store of values.
+     *
+     * @param currentClient the memcache client provider
+     * @param transcoder the value transcoder
+     * @param chunkSize the maximum size of a payload stored as a single item
+     * @param policy the handling of larger payloads
+     * @param stats the accounting of the stored payload sizes
+     * @param localValues the local store of oversized values, required by {@link OversizePolicy#LOCAL_ONLY}
+     * @param shaping how items are related to the slab classes of memcached
+     * @param slabStats the accounting of the slab classes, required unless shaping is {@link SlabShaping#NONE}
+     * @param guard the guard of the chunk reads and writes
+     */
+    ChunkedValues(Provider<MemcachedClientIF> currentClient, MarshallerTranscoder transcoder, int chunkSize,
+        OversizePolicy policy, ValueSizeStats stats, @Nullable LocalValues localValues,
+        SlabShaping shaping, @Nullable SlabStats slabStats, OperationGuard guard) {
+        Preconditions.checkArgument(chunkSize > 0 && chunkSize <= MemcacheCacheRegion.MAX_CHUNK_SIZE,
+            "Chunk size must be between 1 and %s", MemcacheCacheRegion.MAX_CHUNK_SIZE);
+        Preconditions.checkArgument(policy != OversizePolicy.LOCAL_ONLY || localValues != null,
+            "LocalValues required by %s", policy);
+        Preconditions.checkArgument(shaping == SlabShaping.NONE || slabStats != null,
+            "SlabStats required by %s", shaping);
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+        this.transcoder = Preconditions.checkNotNull(transcoder, "Transcoder");
+        this.chunkSize = chunkSize;
+        this.policy = Preconditions.checkNotNull(policy, "Policy");
+        this.stats = Preconditions.checkNotNull(stats, "Stats");
+        this.localValues = localValues;
+        this.shaping = Preconditions.checkNotNull(shaping, "Shaping");
+        this.slabStats = slabStats;
+        this.guard = Preconditions.checkNotNull(guard, "Guard");
+    }
+
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Stores the given value under the given key, chunked if necessary.
+     *
+     * @param encodedKey the memcache key
+     * @param timeout the memcache expiration
+     * @param value the value to store
+     * @return the future of the set of the value or of its manifest, or of the removal
+     *         of the previous value if the value was rejected, see {@link #isRejected(Future)}
+     */
+    Future<Boolean> store(String encodedKey, int timeout, MetaValue value) {
+        return store(encodedKey, timeout, value, true);
+    }
+
+    /**
+     * Touches a value by storing it again with its new access time and expiration,
+     * without accounting it as another write.
+     *
+     * @param encodedKey the memcache key
+     * @param timeout the new memcache expiration
+     * @param value the touched value
+     * @return the future of the set, see {@link #store(String, int, MetaValue)}
+     */
+    Future<Boolean> touch(String encodedKey, int timeout, MetaValue value) {
+        return store(encodedKey, timeout, value, false);
+    }
+
+    private Future<Boolean> store(String encodedKey, int timeout, MetaValue value, boolean accounted) {
+        if (policy != OversizePolicy.CHUNK) {
+            return storeBuffered(encodedKey, timeout, value, accounted);
+        }
+
+        final MemcachedClientIF client = currentClient.get();
+        final int flags = transcoder.flagsOf(value);
+        final ChunkOutputStream output = new ChunkOutputStream(client, encodedKey, timeout, accounted);
+
+        try {
+            transcoder.writePayload(value, output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (accounted) {
+            stats.record(output.length);
+        }
+        if (output.chunks == 0) {
+            return setItem(client, encodedKey, timeout, flags, output.current.toByteArray(), accounted);
+        } else {
+            output.flushChunk();
+            output.awaitChunks();
+            final ChunkManifest manifest = new ChunkManifest(output.generation, output.chunks, output.length, flags);
+            LOG.debug("Stored {} bytes for key '{}' in {}", new Object[] {output.length, encodedKey, manifest});
+            return setItem(client, encodedKey, timeout, MarshallerTranscoder.FLAG_CHUNKED, manifest.encode(),
+                accounted);
+        }
+    }
+
+    /**
+     * Touches a chunked value by re-setting its manifest with the given access time and expiration.
+     * The chunks are left as they are, they never expire before the manifest,
+     * because the expiration of idle based values only ever shrinks.
+     *
+     * @param encodedKey the memcache key of the manifest
+     * @param timeout the new memcache expiration
+     * @param manifest the manifest as read from memcache
+     * @param accessedAt the access time in milliseconds
+     * @return the future of the set of the manifest
+     */
+    Future<Boolean> touch(String encodedKey, int timeout, ChunkManifest manifest, long accessedAt) {
+        return setItem(currentClient.get(), encodedKey, timeout, MarshallerTranscoder.FLAG_CHUNKED,
+            manifest.touch(accessedAt).encode(), false);
+    }
+
+    /**
+     * Checks whether the given result of {@link #store(String, int, MetaValue)} belongs to a value
+     * that was neither stored in memcache nor kept locally.
+     *
+     * @param future the result of a store
+     * @return true if the value was rejected
+     */
+    static boolean isRejected(Future<Boolean> future) {
+        return future instanceof Rejection;
+    }
+
+    private Future<Boolean> storeBuffered(String encodedKey, int timeout, MetaValue value, boolean accounted) {
+        final MemcachedClientIF client = currentClient.get();
+        int flags = transcoder.flagsOf(value);
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] payload;
+        try {
+            transcoder.writePayload(value, buffer);
+            payload = buffer.toByteArray();
+            if (payload.length > chunkSize && policy == OversizePolicy.COMPRESS &&
+                (flags & MarshallerTranscoder.FLAG_COMPRESSED) == 0) {
+                payload = compress(payload);
+                flags |= MarshallerTranscoder.FLAG_COMPRESSED;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        if (localValues != null) {
+            localValues.invalidate(encodedKey);
+        }
+        if (payload.length <= chunkSize) {
+            if (accounted) {
+                stats.record(payload.length);
+            }
+            return setItem(client, encodedKey, timeout, flags, payload, accounted);
+        }
+
+        if (accounted) {
+            stats.recordRejected();
+        }
+        // never leave the previous value readable
+        final Future<Boolean> deletion = client.delete(encodedKey);
+        if (policy == OversizePolicy.LOCAL_ONLY) {
+            LOG.debug("Keeping {} bytes for key '{}' locally", payload.length, encodedKey);
+            localValues.put(encodedKey, value, timeout);
+            return deletion;
+        } else {
+            LOG.warn("Rejected {} bytes for key '{}', exceeding the chunk size of {}",
+                new Object[] {payload.length, encodedKey, chunkSize});
+            return new Rejection(deletion);
+        }
+    }
+
+    /**
+     * Writes a single item, compacting its payload first if enabled and worth it.
+     *
+     * @param client the memcache client
+     * @param key the key of the item
+     * @param timeout the memcache expiration
+     * @param flags the flags of the payload
+     * @param payload the payload
+     * @param accounted whether the item is accounted in the slab statistics, false for touches
+     * @return the future of the set
+     */
+    private Future<Boolean> setItem(MemcachedClientIF client, String key, int timeout, int flags, byte[] payload,
+        boolean accounted) {
+        int itemFlags = flags;
+        byte[] itemPayload = payload;
+        if (shaping != SlabShaping.NONE) {
+            int itemSize = SlabClasses.itemSize(key, flags, payload.length);
+            if (shaping == SlabShaping.COMPACT && (flags & NOT_COMPACTABLE) == 0 &&
+                payload.length >= MIN_COMPACT_LENGTH) {
+                final byte[] compressed;
+                try {
+                    compressed = compress(payload);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                final int compressedFlags = flags | MarshallerTranscoder.FLAG_COMPRESSED;
+                final int compressedSize = SlabClasses.itemSize(key, compressedFlags, compressed.length);
+                if (chunkSizeOf(compressedSize) < chunkSizeOf(itemSize)) {
+                    LOG.trace("Compacted '{}' from {} to {} bytes", new Object[] {key, itemSize, compressedSize});
+                    itemFlags = compressedFlags;
+                    itemPayload = compressed;
+                    itemSize = compressedSize;
+                }
+            }
+            if (accounted) {
+                slabStats.record(itemSize);
+            }
+        }
+        final CachedData cachedData = new CachedData(itemFlags, itemPayload, transcoder.getMaxSize());
+        return client.set(key, timeout, cachedData, CachedDataTranscoder.INSTANCE);
+    }
+
+    private long chunkSizeOf(int itemSize) {
+        final SlabClasses slabClasses = slabStats.getSlabClasses();
+        final int slabClass = slabClasses.classOf(itemSize);
+        return slabClass < 0 ? Long.MAX_VALUE : slabClasses.getChunkSize(slabClass);
+    }
+
+    private byte[] compress(byte[] payload) throws IOException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(payload.length / 2);
+        final GZIPOutputStream gzipStream = new GZIPOutputStream(compressed);
+        gzipStream.write(payload);
+        gzipStream.finish();
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Reads the value described by the given manifest.
+     *
+     * @param encodedKey the memcache key of the manifest
+     * @param manifest the manifest
+     * @return the decoded value or null if any chunk is missing
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    Object read(String encodedKey, ChunkManifest manifest) {
+        final List<String> keys = Lists.newArrayListWithCapacity(manifest.getChunks());
+        for (int i = 0; i < manifest.getChunks(); i++) {
+            keys.add(chunkKey(encodedKey, manifest.getGeneration(), i));
+        }
+
+        final String operation = "getBulk of the chunks of " + encodedKey;
+        guard.permit(operation);
+        final Map<String, CachedData> chunks = guard.await(operation,
+            currentClient.get().asyncGetBulk(keys, CachedDataTranscoder.INSTANCE));
+        final List<InputStream> streams = Lists.newArrayListWithCapacity(keys.size());
+        for (String key : keys) {
+            final CachedData chunk = chunks.get(key);
+            if (chunk == null) {
+                LOG.debug("Chunk {} of key '{}' has been evicted", key, encodedKey);
+                return null;
+            }
+            streams.add(new ByteArrayInputStream(chunk.getData()));
+        }
+
+        try {
+            return transcoder.readPayload(manifest.getFlags(),
+                new SequenceInputStream(Collections.enumeration(streams)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String chunkKey(String encodedKey, String generation, int index) {
+        // hashed, so that the suffix never pushes a key over the 250 character limit
+        return "chunk." + DigestUtils.shaHex(encodedKey) + "." + generation + "." + index;
+    }
+
+    /**
+     * The removal of the previous value of a rejected value.
+     */
+    private static final class Rejection implements Future<Boolean> {
+
+        private final Future<Boolean> deletion;
+
+        Rejection(Future<Boolean> deletion) {
+            this.deletion = deletion;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return deletion.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return deletion.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return deletion.isDone();
+        }
+
+        @Override
+        public Boolean get() throws InterruptedException, ExecutionException {
+            return deletion.get();
+        }
+
+        @Override
+        public Boolean get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            return deletion.get(timeout, unit);
+        }
+
+    }
+
+    /**
+     * Output stream that buffers at most one chunk and stores full chunks asynchronously,
+     * but only once the payload turns out to be larger than one chunk.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        private final MemcachedClientIF client;
+        private final String encodedKey;
+        private final int timeout;
+        private final boolean accounted;
+        private final String generation = Long.toHexString(RANDOM.nextLong());
+        private final List<Future<Boolean>> pending = Lists.newArrayList();
+
+        private ByteArrayOutputStream current = new ByteArrayOutputStream();
+        private int chunks;
+        private long length;
+
+        ChunkOutputStream(MemcachedClientIF client, String encodedKey, int timeout, boolean accounted) {
+            this.client = client;
+            this.encodedKey = encodedKey;
+            this.timeout = timeout;
+            this.accounted = accounted;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) {
+            int position = offset;
+            int remaining = count;
+            while (remaining > 0) {
+                if (current.size() == chunkSize) {
+                    flushChunk();
+                }
+                final int part = Math.min(remaining, chunkSize - current.size());
+                current.write(bytes, position, part);
+                position += part;
+                remaining -= part;
+                length += part;
+            }
+        }
+
+        private void flushChunk() {
+            if (current.size() == 0) {
+                return;
+            }
+            final String key = chunkKey(encodedKey, generation, chunks);
+            final byte[] chunk = current.toByteArray();
+            if (shaping != SlabShaping.NONE && accounted) {
+                // chunks are fragments of one payload, so they can't be compacted individually
+                slabStats.record(SlabClasses.itemSize(key, 0, chunk.length));
+            }
+            pending.add(client.set(key, timeout, new CachedData(0, chunk, transcoder.getMaxSize()),
+                CachedDataTranscoder.INSTANCE));
+            chunks++;
+            current = new ByteArrayOutputStream(chunkSize);
+        }
+
+        private void awaitChunks() {
+            for (Future<Boolean> future : pending) {
+                if (!guard.await("set of a chunk of " + encodedKey, future).booleanValue()) {
+                    throw new MemcacheUnavailableException("Unable to store chunk of " + encodedKey);
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   Circuit breaker of the memcache reads of one region.
+ * </p>
+ * <p>
+ *   The circuit opens after the given number of consecutive failed or slow operations. While it is open,
+ *   no operations are sent to memcache. After the open time passed, a single probe operation is let through:
+ *   if it succeeds the circuit closes again, otherwise it stays open for another open time.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class CircuitBreaker {
+
+    /**
+     * The states of a circuit breaker.
+     */
+    enum State {
+
+        CLOSED,
+
+        OPEN,
+
+        HALF_OPEN;
+
+    }
+
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+
+    CircuitBreaker(int failureThreshold, long slowCallMillis, long openMillis) {
+        Preconditions.checkArgument(failureThreshold > 0, "FailureThreshold must be positive");
+        Preconditions.checkArgument(slowCallMillis > 0, "SlowCallMillis must be positive");
+        Preconditions.checkArgument(openMillis > 0, "OpenMillis must be positive");
+        this.failureThreshold = failureThreshold;
+        this.slowCallNanos = TimeUnit.MILLISECONDS.toNanos(slowCallMillis);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Checks whether an operation may be sent to memcache. Every permitted operation
+     * has to be followed by a call to {@link #recordSuccess(long)} or {@link #recordFailure()}.
+     *
+     * @return true if the operation may be sent, false if it has to be treated as failed right away
+     */
+    synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                // let one probe through, all others keep failing fast until it returns
+                state = State.HALF_OPEN;
+                openedAt = System.currentTimeMillis();
+                return true;
+            case HALF_OPEN:
+                // a probe which never reported back must not keep the circuit half open forever
+                if (System.currentTimeMillis() - openedAt < openMillis) {
+                    return false;
+                }
+                openedAt = System.currentTimeMillis();
+                return true;
+            default:
+                throw new AssertionError("Unknown state " + state);
+        }
+    }
+
+    /**
+     * Records a completed operation. Operations that took longer than the slow call threshold count as failures.
+     *
+     * @param elapsedNanos the duration of the operation
+     */
+    synchronized void recordSuccess(long elapsedNanos) {
+        if (elapsedNanos > slowCallNanos) {
+            recordFailure();
+        } else {
+            failures = 0;
+            state = State.CLOSED;
+        }
+    }
+
+    /**
+     * Records a failed or timed out operation.
+     */
+    synchronized void recordFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * <p>
+ *   The value codecs a region can write its values with.
+ * </p>
+ * <p>
+ *   The codec of every value is stored in the memcache flags of the value, so values written with
+ *   any codec can be read, as long as its marshaller is available. This allows a region to switch
+ *   its codec without flushing memcache.
+ * </p>
+ *
+ * @since 1.0
+ */
+public enum Codec {
+
+    /**
+     * Textual JSON, see {@link JacksonMarshaller}. Values stored before codecs existed use this codec.
+     */
+    JSON(0),
+
+    /**
+     * Binary JSON using Jackson Smile, see {@link SmileMarshaller}.
+     */
+    SMILE(1),
+
+    /**
+     * Registration based binary serialization, see {@link RegistryMarshaller}.
+     */
+    REGISTRY(2);
+
+    private final int id;
+
+    private Codec(int id) {
+        this.id = id;
+    }
+
+    /**
+     * The id of this codec, as stored in the memcache flags.
+     *
+     * @return the id, between 0 and 255
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Looks up the codec with the given id.
+     *
+     * @param id the id
+     * @return the codec
+     * @throws IllegalArgumentException if there is no codec with the given id
+     */
+    public static Codec forId(int id) {
+        for (Codec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec id " + id);
+    }
+
+}
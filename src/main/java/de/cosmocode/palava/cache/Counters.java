@@ -0,0 +1,222 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.inject.Provider;
+import net.spy.memcached.MemcachedClientIF;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ *   Maintains the atomic counters of one cache region using memcache's incr and decr.
+ * </p>
+ * <p>
+ *   Counters are stored as plain decimal numbers under their own keys, independent of the
+ *   entries of the region. Memcache never lets a counter drop below zero.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class Counters {
+
+    // returned by memcache's incr and decr if the counter does not exist
+    private static final long MISSING = -1L;
+
+    private final Provider<MemcachedClientIF> currentClient;
+    private final String regionName;
+    private final OperationGuard guard;
+
+    Counters(Provider<MemcachedClientIF> currentClient, String regionName, OperationGuard guard) {
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+        this.regionName = Preconditions.checkNotNull(regionName, "RegionName");
+        this.guard = Preconditions.checkNotNull(guard, "Guard");
+    }
+
+    /**
+     * Adds the given delta to a counter, creating it with the initial value if it does not exist.
+     *
+     * @param encodedKey the encoded key of the counter
+     * @param delta the delta, negative values decrement the counter
+     * @param initialValue the value of a newly created counter, the delta is not applied to it
+     * @param timeout the memcache expiration of a newly created counter
+     * @return the new value of the counter
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    long add(String encodedKey, int delta, long initialValue, int timeout) {
+        return guard.mutate(currentClient.get(), toKey(encodedKey), delta, initialValue, timeout);
+    }
+
+    /**
+     * Asynchronous version of {@link #add(String, int, long, int)}. A counter that does not
+     * exist yet is created synchronously once the returned future is queried.
+     *
+     * @param encodedKey the encoded key of the counter
+     * @param delta the delta, negative values decrement the counter
+     * @param initialValue the value of a newly created counter, the delta is not applied to it
+     * @param timeout the memcache expiration of a newly created counter
+     * @return a future of the new value of the counter
+     * @throws MemcacheUnavailableException if the circuit is open
+     */
+    Future<Long> addAsync(String encodedKey, int delta, long initialValue, int timeout) {
+        final MemcachedClientIF client = currentClient.get();
+        final String key = toKey(encodedKey);
+        final String operation = "mutate of " + key;
+        guard.permit(operation);
+        final Future<Long> future;
+        try {
+            if (delta < 0) {
+                future = client.asyncDecr(key, -delta);
+            } else {
+                future = client.asyncIncr(key, delta);
+            }
+        } catch (IllegalStateException e) {
+            throw guard.rejected(operation, e);
+        }
+        return new CounterFuture(future, encodedKey, delta, initialValue, timeout);
+    }
+
+    /**
+     * Adds the given deltas to their counters. All operations are sent before any
+     * result is awaited, so the batch costs roughly one round trip.
+     *
+     * @param deltas the deltas by encoded key
+     * @param initialValue the value of newly created counters, the delta is not applied to it
+     * @param timeout the memcache expiration of newly created counters
+     * @return the new values by encoded key
+     */
+    Map<String, Long> addAll(Map<String, Integer> deltas, long initialValue, int timeout) {
+        final Map<String, Future<Long>> futures = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Integer> entry : deltas.entrySet()) {
+            futures.put(entry.getKey(), addAsync(entry.getKey(), entry.getValue(), initialValue, timeout));
+        }
+
+        final Map<String, Long> values = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Future<Long>> entry : futures.entrySet()) {
+            values.put(entry.getKey(), guard.await("mutate of " + entry.getKey(), entry.getValue()));
+        }
+        return values;
+    }
+
+    /**
+     * Reads the current value of a counter.
+     *
+     * @param encodedKey the encoded key of the counter
+     * @param defaultValue the value returned if the counter does not exist
+     * @return the current value of the counter
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    long get(String encodedKey, long defaultValue) {
+        final String key = toKey(encodedKey);
+        final String operation = "get of " + key;
+        guard.permit(operation);
+        final Object counter = guard.await(operation, currentClient.get().asyncGet(key));
+        return counter == null ? defaultValue : Long.parseLong(counter.toString().trim());
+    }
+
+    /**
+     * Removes a counter.
+     *
+     * @param encodedKey the encoded key of the counter
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    void remove(String encodedKey) {
+        final String key = toKey(encodedKey);
+        final String operation = "delete of " + key;
+        guard.permit(operation);
+        guard.await(operation, currentClient.get().delete(key));
+    }
+
+    private String toKey(String encodedKey) {
+        return "counter." + DigestUtils.shaHex(regionName + '\0' + encodedKey);
+    }
+
+    /**
+     * Future of an asynchronous incr or decr, which creates the counter if memcache reports it as missing.
+     */
+    private final class CounterFuture implements Future<Long> {
+
+        private final Future<Long> future;
+        private final String encodedKey;
+        private final int delta;
+        private final long initialValue;
+        private final int timeout;
+        // held while creating the counter, which is a blocking memcache call
+        private final Lock lock = new ReentrantLock();
+        private Long created;
+
+        CounterFuture(Future<Long> future, String encodedKey, int delta, long initialValue, int timeout) {
+            this.future = future;
+            this.encodedKey = encodedKey;
+            this.delta = delta;
+            this.initialValue = initialValue;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        @Override
+        public Long get() throws InterruptedException, ExecutionException {
+            return createIfMissing(future.get());
+        }
+
+        @Override
+        public Long get(long duration, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            return createIfMissing(future.get(duration, unit));
+        }
+
+        private Long createIfMissing(Long value) {
+            if (value != null && value.longValue() != MISSING) {
+                return value;
+            }
+            lock.lock();
+            try {
+                if (created == null) {
+                    created = add(encodedKey, delta, initialValue, timeout);
+                }
+                return created;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *   Streaming heavy hitter detection for the encoded keys of one cache region.
+ * </p>
+ * <p>
+ *   Read frequencies are estimated with a Count-Min Sketch. Keys whose estimate reaches the configured threshold
+ *   are kept in a small set of hot keys, bounded by the configured capacity. To reflect recent traffic only,
+ *   all counters are halved once the number of recorded reads reaches the window size.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class HotKeyTracker {
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1024;
+
+    private final int capacity;
+    private final long threshold;
+    private final long window;
+
+    private final AtomicLongArray counters = new AtomicLongArray(DEPTH * WIDTH);
+    private final AtomicLong reads = new AtomicLong();
+    private final ConcurrentMap<String, Long> hotKeys = Maps.newConcurrentMap();
+
+    HotKeyTracker(int capacity, long threshold, long window) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(threshold > 0, "Threshold must be positive");
+        Preconditions.checkArgument(window > threshold, "Window must be larger than threshold");
+        this.capacity = capacity;
+        this.threshold = threshold;
+        this.window = window;
+    }
+
+    /**
+     * Records one read of the given key.
+     *
+     * @param encodedKey the encoded key that was read
+     * @return true if the key is currently considered hot
+     */
+    boolean offer(String encodedKey) {
+        final int hash = encodedKey.hashCode();
+        // second hash, derived from the first one, for double hashing
+        final int rehash = (hash >>> 16) | (hash << 16);
+
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            final int column = ((hash + row * rehash) & Integer.MAX_VALUE) % WIDTH;
+            estimate = Math.min(estimate, counters.incrementAndGet(row * WIDTH + column));
+        }
+
+        if (reads.incrementAndGet() % window == 0) {
+            decay();
+        }
+
+        if (estimate >= threshold) {
+            hotKeys.put(encodedKey, estimate);
+            if (hotKeys.size() > capacity) {
+                evictColdest();
+            }
+        }
+
+        return hotKeys.containsKey(encodedKey);
+    }
+
+    private void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            final long current = counters.get(i);
+            counters.compareAndSet(i, current, current >>> 1);
+        }
+        for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+            if (entry.getValue() >>> 1 < threshold) {
+                hotKeys.remove(entry.getKey(), entry.getValue());
+            } else {
+                hotKeys.replace(entry.getKey(), entry.getValue(), entry.getValue() >>> 1);
+            }
+        }
+    }
+
+    private void evictColdest() {
+        String coldest = null;
+        long lowest = Long.MAX_VALUE;
+        for (Map.Entry<String, Long> entry : hotKeys.entrySet()) {
+            if (entry.getValue() < lowest) {
+                lowest = entry.getValue();
+                coldest = entry.getKey();
+            }
+        }
+        if (coldest != null) {
+            hotKeys.remove(coldest);
+        }
+    }
+
+    /**
+     * Provides a snapshot of the currently hot keys and their estimated read counts.
+     *
+     * @return a new map containing the hot keys
+     */
+    Map<String, Long> getHotKeys() {
+        return Maps.newHashMap(hotKeys);
+    }
+
+    void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0L);
+        }
+        hotKeys.clear();
+    }
+
+}
@@ -0,0 +1,283 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   Publishes the invalidations of the local regions to all other nodes and applies theirs locally.
+ * </p>
+ * <p>
+ *   Invalidations are collected and published as one batch per interval, repeated invalidations
+ *   of the same key within an interval collapse into one event. Received events are applied
+ *   in the same interval.
+ * </p>
+ * <p>
+ *   The published events of a node are numbered consecutively by their generation. Receivers drop
+ *   events they already saw and invalidate everything if a generation is skipped, because
+ *   the events in between were lost, e.g. by an unreliable transport or a failed publish.
+ *   Nodes that stayed silent for longer than the ttl are forgotten.
+ * </p>
+ * <p>
+ *   The transport is only used by one exchange at a time and never while holding the lock
+ *   that {@link #publish(String, String)} takes, so writers don't wait for the network.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class InvalidationBus {
+
+    private static final Logger LOG = LoggerFactory.getLogger(InvalidationBus.class);
+
+    private static final int MAX_BATCH_SIZE = 500;
+
+    /**
+     * Receives the invalidations of one region.
+     */
+    interface Listener {
+
+        void invalidate(String encodedKey);
+
+        void invalidateAll();
+
+    }
+
+    private final InvalidationTransport transport;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, Listener> listeners = Maps.newConcurrentMap();
+
+    // guarded by this
+    private Map<String, InvalidationEvent> outgoing = Maps.newLinkedHashMap();
+    private long generation;
+
+    // serializes the exchanges, so that batches are published in the order of their generations
+    private final Object exchange = new Object();
+
+    // guarded by exchange
+    private final Map<String, Origin> received = Maps.newHashMap();
+
+    private final long ttlMillis;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a new bus.
+     *
+     * @param transport the transport of the events
+     * @param ttlMillis the time after which silent nodes are forgotten
+     */
+    InvalidationBus(InvalidationTransport transport, long ttlMillis) {
+        Preconditions.checkArgument(ttlMillis > 0, "Ttl must be positive");
+        this.transport = Preconditions.checkNotNull(transport, "Transport");
+        this.ttlMillis = ttlMillis;
+    }
+
+    String getNodeId() {
+        return nodeId;
+    }
+
+    void register(String region, Listener listener) {
+        listeners.put(Preconditions.checkNotNull(region, "Region"), Preconditions.checkNotNull(listener, "Listener"));
+    }
+
+    /**
+     * Queues the invalidation of the given key for the next batch.
+     *
+     * @param region the region name
+     * @param encodedKey the memcache key, null to invalidate the whole region
+     */
+    synchronized void publish(String region, @Nullable String encodedKey) {
+        final String id = encodedKey == null ? region : region + '\0' + encodedKey;
+        // removed first, so that the latest invalidation moves to the end
+        outgoing.remove(id);
+        // numbered when the batch is taken, so that the generations of the published events have no gaps
+        outgoing.put(id, new InvalidationEvent(nodeId, region, encodedKey, 0));
+    }
+
+    /**
+     * Starts publishing and receiving in the given interval.
+     *
+     * @param intervalMillis the interval in milliseconds
+     */
+    void start(long intervalMillis) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "memcache-invalidation-bus");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    runOnce();
+                } catch (RuntimeException e) {
+                    // the next run will try again, but the bus must not die
+                    LOG.warn("Unable to exchange invalidations", e);
+                }
+            }
+
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes the pending invalidations and applies all received ones.
+     */
+    void runOnce() {
+        synchronized (exchange) {
+            final List<InvalidationEvent> events = takeOutgoing();
+            try {
+                for (int from = 0; from < events.size(); from += MAX_BATCH_SIZE) {
+                    transport.publish(events.subList(from, Math.min(events.size(), from + MAX_BATCH_SIZE)));
+                }
+                apply(transport.poll());
+            } catch (IOException e) {
+                LOG.warn("Unable to exchange invalidations", e);
+            }
+            expireSilentOrigins();
+        }
+    }
+
+    private synchronized List<InvalidationEvent> takeOutgoing() {
+        final List<InvalidationEvent> events = Lists.newArrayListWithCapacity(outgoing.size());
+        for (InvalidationEvent event : outgoing.values()) {
+            events.add(new InvalidationEvent(nodeId, event.getRegion(), event.getEncodedKey(), ++generation));
+        }
+        outgoing = Maps.newLinkedHashMap();
+        return events;
+    }
+
+    private void expireSilentOrigins() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Origin> iterator = received.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().receivedAt > ttlMillis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void apply(List<InvalidationEvent> events) {
+        for (InvalidationEvent event : events) {
+            if (event.getRegion() == null) {
+                LOG.debug("Invalidating all regions after {}", event);
+                invalidateAll();
+            } else if (!nodeId.equals(event.getOrigin()) && isNext(event)) {
+                // own events were applied locally when they were published
+                apply(listeners.get(event.getRegion()), event);
+            }
+        }
+    }
+
+    /**
+     * Checks the generation of the given event against the latest one received from its origin.
+     * Invalidates everything if events of the origin were lost.
+     *
+     * @param event the received event
+     * @return false if the event was already received
+     */
+    private boolean isNext(InvalidationEvent event) {
+        final Origin origin = received.get(event.getOrigin());
+        if (origin == null) {
+            received.put(event.getOrigin(), new Origin(event.getGeneration()));
+            return true;
+        }
+        origin.receivedAt = System.currentTimeMillis();
+        final long latest = origin.generation;
+        if (event.getGeneration() <= latest) {
+            // a duplicate, or a late event whose loss was already handled
+            return false;
+        }
+        origin.generation = event.getGeneration();
+        if (event.getGeneration() > latest + 1) {
+            LOG.info("Lost invalidations {} to {} of {}", new Object[] {
+                latest + 1, event.getGeneration() - 1, event.getOrigin()
+            });
+            invalidateAll();
+        }
+        return true;
+    }
+
+    private void invalidateAll() {
+        for (Listener listener : listeners.values()) {
+            listener.invalidateAll();
+        }
+    }
+
+    private void apply(@Nullable Listener listener, InvalidationEvent event) {
+        if (listener == null) {
+            return;
+        } else if (event.getEncodedKey() == null) {
+            listener.invalidateAll();
+        } else {
+            listener.invalidate(event.getEncodedKey());
+        }
+    }
+
+    /**
+     * The latest generation received from another node.
+     */
+    private static final class Origin {
+
+        private long generation;
+        private long receivedAt = System.currentTimeMillis();
+
+        Origin(long generation) {
+            this.generation = generation;
+        }
+
+    }
+
+    /**
+     * Publishes the pending invalidations and stops the bus.
+     */
+    void close() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        runOnce();
+        transport.close();
+    }
+
+}
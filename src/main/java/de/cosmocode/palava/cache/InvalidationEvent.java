@@ -0,0 +1,142 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An invalidation of the local copies of a key, published by one node to all others.
+ *
+ * @since 1.0
+ */
+public final class InvalidationEvent {
+
+    private static final String NONE = "";
+
+    private final String origin;
+    private final String region;
+    private final String encodedKey;
+    private final long generation;
+
+    /**
+     * Creates a new event.
+     *
+     * @param origin the id of the publishing node
+     * @param region the region name, null for all regions
+     * @param encodedKey the memcache key, null for all keys of the region
+     * @param generation the generation of the event, consecutive per publishing node
+     */
+    public InvalidationEvent(String origin, @Nullable String region, @Nullable String encodedKey, long generation) {
+        this.origin = Preconditions.checkNotNull(origin, "Origin");
+        this.region = region;
+        this.encodedKey = encodedKey;
+        this.generation = generation;
+    }
+
+    /**
+     * Creates an event which invalidates everything on every node, used if a transport lost events.
+     *
+     * @return a new event
+     */
+    public static InvalidationEvent all() {
+        return new InvalidationEvent(NONE, null, null, 0);
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    @Nullable
+    public String getRegion() {
+        return region;
+    }
+
+    @Nullable
+    public String getEncodedKey() {
+        return encodedKey;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Encodes the given events into one compact message.
+     *
+     * @param events the events
+     * @return the encoded events
+     */
+    static byte[] encode(Collection<InvalidationEvent> events) {
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(byteStream);
+        try {
+            output.writeInt(events.size());
+            for (InvalidationEvent event : events) {
+                output.writeUTF(event.origin);
+                output.writeUTF(event.region == null ? NONE : event.region);
+                output.writeUTF(event.encodedKey == null ? NONE : event.encodedKey);
+                output.writeLong(event.generation);
+            }
+            output.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return byteStream.toByteArray();
+    }
+
+    /**
+     * Decodes a message created by {@link #encode(Collection)}.
+     *
+     * @param bytes the encoded events
+     * @param offset the offset of the message in bytes
+     * @param length the length of the message
+     * @return the events
+     * @throws IOException if the message is malformed
+     */
+    static List<InvalidationEvent> decode(byte[] bytes, int offset, int length) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes, offset, length));
+        final int size = input.readInt();
+        final List<InvalidationEvent> events = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+            final String origin = input.readUTF();
+            final String region = input.readUTF();
+            final String encodedKey = input.readUTF();
+            events.add(new InvalidationEvent(origin,
+                NONE.equals(region) ? null : region,
+                NONE.equals(encodedKey) ? null : encodedKey,
+                input.readLong()));
+        }
+        return events;
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidationEvent [origin=" + origin + ", region=" + region + ", encodedKey=" + encodedKey +
+            ", generation=" + generation + "]";
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>
+ *   Transports {@link InvalidationEvent}s between the nodes sharing a memcache cluster.
+ * </p>
+ * <p>
+ *   Transports may deliver the own events of a node back to it or an event more than once
+ *   and are allowed to lose events,
+ *   as long as they report a detected loss using {@link InvalidationEvent#all()}.
+ * </p>
+ *
+ * @since 1.0
+ */
+public interface InvalidationTransport {
+
+    /**
+     * Publishes the given batch of events to all nodes.
+     *
+     * @param events the events
+     * @throws IOException if publishing fails
+     */
+    void publish(Collection<InvalidationEvent> events) throws IOException;
+
+    /**
+     * Returns all events received since the last call.
+     *
+     * @return the received events, possibly empty
+     * @throws IOException if receiving fails
+     */
+    List<InvalidationEvent> poll() throws IOException;
+
+    /**
+     * Releases all resources of this transport.
+     */
+    void close();
+
+}
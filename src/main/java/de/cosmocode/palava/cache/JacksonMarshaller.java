@@ -22,6 +22,7 @@ import de.cosmocode.commons.Bijection;
 import de.cosmocode.commons.reflect.Reflection;
 import org.codehaus.jackson.JsonEncoding;
 import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.MappingJsonFactory;
 import org.slf4j.Logger;
@@ -32,8 +33,10 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Date;
 
@@ -42,7 +45,7 @@ import java.util.Date;
  *
  * @author Oliver Lorenz
  */
-enum JacksonMarshaller implements Marshaller {
+enum JacksonMarshaller implements StreamingMarshaller {
 
     INSTANCE;
     
@@ -62,37 +65,10 @@ enum JacksonMarshaller implements Marshaller {
         }
 
         final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        ObjectOutputStream objectOutputStream = null;
-
         try {
-            objectOutputStream = new ObjectOutputStream(byteStream);
-
-            // write metadata
-            final Object value;
-            if (input instanceof MetaValue) {
-                final MetaValue metaValue = MetaValue.class.cast(input);
-                objectOutputStream.writeBoolean(true);
-                objectOutputStream.writeUTF(metaValue.getValueClassName());
-
-                objectOutputStream.writeObject(metaValue.getKey());
-                objectOutputStream.writeLong(metaValue.getIdleTimeInSeconds());
-                objectOutputStream.writeLong(metaValue.getLifeTimeInSeconds());
-                if (metaValue.getIdleTimeInSeconds() > 0) {
-                    objectOutputStream.writeLong(metaValue.getStoredAt().getTime());
-                    objectOutputStream.writeLong(metaValue.getLastAccessedAt().getTime());
-                }
-                value = metaValue.getValue();
-            } else {
-                objectOutputStream.writeBoolean(false);
-                objectOutputStream.writeUTF(input.getClass().getName());
-                value = input;
-            }
-
-            factory.createJsonGenerator(objectOutputStream, JsonEncoding.UTF8).writeObject(value);
+            write(input, byteStream);
         } catch (IOException e) {
             throw new IllegalStateException(e);
-        } finally {
-            Closeables.closeQuietly(objectOutputStream);
         }
 
         final byte[] bytes = byteStream.toByteArray();
@@ -104,6 +80,75 @@ enum JacksonMarshaller implements Marshaller {
         return bytes;
     }
 
+    @Override
+    public void write(Object input, OutputStream output) throws IOException {
+        final ObjectOutputStream objectOutputStream = new ObjectOutputStream(output);
+
+        // write metadata
+        final Object value;
+        if (input instanceof MetaValue) {
+            final MetaValue metaValue = MetaValue.class.cast(input);
+            objectOutputStream.writeBoolean(true);
+            objectOutputStream.writeUTF(metaValue.getValueClassName());
+
+            objectOutputStream.writeObject(metaValue.getKey());
+            objectOutputStream.writeLong(metaValue.getIdleTimeInSeconds());
+            objectOutputStream.writeLong(metaValue.getLifeTimeInSeconds());
+            if (metaValue.getIdleTimeInSeconds() > 0) {
+                objectOutputStream.writeLong(metaValue.getStoredAt().getTime());
+                objectOutputStream.writeLong(metaValue.getLastAccessedAt().getTime());
+            }
+            value = metaValue.getValue();
+        } else {
+            objectOutputStream.writeBoolean(false);
+            objectOutputStream.writeUTF(input.getClass().getName());
+            value = input;
+        }
+
+        final JsonGenerator generator = factory.createJsonGenerator(objectOutputStream, JsonEncoding.UTF8);
+        generator.writeObject(value);
+        generator.flush();
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object read(InputStream input) throws IOException {
+        final ObjectInputStream inputStream = new ObjectInputStream(new BufferedInputStream(input));
+
+        // read metadata
+        final MetaValue metaValue = new MetaValue();
+        final boolean hasMetadata = inputStream.readBoolean();
+        final String className = inputStream.readUTF();
+
+        try {
+            if (hasMetadata) {
+                metaValue.setKey(Serializable.class.cast(inputStream.readObject()));
+                metaValue.setIdleTimeInSeconds(inputStream.readLong());
+                metaValue.setLifeTimeInSeconds(inputStream.readLong());
+                if (metaValue.getIdleTimeInSeconds() > 0) {
+                    metaValue.setStoredAt(new Date(inputStream.readLong()));
+                    metaValue.setLastAccessedAt(new Date(inputStream.readLong()));
+                }
+            }
+
+            // read real value
+            final Class<?> valueType = Reflection.forName(className);
+            LOG.trace("Read class {}", valueType);
+            final JsonParser jsonInputStreamParser = factory.createJsonParser(inputStream);
+            final Object value = jsonInputStreamParser.readValueAs(valueType);
+            LOG.trace("Read value: {} of type {}", value, valueType);
+
+            if (hasMetadata) {
+                metaValue.setValue(value);
+                return metaValue;
+            } else {
+                return value;
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * Decoding part of the Jackson marshaller implementation.
      */
@@ -111,8 +156,6 @@ enum JacksonMarshaller implements Marshaller {
 
         INSTANCE;
 
-        private final JsonFactory factory = new MappingJsonFactory();
-
         @Override
         public Bijection<Object, Serializable> inverse() {
             return JacksonMarshaller.INSTANCE;
@@ -124,44 +167,11 @@ enum JacksonMarshaller implements Marshaller {
                 return null;
             }
 
-            final ByteArrayInputStream byteStream = new ByteArrayInputStream(byte[].class.cast(input));
-            ObjectInputStream inputStream = null;
-
+            final InputStream inputStream = new ByteArrayInputStream(byte[].class.cast(input));
             try {
-                inputStream = new ObjectInputStream(new BufferedInputStream(byteStream));
-
-                // read metadata
-                final MetaValue metaValue = new MetaValue();
-                final boolean hasMetadata = inputStream.readBoolean();
-                final String className = inputStream.readUTF();
-
-                if (hasMetadata) {
-                    metaValue.setKey(Serializable.class.cast(inputStream.readObject()));
-                    metaValue.setIdleTimeInSeconds(inputStream.readLong());
-                    metaValue.setLifeTimeInSeconds(inputStream.readLong());
-                    if (metaValue.getIdleTimeInSeconds() > 0) {
-                        metaValue.setStoredAt(new Date(inputStream.readLong()));
-                        metaValue.setLastAccessedAt(new Date(inputStream.readLong()));
-                    }
-                }
-
-                // read real value
-                final Class<?> valueType = Reflection.forName(className);
-                LOG.trace("Read class {}", valueType);
-                final JsonParser jsonInputStreamParser = factory.createJsonParser(inputStream);
-                final Object value = jsonInputStreamParser.readValueAs(valueType);
-                LOG.trace("Read value: {} of type {}", value, valueType);
-
-                if (hasMetadata) {
-                    metaValue.setValue(value);
-                    return metaValue;
-                } else {
-                    return value;
-                }
+                return JacksonMarshaller.INSTANCE.read(inputStream);
             } catch (IOException e) {
                 throw new IllegalStateException(e);
-            } catch (ClassNotFoundException e) {
-                throw new IllegalStateException(e);
             } finally {
                 Closeables.closeQuietly(inputStream);
             }
@@ -45,6 +45,12 @@ public enum KeyMarshallers implements KeyMarshaller {
             return DigestUtils.shaHex(JSON.encode(key));
         }
     },
+    /**
+     * Converts the serialized keys using the platform charset, which corrupts most of them.
+     *
+     * @deprecated use {@link #BASE64_SERIALIZE}, which is binary safe
+     */
+    @Deprecated
     SERIALIZE {
         @Override
         public String encode(Serializable key) {
@@ -61,6 +67,26 @@ public enum KeyMarshallers implements KeyMarshaller {
             return true;
         }
     },
+    /**
+     * Binary safe and decodable, see {@link Base64Keys}. Keys exceeding the key limit of memcache
+     * are hashed and decode to null, regions read them from the stored values instead.
+     */
+    BASE64_SERIALIZE {
+        @Override
+        public String encode(Serializable key) {
+            return Base64Keys.encode(key);
+        }
+
+        @Override
+        public Serializable decode(String encoded) {
+            return Base64Keys.decode(encoded);
+        }
+
+        @Override
+        public boolean isDecodable() {
+            return true;
+        }
+    },
     HASHED_SERIALIZE {
         @Override
         public String encode(Serializable key) {
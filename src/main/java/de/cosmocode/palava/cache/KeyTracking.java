@@ -0,0 +1,44 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * How a region keeps track of the keys it stored in memcache.
+ *
+ * @since 1.0
+ */
+public enum KeyTracking {
+
+    /**
+     * Keys are not tracked at all, writes are a single set or delete without any local bookkeeping.
+     * Iteration, size, exact size and removeIf throw an {@link UnsupportedOperationException},
+     * put and remove don't read the value they replace and always return null.
+     */
+    NONE,
+
+    /**
+     * Keys are tracked in memory and lost on shutdown.
+     */
+    MEMORY,
+
+    /**
+     * Keys are tracked in the key sets created by the bound {@link de.cosmocode.palava.cache.keysets.KeySetFactory},
+     * which usually survive a restart.
+     */
+    PERSISTENT;
+
+}
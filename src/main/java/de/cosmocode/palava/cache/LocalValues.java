@@ -0,0 +1,79 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.MapMaker;
+
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Softly referenced values which are kept on this node only, see {@link OversizePolicy#LOCAL_ONLY}.
+ *
+ * @since 1.0
+ */
+final class LocalValues {
+
+    private final ConcurrentMap<String, Entry> entries = new MapMaker().softValues().makeMap();
+
+    MetaValue get(String encodedKey) {
+        final Entry entry = entries.get(encodedKey);
+        if (entry == null) {
+            return null;
+        } else if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(encodedKey);
+            return null;
+        } else {
+            return entry.metaValue;
+        }
+    }
+
+    /**
+     * Keeps the given value locally.
+     *
+     * @param encodedKey the memcache key
+     * @param metaValue the value
+     * @param timeout the memcache expiration in seconds, 0 if the value does not expire
+     */
+    void put(String encodedKey, MetaValue metaValue, int timeout) {
+        final long expiresAt = timeout > 0 ? System.currentTimeMillis() + timeout * 1000L : Long.MAX_VALUE;
+        entries.put(encodedKey, new Entry(metaValue, expiresAt));
+    }
+
+    void invalidate(String encodedKey) {
+        entries.remove(encodedKey);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /**
+     * A local value with its expiration.
+     */
+    private static final class Entry {
+
+        private final MetaValue metaValue;
+        private final long expiresAt;
+
+        Entry(MetaValue metaValue, long expiresAt) {
+            this.metaValue = metaValue;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
@@ -16,11 +16,25 @@
 
 package de.cosmocode.palava.cache;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import net.spy.memcached.CachedData;
 import net.spy.memcached.transcoders.Transcoder;
 import org.apache.commons.lang.SerializationUtils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Wraps a marshaller with a transcoder, so that the transcoder can be given to the memcache spy library.
@@ -30,30 +44,223 @@ import java.io.Serializable;
  */
 final class MarshallerTranscoder implements Transcoder<Object> {
 
+    /**
+     * Flag of the empty payload of an absent marker, see {@link MetaValue#absent()}.
+     */
+    static final int FLAG_ABSENT = 1;
+
+    /**
+     * Flag of a payload which is prefixed with the tag versions of a {@link MetaValue}.
+     */
+    static final int FLAG_TAGGED = 2;
+
+    /**
+     * Flag of a manifest whose payload is stored in several chunks, see {@link ChunkManifest}.
+     */
+    static final int FLAG_CHUNKED = 4;
+
+    /**
+     * Flag of a payload which is gzip compressed as a whole, including the tag versions.
+     */
+    static final int FLAG_COMPRESSED = 8;
+
+    /**
+     * The flags use the lowest byte for the flags above and the second byte for the id of the {@link Codec}.
+     */
+    private static final int CODEC_SHIFT = 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Codec codec;
     private final Marshaller marshaller;
+    private final Map<Codec, Marshaller> marshallers;
+    private final boolean compressed;
+    private int asyncDecodeThreshold;
 
     MarshallerTranscoder(Marshaller marshaller) {
-        this.marshaller = marshaller;
+        this(Codec.JSON, Collections.singletonMap(Codec.JSON, marshaller));
+    }
+
+    MarshallerTranscoder(Codec codec, Map<Codec, Marshaller> marshallers) {
+        this(codec, marshallers, false);
+    }
+
+    /**
+     * Creates a transcoder that writes values using the given codec and reads values of all given codecs.
+     *
+     * @param codec the codec to write values with
+     * @param marshallers the marshallers of all codecs that can be read
+     * @param compressed whether written values are gzip compressed, compressed values can be read either way
+     */
+    MarshallerTranscoder(Codec codec, Map<Codec, Marshaller> marshallers, boolean compressed) {
+        this.codec = Preconditions.checkNotNull(codec, "Codec");
+        this.marshallers = Maps.newEnumMap(marshallers);
+        this.marshaller = Preconditions.checkNotNull(marshallers.get(codec), "No marshaller for %s", codec);
+        this.compressed = compressed;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the payload size from which values are decoded in the transcode pool of the memcache client
+     * as soon as they arrive. Smaller values are decoded by the thread that reads them, which avoids
+     * the hand-off. The I/O thread of the client never decodes values either way.
+     *
+     * @param threshold the payload size in bytes, 0 decodes all values on the reading thread
+     */
+    void setAsyncDecodeThreshold(int threshold) {
+        Preconditions.checkArgument(threshold >= 0, "Threshold must not be negative");
+        this.asyncDecodeThreshold = threshold;
     }
 
     @Override
     public boolean asyncDecode(CachedData cachedData) {
-        return false;
+        // manifests are tiny, their chunks are read by the caller anyway
+        return asyncDecodeThreshold > 0 && cachedData.getData().length >= asyncDecodeThreshold &&
+            (cachedData.getFlags() & (FLAG_ABSENT | FLAG_CHUNKED)) == 0;
     }
 
     @Override
     public CachedData encode(Object o) {
-        final Serializable encoded = marshaller.apply(o);
-        if (encoded instanceof byte[]) {
-            return new CachedData(0, byte[].class.cast(encoded), getMaxSize());
+        if (o instanceof MetaValue && MetaValue.class.cast(o).isAbsent()) {
+            return new CachedData(FLAG_ABSENT, EMPTY, getMaxSize());
+        }
+
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try {
+            writePayload(o, byteStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new CachedData(flagsOf(o), byteStream.toByteArray(), getMaxSize());
+    }
+
+    /**
+     * Computes the flags of the payload of the given object.
+     *
+     * @param o the object
+     * @return the flags to store along with the payload of o
+     */
+    int flagsOf(Object o) {
+        int flags = codec.getId() << CODEC_SHIFT;
+        if (compressed) {
+            flags |= FLAG_COMPRESSED;
+        }
+        if (o instanceof MetaValue && !MetaValue.class.cast(o).getTags().isEmpty()) {
+            flags |= FLAG_TAGGED;
+        }
+        return flags;
+    }
+
+    /**
+     * Writes the payload of the given object to the given stream. Streaming marshallers write
+     * directly to the stream, all others are buffered.
+     *
+     * @param o the object
+     * @param output the stream to write to
+     * @throws IOException if writing fails
+     */
+    void writePayload(Object o, OutputStream output) throws IOException {
+        if (compressed) {
+            final GZIPOutputStream gzipStream = new GZIPOutputStream(output);
+            writeUncompressed(o, gzipStream);
+            gzipStream.finish();
         } else {
-            return new CachedData(0, SerializationUtils.serialize(encoded), getMaxSize());
+            writeUncompressed(o, output);
+        }
+    }
+
+    private void writeUncompressed(Object o, OutputStream output) throws IOException {
+        if (o instanceof MetaValue && !MetaValue.class.cast(o).getTags().isEmpty()) {
+            final Map<String, Long> tags = MetaValue.class.cast(o).getTags();
+            final DataOutputStream dataStream = new DataOutputStream(output);
+            dataStream.writeInt(tags.size());
+            for (Map.Entry<String, Long> entry : tags.entrySet()) {
+                dataStream.writeUTF(entry.getKey());
+                dataStream.writeLong(entry.getValue());
+            }
+            dataStream.flush();
+        }
+
+        if (marshaller instanceof StreamingMarshaller) {
+            StreamingMarshaller.class.cast(marshaller).write(o, output);
+        } else {
+            final Serializable encoded = marshaller.apply(o);
+            if (encoded instanceof byte[]) {
+                output.write(byte[].class.cast(encoded));
+            } else {
+                output.write(SerializationUtils.serialize(encoded));
+            }
         }
     }
 
     @Override
     public Object decode(CachedData cachedData) {
-        return marshaller.inverse().apply(cachedData.getData());
+        if ((cachedData.getFlags() & FLAG_ABSENT) != 0) {
+            return MetaValue.absent();
+        } else if ((cachedData.getFlags() & FLAG_CHUNKED) != 0) {
+            return ChunkManifest.decode(cachedData.getData());
+        } else if (cachedData.getFlags() == 0) {
+            return marshallerOf(0).inverse().apply(cachedData.getData());
+        } else {
+            try {
+                return readPayload(cachedData.getFlags(), new ByteArrayInputStream(cachedData.getData()));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Reads a payload previously written by {@link #writePayload(Object, OutputStream)}.
+     *
+     * @param flags the flags of the payload, as computed by {@link #flagsOf(Object)}
+     * @param input the stream to read from
+     * @return the decoded object
+     * @throws IOException if reading fails
+     */
+    Object readPayload(int flags, InputStream input) throws IOException {
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            return readUncompressed(flags, new GZIPInputStream(input));
+        } else {
+            return readUncompressed(flags, input);
+        }
+    }
+
+    private Object readUncompressed(int flags, InputStream input) throws IOException {
+        Map<String, Long> tags = null;
+        if ((flags & FLAG_TAGGED) != 0) {
+            final DataInputStream dataStream = new DataInputStream(input);
+            final int size = dataStream.readInt();
+            tags = Maps.newHashMap();
+            for (int i = 0; i < size; i++) {
+                tags.put(dataStream.readUTF(), dataStream.readLong());
+            }
+        }
+
+        final Marshaller reader = marshallerOf(flags);
+        final Object decoded;
+        if (reader instanceof StreamingMarshaller) {
+            decoded = StreamingMarshaller.class.cast(reader).read(input);
+        } else {
+            decoded = reader.inverse().apply(ByteStreams.toByteArray(input));
+        }
+
+        if (tags != null) {
+            MetaValue.class.cast(decoded).setTags(tags);
+        }
+        return decoded;
+    }
+
+    private Marshaller marshallerOf(int flags) {
+        final Codec payloadCodec = Codec.forId((flags >>> CODEC_SHIFT) & 0xFF);
+        final Marshaller reader = marshallers.get(payloadCodec);
+        if (reader == null) {
+            throw new IllegalStateException("No marshaller available for codec " + payloadCodec);
+        }
+        return reader;
     }
 
     @Override
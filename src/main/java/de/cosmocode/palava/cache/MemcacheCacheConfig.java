@@ -0,0 +1,90 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * Static constant holder class for memcache cache config key names.
+ *
+ * @since 1.0
+ */
+public final class MemcacheCacheConfig {
+
+    public static final String PREFIX = "cache.memcache.";
+
+    public static final String HOT_KEY_CAPACITY = PREFIX + "hotKeys.capacity";
+
+    public static final String HOT_KEY_THRESHOLD = PREFIX + "hotKeys.threshold";
+
+    public static final String HOT_KEY_WINDOW = PREFIX + "hotKeys.window";
+
+    public static final String HOT_KEY_TTL_MILLIS = PREFIX + "hotKeys.ttlMillis";
+
+    public static final String NEGATIVE_TTL_SECONDS = PREFIX + "negative.ttlSeconds";
+
+    public static final String NEGATIVE_CAPACITY = PREFIX + "negative.capacity";
+
+    public static final String REAPER_INTERVAL_SECONDS = PREFIX + "reaper.intervalSeconds";
+
+    public static final String REAPER_BATCH_SIZE = PREFIX + "reaper.batchSize";
+
+    public static final String CHUNK_SIZE = PREFIX + "chunkSize";
+
+    public static final String OVERSIZE_POLICY = PREFIX + "oversizePolicy";
+
+    public static final String SLAB_SHAPING = PREFIX + "slabs.shaping";
+
+    public static final String SLAB_MIN_SPACE = PREFIX + "slabs.minSpace";
+
+    public static final String SLAB_GROWTH_FACTOR = PREFIX + "slabs.growthFactor";
+
+    public static final String SLAB_ITEM_SIZE_MAX = PREFIX + "slabs.itemSizeMax";
+
+    public static final String CODEC = PREFIX + "codec";
+
+    public static final String ASYNC_DECODE_THRESHOLD = PREFIX + "asyncDecode.threshold";
+
+    public static final String PARALLEL_DECODE_THRESHOLD = PREFIX + "parallelDecode.threshold";
+
+    public static final String PARALLEL_DECODE_PARALLELISM = PREFIX + "parallelDecode.parallelism";
+
+    public static final String PARALLEL_DECODE_EXECUTOR = PREFIX + "parallelDecode.executor";
+
+    public static final String COMPRESSION = PREFIX + "compression";
+
+    public static final String KEY_TRACKING = PREFIX + "keyTracking";
+
+    public static final String CIRCUIT_FAILURE_THRESHOLD = PREFIX + "circuit.failureThreshold";
+
+    public static final String CIRCUIT_TIMEOUT_MILLIS = PREFIX + "circuit.timeoutMillis";
+
+    public static final String CIRCUIT_SLOW_CALL_MILLIS = PREFIX + "circuit.slowCallMillis";
+
+    public static final String CIRCUIT_OPEN_MILLIS = PREFIX + "circuit.openMillis";
+
+    public static final String WRITE_BEHIND_CAPACITY = PREFIX + "writeBehind.capacity";
+
+    public static final String WRITE_BEHIND_BATCH_SIZE = PREFIX + "writeBehind.batchSize";
+
+    public static final String INVALIDATION_INTERVAL_MILLIS = PREFIX + "invalidation.intervalMillis";
+
+    public static final String INVALIDATION_TTL_SECONDS = PREFIX + "invalidation.ttlSeconds";
+
+    private MemcacheCacheConfig() {
+
+    }
+
+}
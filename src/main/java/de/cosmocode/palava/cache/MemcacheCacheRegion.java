@@ -16,57 +16,368 @@
 
 package de.cosmocode.palava.cache;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.inject.Provider;
-import de.cosmocode.palava.cache.keysets.KeySetFactory;
+import net.spy.memcached.CachedData;
 import net.spy.memcached.MemcachedClientIF;
-import net.spy.memcached.transcoders.Transcoder;
+import org.apache.commons.lang.SerializationUtils;
+import org.reactivestreams.Publisher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.AbstractMap;
 import java.util.AbstractSet;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Memcache based implementation of the cache region.
  * Since memcache does not provide native support for lists and there are several different ways to fix this,
- * the user can configure the factory that creates these key sets for the cache region.
+ * the user can configure the key set that tracks the keys of the cache region.
  *
  * @param <K> the type of the keys, must be serializable
  * @param <V> the type of the values, which should either extend serializable or conform to the bean standard
  * @since 1.0
  */
-class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V> implements CacheRegion<K, V> {
+class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V>
+    implements MemcacheRegion<K, V>, MemcacheCacheRegionMBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(MemcacheCacheRegion.class);
 
+    private static final String[] NO_TAGS = new String[0];
+
+    private static final int BULK_SIZE = 100;
+
+    // the room for the key and the item header, which count towards the item size limit
+    private static final int ITEM_HEADER_SIZE = 1024;
+
+    // stays below the default item size limit of memcached
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024 - ITEM_HEADER_SIZE;
+
+    // the client refuses larger items
+    static final int MAX_CHUNK_SIZE = CachedData.MAX_SIZE - ITEM_HEADER_SIZE;
+
+    private static final int SNAPSHOT_MAGIC = 0x4D435253;
+
+    private static final int SNAPSHOT_VERSION = 1;
+
     private final Set<String> keySet;
     private final Provider<MemcachedClientIF> currentClient;
     private final KeyMarshaller keyMarshaller;
-    private final Transcoder<Object> transcoder;
+    private final MarshallerTranscoder transcoder;
     private final String name;
+    private final TagVersions tagVersions;
+    private final Counters counters;
+    private final OperationGuard guard;
 
     private final Set<Entry<K, V>> entrySet = new EntrySet();
+    private final Set<K> keys = new LocalKeySet();
+
+    // local copy of the memcache expiration of every key with a limited lifetime
+    private final ConcurrentMap<String, Long> deadlines = Maps.newConcurrentMap();
+    // a lock instead of a monitor, the reaper blocks on memcache while holding it
+    private final Lock reapLock = new ReentrantLock();
+    private int reapOffset;
 
+    private HotKeyTracker hotKeyTracker;
+    private NearCache nearCache;
+    private NegativeCache negativeCache;
+    private Map<String, byte[]> keyIndex;
+    private final ValueSizeStats sizeStats = new ValueSizeStats();
+    private int chunkSize = DEFAULT_CHUNK_SIZE;
+    private OversizePolicy oversizePolicy = OversizePolicy.CHUNK;
+    private LocalValues localValues;
+    private SlabShaping slabShaping = SlabShaping.NONE;
+    private SlabStats slabStats;
+    private ChunkedValues chunkedValues;
+    private ParallelDecoder decoder;
+    private CacheExpiration defaultExpiration = CacheExpirations.ETERNAL;
+    private boolean verifyKeys;
+    private WriteBehindQueue writeBehind;
+    // enabled after the region is published
+    private volatile InvalidationBus invalidationBus;
+
+    /**
+     * Creates a new region.
+     *
+     * @param keySet the set tracking the encoded keys, null if keys are not tracked
+     * @param currentClient the memcache client provider
+     * @param keyMarshaller the key marshaller
+     * @param transcoder the value transcoder
+     * @param name the name of the region
+     */
     MemcacheCacheRegion(
-            final KeySetFactory keySetFactory,
+            @Nullable final Set<String> keySet,
             final Provider<MemcachedClientIF> currentClient,
             final KeyMarshaller keyMarshaller,
-            final Marshaller marshaller,
+            final MarshallerTranscoder transcoder,
             final String name) {
-        this.keySet = keySetFactory.create(name);
+        this.keySet = keySet;
         this.currentClient = currentClient;
         this.keyMarshaller = keyMarshaller;
-        this.transcoder = new MarshallerTranscoder(marshaller);
+        this.transcoder = transcoder;
+        this.guard = new OperationGuard(name);
+        this.chunkedValues = newChunkedValues();
+        this.decoder = new ParallelDecoder(transcoder);
         this.name = name;
+        this.tagVersions = new TagVersions(currentClient, name, guard);
+        this.counters = new Counters(currentClient, name, guard);
+    }
+
+    /**
+     * Enables the local replication of hot keys. Keys that the given tracker flags as hot
+     * are read from the given near cache, as long as it holds a copy of them.
+     *
+     * @param tracker the hot key tracker
+     * @param cache the near cache for the hot keys
+     */
+    void enableHotKeyReplication(HotKeyTracker tracker, NearCache cache) {
+        this.hotKeyTracker = Preconditions.checkNotNull(tracker, "Tracker");
+        this.nearCache = Preconditions.checkNotNull(cache, "Cache");
+    }
+
+    /**
+     * Enables negative caching. Misses are stored as compact absent markers in memcache
+     * and remembered locally by the given negative cache, both for the negative cache's ttl.
+     *
+     * @param cache the local negative cache
+     */
+    void enableNegativeCaching(NegativeCache cache) {
+        this.negativeCache = Preconditions.checkNotNull(cache, "Cache");
+    }
+
+    /**
+     * Enables the local index of memcache keys to serialized original keys. Only useful if
+     * the key marshaller is not decodable, as decodable keys can be recovered anyway.
+     *
+     * @param index the key index
+     */
+    void enableKeyIndex(Map<String, byte[]> index) {
+        this.keyIndex = Preconditions.checkNotNull(index, "Index");
+    }
+
+    /**
+     * Sets the size of the chunks in which large values are stored.
+     *
+     * @param chunkSize the chunk size in bytes
+     */
+    void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+        this.chunkedValues = newChunkedValues();
+    }
+
+    /**
+     * Sets how values whose payload exceeds the chunk size are stored.
+     *
+     * @param policy the oversize policy
+     */
+    void setOversizePolicy(OversizePolicy policy) {
+        this.oversizePolicy = Preconditions.checkNotNull(policy, "Policy");
+        this.localValues = policy == OversizePolicy.LOCAL_ONLY ? new LocalValues() : null;
+        this.chunkedValues = newChunkedValues();
+    }
+
+    /**
+     * Relates the written items to the slab classes of memcached, see {@link SlabShaping}.
+     *
+     * @param shaping the shaping mode, must not be {@link SlabShaping#NONE}
+     * @param stats the slab accounting
+     */
+    void enableSlabShaping(SlabShaping shaping, SlabStats stats) {
+        Preconditions.checkArgument(shaping != SlabShaping.NONE, "Shaping must not be %s", shaping);
+        this.slabShaping = shaping;
+        this.slabStats = Preconditions.checkNotNull(stats, "Stats");
+        this.chunkedValues = newChunkedValues();
+    }
+
+    private ChunkedValues newChunkedValues() {
+        return new ChunkedValues(currentClient, transcoder, chunkSize, oversizePolicy, sizeStats, localValues,
+            slabShaping, slabStats, guard);
+    }
+
+    /**
+     * Decodes the results of multi-gets with at least the given number of values in parallel,
+     * see {@link ParallelDecoder}.
+     *
+     * @param executor the executor decoding the slices
+     * @param threshold the number of values from which results are decoded in parallel
+     * @param parallelism the number of slices per result
+     */
+    void enableParallelDecoding(ExecutorService executor, int threshold, int parallelism) {
+        this.decoder = new ParallelDecoder(transcoder, executor, threshold, parallelism);
+    }
+
+    /**
+     * Protects the operations of this region by the given circuit breaker, see {@link OperationGuard}.
+     * Every operation waits at most the given timeout. Reads count as a miss if memcache does not answer
+     * in time or the circuit is open, such misses are answered from the near cache, if hot key replication
+     * is enabled and it holds a copy. Puts and removes are skipped while the circuit is open,
+     * writes behind are queued and fail in the writer instead. Writes are not awaited, but their outcome
+     * counts as well. Counters and tag invalidations fail with an {@link IllegalStateException}.
+     *
+     * @param breaker the circuit breaker
+     * @param timeoutMillis the timeout of a single operation in milliseconds
+     */
+    void enableCircuitBreaker(CircuitBreaker breaker, long timeoutMillis) {
+        guard.enable(breaker, timeoutMillis);
+    }
+
+    /**
+     * Enables write behind. Puts and removes are queued and written by a background writer
+     * in pipelined batches, reads see the queued writes. Writers block while the queue is full.
+     * Puts and removes never read memcache, they return the replaced value only if its write
+     * is still queued and null otherwise.
+     *
+     * @param capacity the maximum number of queued keys
+     * @param batchSize the maximum number of writes per batch
+     */
+    void enableWriteBehind(int capacity, int batchSize) {
+        this.writeBehind = new WriteBehindQueue(new WriteBehindSink(), name, capacity, batchSize);
+    }
+
+    /**
+     * Publishes the invalidations of local copies on this node to all other nodes using the given bus,
+     * and applies theirs. Writes behind are published once memcache acknowledged them.
+     *
+     * @param bus the invalidation bus
+     */
+    void enableInvalidationBus(InvalidationBus bus) {
+        this.invalidationBus = Preconditions.checkNotNull(bus, "Bus");
+        bus.register(name, new InvalidationListener());
+    }
+
+    /**
+     * Waits until all queued writes are written, if write behind is enabled.
+     */
+    void flush() {
+        if (writeBehind != null) {
+            writeBehind.flush();
+        }
+    }
+
+    /**
+     * Writes all queued writes and releases the resources of this region.
+     */
+    void dispose() {
+        if (writeBehind != null) {
+            writeBehind.close();
+        }
+    }
+
+    /**
+     * Compares the key stored along with every read value against the requested key,
+     * so that values of other keys with the same encoded key read as a miss.
+     * Needed for key marshallers whose hashes may collide, requires keys that implement equals.
+     */
+    void enableKeyVerification() {
+        this.verifyKeys = true;
+    }
+
+    /**
+     * Checks whether the given value belongs to the given key, see {@link #enableKeyVerification()}.
+     *
+     * @param key the requested key
+     * @param metaValue the value read for the encoded key, may be null
+     * @return true if the value is present and belongs to the key
+     */
+    private boolean isOwnedBy(Object key, @Nullable MetaValue metaValue) {
+        if (metaValue == null) {
+            return false;
+        } else if (!verifyKeys || key.equals(metaValue.getKey())) {
+            return true;
+        } else {
+            LOG.warn("Key '{}' collides with '{}' in region {}", new Object[] {key, metaValue.getKey(), name});
+            return false;
+        }
+    }
+
+    /**
+     * Sets the expiration of entries that are put without an explicit expiration.
+     *
+     * @param expiration the default expiration
+     */
+    void setDefaultExpiration(CacheExpiration expiration) {
+        this.defaultExpiration = Preconditions.checkNotNull(expiration, "Expiration");
+    }
+
+    private boolean isTracking() {
+        return keySet != null;
+    }
+
+    /**
+     * Fails if this region does not track its keys. Regions without key tracking
+     * only support operations on single keys.
+     *
+     * @throws UnsupportedOperationException if keys are not tracked
+     */
+    private void checkTracking() {
+        if (!isTracking()) {
+            throw new UnsupportedOperationException("Keys of region " + name + " are not tracked");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @throws UnsupportedOperationException if this region does not track its keys
+     */
+    @Override
+    public Set<K> keySet() {
+        checkTracking();
+        if (hasLocalKeys()) {
+            return keys;
+        } else {
+            return super.keySet();
+        }
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        Preconditions.checkNotNull(key, "Key");
+        final String encodedKey = keyMarshaller.encode(Serializable.class.cast(key));
+        if (isTracking() && !keySet.contains(encodedKey)) {
+            return false;
+        } else if (negativeCache != null && negativeCache.contains(encodedKey)) {
+            return false;
+        }
+
+        try {
+            return isOwnedBy(key, getInternal(encodedKey));
+        } catch (MemcacheUnavailableException e) {
+            return isOwnedBy(key, fallback(encodedKey, e));
+        }
     }
 
     @Override
@@ -74,18 +385,135 @@ class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V> i
         return entrySet;
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     *   The size is approximate: it is the number of tracked keys, which may include keys that
+     *   memcache already evicted. Use {@link #exactSize()} to reconcile the key set.
+     * </p>
+     *
+     * @throws UnsupportedOperationException if this region does not track its keys
+     */
     @Override
     public int size() {
-        // TODO this is not exact ...
+        checkTracking();
         return keySet.size();
     }
 
+    @Override
+    public int exactSize() {
+        checkTracking();
+        final MemcachedClientIF client = currentClient.get();
+        final List<String> stale = Lists.newArrayList();
+        int size = 0;
+        for (List<String> page : Iterables.partition(keySet, BULK_SIZE)) {
+            final Map<String, CachedData> present = getBulk(client, page);
+            for (String encodedKey : page) {
+                final CachedData cachedData = present.get(encodedKey);
+                if (cachedData == null || (cachedData.getFlags() & MarshallerTranscoder.FLAG_ABSENT) != 0) {
+                    stale.add(encodedKey);
+                } else {
+                    size++;
+                }
+            }
+        }
+        forgetAll(stale);
+        LOG.debug("Reconciled key set of {}, removed {} stale keys", name, stale.size());
+        return size;
+    }
+
+    /**
+     * <p>
+     *   Prunes keys from the key set whose entries memcache already evicted or expired.
+     * </p>
+     * <p>
+     *   Each call sweeps at most the given number of keys, continuing where the previous call stopped.
+     *   Keys whose locally tracked deadline has passed are pruned without any network call,
+     *   all others are checked for presence in getBulk pages.
+     *   The deadlines are not persisted with the key set, so after a restart
+     *   all keys are checked against memcache until they are written again.
+     * </p>
+     *
+     * @param maxKeys the maximum number of keys to sweep
+     * @return the number of pruned keys
+     */
+    int reap(int maxKeys) {
+        Preconditions.checkArgument(maxKeys > 0, "MaxKeys must be positive");
+        if (!isTracking()) {
+            return 0;
+        }
+        reapLock.lock();
+        try {
+            return reapLocked(maxKeys);
+        } finally {
+            reapLock.unlock();
+        }
+    }
+
+    private int reapLocked(int maxKeys) {
+        final long now = System.currentTimeMillis();
+        final List<String> expired = Lists.newArrayList();
+        final List<String> unknown = Lists.newArrayList();
+
+        final Iterator<String> iterator = keySet.iterator();
+        for (int i = 0; i < reapOffset && iterator.hasNext(); i++) {
+            iterator.next();
+        }
+        int swept = 0;
+        while (iterator.hasNext() && swept < maxKeys) {
+            final String encodedKey = iterator.next();
+            final Long deadline = deadlines.get(encodedKey);
+            if (deadline != null && deadline < now) {
+                expired.add(encodedKey);
+            } else {
+                unknown.add(encodedKey);
+            }
+            swept++;
+        }
+        reapOffset = iterator.hasNext() ? reapOffset + swept : 0;
+
+        final MemcachedClientIF client = currentClient.get();
+        for (List<String> page : Iterables.partition(unknown, BULK_SIZE)) {
+            final Map<String, CachedData> present = getBulk(client, page);
+            for (String encodedKey : page) {
+                final CachedData cachedData = present.get(encodedKey);
+                if (cachedData == null || (cachedData.getFlags() & MarshallerTranscoder.FLAG_ABSENT) != 0) {
+                    expired.add(encodedKey);
+                }
+            }
+        }
+
+        forgetAll(expired);
+        // the pruned keys shifted the remaining ones to the front
+        reapOffset = Math.max(0, reapOffset - expired.size());
+        LOG.debug("Reaped {} of {} swept keys in {}", new Object[] {expired.size(), swept, name});
+        return expired.size();
+    }
+
     @Override
     public V get(Object key) {
         Preconditions.checkNotNull(key, "Key");
-        final MetaValue metaValue = getInternal(keyMarshaller.encode(Serializable.class.cast(key)));
+        final String encodedKey = keyMarshaller.encode(Serializable.class.cast(key));
+
+        if (negativeCache != null && negativeCache.contains(encodedKey)) {
+            LOG.trace("Key '{}' is known to be absent", key);
+            return null;
+        }
+
+        MetaValue metaValue;
+        try {
+            metaValue = lookup(encodedKey);
+        } catch (MemcacheUnavailableException e) {
+            metaValue = fallback(encodedKey, e);
+            if (metaValue == null) {
+                return null;
+            }
+        }
 
         if (metaValue == null) {
+            rememberMiss(encodedKey);
+            return null;
+        } else if (!isOwnedBy(key, metaValue)) {
             return null;
         } else {
             @SuppressWarnings("unchecked")
@@ -95,39 +523,295 @@ class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V> i
         }
     }
 
+    @Override
+    public Future<V> getAsync(K key) {
+        final String encodedKey = encodeKey(key);
+        if (negativeCache != null && negativeCache.contains(encodedKey)) {
+            return new ValueFuture(key, encodedKey, (MetaValue) null);
+        }
+        if (writeBehind != null) {
+            final WriteBehindQueue.Pending pending = writeBehind.get(encodedKey);
+            if (pending != null) {
+                return new ValueFuture(key, encodedKey, pending.getValue());
+            }
+        }
+        final MetaValue oversized = localValueOf(encodedKey);
+        if (oversized != null) {
+            return new ValueFuture(key, encodedKey, oversized);
+        }
+        final MetaValue local = nearCache == null ? null : nearCache.get(encodedKey);
+        if (local != null) {
+            return new ValueFuture(key, encodedKey, local);
+        }
+        final String operation = "get of " + encodedKey;
+        try {
+            guard.permit(operation);
+        } catch (MemcacheUnavailableException e) {
+            return new ValueFuture(key, encodedKey, fallback(encodedKey, e));
+        }
+        try {
+            return new ValueFuture(key, encodedKey, currentClient.get().asyncGet(encodedKey, transcoder));
+        } catch (IllegalStateException e) {
+            // the client's operation queue is full
+            return new ValueFuture(key, encodedKey, fallback(encodedKey, guard.rejected(operation, e)));
+        }
+    }
+
+    private void rememberMiss(String encodedKey) {
+        if (negativeCache == null || negativeCache.contains(encodedKey)) {
+            // disabled or the absent marker was already found in memcache
+            return;
+        }
+        negativeCache.add(encodedKey);
+        final String operation = "add of the absent marker of " + encodedKey;
+        try {
+            guard.permit(operation);
+        } catch (MemcacheUnavailableException e) {
+            return;
+        }
+        // add, not set, so that a concurrent put of another node is never overwritten
+        guard.sent(operation,
+            currentClient.get().add(encodedKey, negativeCache.getTtlInSeconds(), MetaValue.absent(), transcoder));
+    }
+
+    /**
+     * Answers a read that failed because memcache is unavailable from the near cache.
+     *
+     * @param encodedKey the memcache key
+     * @param e the failure
+     * @return the local copy or null if there is none
+     */
+    private MetaValue fallback(String encodedKey, MemcacheUnavailableException e) {
+        LOG.debug("Treating '{}' as a miss: {}", encodedKey, e.getMessage());
+        return nearCache == null ? null : nearCache.get(encodedKey);
+    }
+
+    /**
+     * Same as {@link #lookup(String)}, but treats an unavailable memcache as a miss.
+     *
+     * @param encodedKey the memcache key
+     * @return the meta value or null
+     */
+    private MetaValue lookupQuietly(String encodedKey) {
+        try {
+            return lookup(encodedKey);
+        } catch (MemcacheUnavailableException e) {
+            return fallback(encodedKey, e);
+        }
+    }
+
+    /**
+     * Reads a page of raw values, within the operation timeout.
+     *
+     * @param client the memcache client
+     * @param encodedKeys the memcache keys
+     * @return the present values by key
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    private Map<String, CachedData> getBulk(MemcachedClientIF client, Collection<String> encodedKeys) {
+        final String operation = "getBulk of " + encodedKeys.size() + " keys";
+        guard.permit(operation);
+        final Future<Map<String, CachedData>> future;
+        try {
+            future = client.asyncGetBulk(encodedKeys, CachedDataTranscoder.INSTANCE);
+        } catch (IllegalStateException e) {
+            throw guard.rejected(operation, e);
+        }
+        return guard.await(operation, future);
+    }
+
+    /**
+     * Deletes a value that turned out to be stale, unless the circuit is open. Not awaited.
+     *
+     * @param client the memcache client
+     * @param encodedKey the memcache key
+     */
+    private void deleteStale(MemcachedClientIF client, String encodedKey) {
+        final String operation = "delete of stale " + encodedKey;
+        try {
+            guard.permit(operation);
+        } catch (MemcacheUnavailableException e) {
+            return;
+        }
+        guard.sent(operation, client.delete(encodedKey));
+    }
+
+    private MetaValue lookup(String encodedKey) {
+        if (hotKeyTracker == null || !hotKeyTracker.offer(encodedKey)) {
+            return getInternal(encodedKey);
+        }
+
+        final MetaValue local = nearCache.get(encodedKey);
+        if (local != null) {
+            LOG.trace("Read hot key '{}' from near cache", encodedKey);
+            return local;
+        }
+
+        final MetaValue metaValue = getInternal(encodedKey);
+        // idle based values have to be touched in memcache on every read, so they can't be replicated
+        if (metaValue != null && metaValue.getIdleTimeInSeconds() == 0) {
+            nearCache.put(encodedKey, metaValue);
+        }
+        return metaValue;
+    }
+
     private MetaValue getInternal(String encodedKey) {
         Preconditions.checkNotNull(encodedKey, "Encoded Key");
         final MemcachedClientIF client = currentClient.get();
 
-        @SuppressWarnings("unchecked")
-        final MetaValue metaValue = (MetaValue) client.get(encodedKey, transcoder);
+        if (writeBehind != null) {
+            final WriteBehindQueue.Pending pending = writeBehind.get(encodedKey);
+            if (pending != null) {
+                // null if the pending write is a removal
+                return pending.getValue();
+            }
+        }
+
+        final MetaValue local = localValueOf(encodedKey);
+        if (local != null) {
+            return local;
+        }
+
+        return complete(client, encodedKey, fetch(client, encodedKey));
+    }
+
+    /**
+     * Returns the value of the given key if it was too large for memcache and is kept locally,
+     * see {@link OversizePolicy#LOCAL_ONLY}.
+     *
+     * @param encodedKey the memcache key
+     * @return the local value or null if there is none
+     */
+    private MetaValue localValueOf(String encodedKey) {
+        return localValues == null ? null : localValues.get(encodedKey);
+    }
+
+    /**
+     * Turns a value read from memcache into the live meta value, deleting it if it turned out to be
+     * expired or invalidated and touching it if it is idle based.
+     *
+     * @param client the memcache client
+     * @param encodedKey the memcache key
+     * @param stored the decoded value as read from memcache, may be null
+     * @return the live meta value or null if there is none
+     */
+    private MetaValue complete(MemcachedClientIF client, String encodedKey, @Nullable Object stored) {
+        if (stored == null) {
+            return null;
+        }
+
+        final MetaValue metaValue = resolve(encodedKey, stored);
         if (metaValue == null) {
+            // a chunk has been evicted, the remaining ones will expire eventually
+            deleteStale(client, encodedKey);
+            forget(encodedKey);
+            return null;
+        } else if (metaValue.isAbsent()) {
+            if (negativeCache != null) {
+                negativeCache.add(encodedKey);
+            }
             return null;
         } else if (metaValue.isExpired()) {
-            client.delete(encodedKey);
-            keySet.remove(encodedKey);
+            deleteStale(client, encodedKey);
+            forget(encodedKey);
+            return null;
+        } else if (!metaValue.getTags().isEmpty() && !tagVersions.isCurrent(metaValue.getTags())) {
+            LOG.trace("Value for key '{}' has an invalidated tag", encodedKey);
+            deleteStale(client, encodedKey);
+            forget(encodedKey);
             return null;
         } else {
             if (metaValue.getIdleTimeInSeconds() > 0) {
-                // update the value in the cache with last accessed: now; deliberately unsafe use of set
-                metaValue.setLastAccessedAt(new Date());
-                final int timeout = metaValue.calculateNewTimeout();
-                client.set(encodedKey, timeout, metaValue, transcoder);
+                touch(encodedKey, stored, metaValue);
             }
 
             return metaValue;
         }
     }
 
+    /**
+     * Updates the last access of an idle based value in memcache, unless the circuit is open.
+     * Deliberately an unsafe set, concurrent writes may be overwritten.
+     *
+     * @param encodedKey the memcache key
+     * @param stored the decoded value as read from memcache
+     * @param metaValue the meta value to touch
+     */
+    private void touch(String encodedKey, Object stored, MetaValue metaValue) {
+        final String operation = "touch of " + encodedKey;
+        try {
+            guard.permit(operation);
+        } catch (MemcacheUnavailableException e) {
+            return;
+        }
+        final Date now = new Date();
+        metaValue.setLastAccessedAt(now);
+        final int timeout = metaValue.calculateNewTimeout();
+        if (stored instanceof ChunkManifest) {
+            // only the manifest, rewriting the chunks would orphan the current ones
+            guard.sent(operation,
+                chunkedValues.touch(encodedKey, timeout, ChunkManifest.class.cast(stored), now.getTime()));
+        } else {
+            guard.sent(operation, chunkedValues.touch(encodedKey, timeout, metaValue));
+        }
+    }
+
+    /**
+     * Reads the raw value of the given key, within the operation timeout.
+     *
+     * @param client the memcache client
+     * @param encodedKey the memcache key
+     * @return the decoded value or null if there is none
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    private Object fetch(MemcachedClientIF client, String encodedKey) {
+        final String operation = "get of " + encodedKey;
+        guard.permit(operation);
+        final Future<Object> future;
+        try {
+            future = client.asyncGet(encodedKey, transcoder);
+        } catch (IllegalStateException e) {
+            // the client's operation queue is full
+            throw guard.rejected(operation, e);
+        }
+        return guard.await(operation, future);
+    }
+
+    /**
+     * Resolves a value read from memcache into its meta value, reading the chunks of chunked values.
+     *
+     * @param encodedKey the memcache key
+     * @param stored the decoded value as read from memcache
+     * @return the meta value or null if the value was chunked and a chunk is missing
+     */
+    private MetaValue resolve(String encodedKey, Object stored) {
+        if (stored instanceof ChunkManifest) {
+            final ChunkManifest manifest = ChunkManifest.class.cast(stored);
+            final MetaValue metaValue = (MetaValue) chunkedValues.read(encodedKey, manifest);
+            if (metaValue != null && manifest.getAccessedAt() > 0) {
+                metaValue.setLastAccessedAt(new Date(manifest.getAccessedAt()));
+            }
+            return metaValue;
+        } else {
+            return (MetaValue) stored;
+        }
+    }
+
     @Override
     public V put(K key, V value) {
-        return put(key, value, CacheExpirations.ETERNAL);
+        return put(key, value, defaultExpiration);
     }
 
     @Override
     public V put(K key, V value, CacheExpiration expiration) {
+        return put(key, value, expiration, NO_TAGS);
+    }
+
+    @Override
+    public V put(K key, V value, CacheExpiration expiration, String... tags) {
         Preconditions.checkNotNull(key, "Key");
         Preconditions.checkNotNull(expiration, "Expiration");
+        Preconditions.checkNotNull(tags, "Tags");
 
         final int timeout = (int) expiration.getLifeTimeIn(TimeUnit.SECONDS);
         final MemcachedClientIF client = currentClient.get();
@@ -145,60 +829,609 @@ class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V> i
 
         final String encodedKey = keyMarshaller.encode(key);
         LOG.trace("Encoded key: {}", encodedKey);
-        final V previousValue = get(key);
-        client.set(encodedKey, timeout, metaValue, transcoder);
-        keySet.add(encodedKey);
+        final V previousValue = previousValueOf(key, encodedKey);
+        try {
+            store(key, encodedKey, metaValue, timeout, tags);
+        } catch (MemcacheUnavailableException e) {
+            LOG.debug("Not storing '{}': {}", encodedKey, e.getMessage());
+        }
+        invalidateWritten(encodedKey);
         return previousValue;
     }
 
-    @Override
-    public V putIfAbsent(K key, V value) {
-        return putIfAbsent(key, value, CacheExpirations.ETERNAL);
+    private void store(K key, String encodedKey, MetaValue metaValue, int timeout, String... tags) {
+        if (tags.length > 0) {
+            metaValue.setTags(tagVersions.current(tags));
+        }
+        if (writeBehind == null) {
+            final String operation = "set of " + encodedKey;
+            guard.permit(operation);
+            final Future<Boolean> future = chunkedValues.store(encodedKey, timeout, metaValue);
+            guard.sent(operation, future);
+            if (ChunkedValues.isRejected(future)) {
+                // the previous value is gone as well
+                forget(encodedKey);
+                return;
+            }
+        } else {
+            // tracked right away, the writer forgets the key again if the value gets rejected
+            writeBehind.put(encodedKey, metaValue, timeout);
+        }
+        track(key, encodedKey, timeout);
     }
 
-    @Override
-    public V putIfAbsent(K key, V value, CacheExpiration expiration) {
-        return null;
+    private void track(K key, String encodedKey, int timeout) {
+        track(encodedKey, keyIndex == null ? null : SerializationUtils.serialize(key), timeout);
     }
 
-    @Override
-    public V remove(Object key) {
-        Preconditions.checkNotNull(key, "Key");
-        final MemcachedClientIF client = currentClient.get();
-        final String encodedKey = keyMarshaller.encode(Serializable.class.cast(key));
-
-        final V item = get(key);
-        client.delete(encodedKey);
-        keySet.remove(encodedKey);
-        return item;
+    private void track(String encodedKey, byte[] serializedKey, int timeout) {
+        if (!isTracking()) {
+            return;
+        }
+        keySet.add(encodedKey);
+        if (timeout > 0) {
+            deadlines.put(encodedKey, System.currentTimeMillis() + timeout * 1000L);
+        } else {
+            deadlines.remove(encodedKey);
+        }
+        if (keyIndex != null && serializedKey != null) {
+            keyIndex.put(encodedKey, serializedKey);
+        }
     }
 
     @Override
-    public boolean removeIf(Predicate<? super K> predicate) {
-        boolean removedAnything = false;
-        for (final Entry<K, V> entry : entrySet()) {
-            if (predicate.apply(entry.getKey())) {
-                remove(entry.getKey());
-                removedAnything = true;
-            }
+    public void invalidateTag(String tag) {
+        tagVersions.invalidate(tag);
+        // local copies are not checked against the tag versions
+        invalidateAllLocally();
+        if (invalidationBus != null) {
+            invalidationBus.publish(name, null);
+        }
+    }
+
+    private void invalidateAllLocally() {
+        if (nearCache != null) {
+            nearCache.clear();
+        }
+        if (negativeCache != null) {
+            negativeCache.clear();
         }
-        return removedAnything;
     }
 
     @Override
-    public void clear() {
-        currentClient.get().flush();
-        keySet.clear();
+    public long increment(K key, int delta, long initialValue, CacheExpiration expiration) {
+        Preconditions.checkArgument(delta >= 0, "Delta must not be negative");
+        return counters.add(encodeKey(key), delta, initialValue, timeoutOf(expiration));
     }
 
     @Override
-    public String getName() {
-        return name;
+    public long decrement(K key, int delta, long initialValue, CacheExpiration expiration) {
+        Preconditions.checkArgument(delta >= 0, "Delta must not be negative");
+        return counters.add(encodeKey(key), -delta, initialValue, timeoutOf(expiration));
     }
 
     @Override
-    public boolean remove(Object key, Object value) {
-        return false;
+    public Future<Long> incrementAsync(K key, int delta, long initialValue, CacheExpiration expiration) {
+        return counters.addAsync(encodeKey(key), delta, initialValue, timeoutOf(expiration));
+    }
+
+    @Override
+    public Map<K, Long> incrementAll(Map<? extends K, Integer> deltas, long initialValue,
+        CacheExpiration expiration) {
+        Preconditions.checkNotNull(deltas, "Deltas");
+        final Map<String, K> keysByEncodedKey = Maps.newHashMap();
+        final Map<String, Integer> encodedDeltas = Maps.newLinkedHashMap();
+        for (Entry<? extends K, Integer> entry : deltas.entrySet()) {
+            final String encodedKey = encodeKey(entry.getKey());
+            keysByEncodedKey.put(encodedKey, entry.getKey());
+            encodedDeltas.put(encodedKey, Preconditions.checkNotNull(entry.getValue(), "Delta"));
+        }
+
+        final Map<String, Long> values = counters.addAll(encodedDeltas, initialValue, timeoutOf(expiration));
+        final Map<K, Long> result = Maps.newLinkedHashMap();
+        for (Entry<String, Long> entry : values.entrySet()) {
+            result.put(keysByEncodedKey.get(entry.getKey()), entry.getValue());
+        }
+        return result;
+    }
+
+    @Override
+    public long getCounter(K key, long defaultValue) {
+        return counters.get(encodeKey(key), defaultValue);
+    }
+
+    @Override
+    public void removeCounter(K key) {
+        counters.remove(encodeKey(key));
+    }
+
+    @Override
+    public Publisher<Entry<K, V>> scan(int pageSize, Executor executor) {
+        checkTracking();
+        return new ScanPublisher<Entry<K, V>>(new ScanSource(), pageSize, executor);
+    }
+
+    @Override
+    public int exportTo(OutputStream output) throws IOException {
+        Preconditions.checkNotNull(output, "Output");
+        checkTracking();
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(output));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_VERSION);
+
+        final MemcachedClientIF client = currentClient.get();
+        int exported = 0;
+        for (List<String> page : Iterables.partition(keySet, BULK_SIZE)) {
+            final Map<String, CachedData> present = getBulk(client, page);
+            final long now = System.currentTimeMillis();
+            for (String encodedKey : page) {
+                final CachedData cachedData = present.get(encodedKey);
+                if (cachedData == null || (cachedData.getFlags() & MarshallerTranscoder.FLAG_ABSENT) != 0) {
+                    continue;
+                }
+
+                final Long deadline = deadlines.get(encodedKey);
+                final boolean chunked = (cachedData.getFlags() & MarshallerTranscoder.FLAG_CHUNKED) != 0;
+                final MetaValue metaValue;
+                if (deadline == null || chunked) {
+                    metaValue = resolve(encodedKey, transcoder.decode(cachedData));
+                    if (metaValue == null) {
+                        continue;
+                    }
+                } else {
+                    metaValue = null;
+                }
+
+                final int remaining;
+                if (deadline == null) {
+                    // not tracked since the last restart, 0 means eternal in the snapshot
+                    remaining = metaValue.remainingLifeTimeInSeconds(now);
+                    if (remaining < 0) {
+                        LOG.debug("Skipping '{}', its remaining life time is unknown", encodedKey);
+                        continue;
+                    }
+                } else {
+                    remaining = (int) ((deadline - now) / 1000);
+                    if (remaining <= 0) {
+                        // expires before it could be of any use
+                        continue;
+                    }
+                }
+
+                final int flags;
+                final byte[] payload;
+                if (!chunked) {
+                    flags = cachedData.getFlags();
+                    payload = cachedData.getData();
+                } else {
+                    // the chunks are stored under keys of this cluster, so the snapshot contains the whole payload
+                    final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+                    transcoder.writePayload(metaValue, byteStream);
+                    flags = transcoder.flagsOf(metaValue);
+                    payload = byteStream.toByteArray();
+                }
+
+                data.writeBoolean(true);
+                data.writeUTF(encodedKey);
+                final byte[] serializedKey = keyIndex == null ? null : keyIndex.get(encodedKey);
+                if (serializedKey == null) {
+                    data.writeInt(-1);
+                } else {
+                    data.writeInt(serializedKey.length);
+                    data.write(serializedKey);
+                }
+                data.writeInt(remaining);
+                data.writeInt(flags);
+                data.writeInt(payload.length);
+                data.write(payload);
+                exported++;
+            }
+        }
+
+        data.writeBoolean(false);
+        data.flush();
+        LOG.info("Exported {} entries of {}", exported, name);
+        return exported;
+    }
+
+    @Override
+    public int importFrom(InputStream input, int maxInFlight) throws IOException {
+        Preconditions.checkNotNull(input, "Input");
+        Preconditions.checkArgument(maxInFlight > 0, "MaxInFlight must be positive");
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(input));
+        if (data.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot of a memcache region");
+        }
+        final int version = data.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+
+        final MemcachedClientIF client = currentClient.get();
+        final Queue<Future<Boolean>> inFlight = Lists.newLinkedList();
+        final int maxSize = Math.min(chunkedValues.getChunkSize(), transcoder.getMaxSize());
+        int imported = 0;
+        while (data.readBoolean()) {
+            final String encodedKey = data.readUTF();
+            final int keyLength = data.readInt();
+            final byte[] serializedKey = keyLength < 0 ? null : new byte[keyLength];
+            if (serializedKey != null) {
+                data.readFully(serializedKey);
+            }
+            final int timeout = data.readInt();
+            final int flags = data.readInt();
+            final byte[] payload = new byte[data.readInt()];
+            data.readFully(payload);
+
+            if (payload.length <= maxSize) {
+                if (inFlight.size() == maxInFlight) {
+                    guard.await("import", inFlight.remove());
+                }
+                guard.permit("import of " + encodedKey);
+                final CachedData cachedData = new CachedData(flags, payload, transcoder.getMaxSize());
+                inFlight.add(client.set(encodedKey, timeout, cachedData, CachedDataTranscoder.INSTANCE));
+            } else {
+                final MetaValue value = MetaValue.class.cast(
+                    transcoder.decode(new CachedData(flags, payload, Integer.MAX_VALUE)));
+                if (ChunkedValues.isRejected(chunkedValues.store(encodedKey, timeout, value))) {
+                    forget(encodedKey);
+                    invalidate(encodedKey);
+                    continue;
+                }
+            }
+            track(encodedKey, serializedKey, timeout);
+            invalidate(encodedKey);
+            imported++;
+        }
+
+        while (!inFlight.isEmpty()) {
+            guard.await("import", inFlight.remove());
+        }
+        LOG.info("Imported {} entries into {}", imported, name);
+        return imported;
+    }
+
+    private String encodeKey(K key) {
+        return keyMarshaller.encode(Preconditions.checkNotNull(key, "Key"));
+    }
+
+    private int timeoutOf(CacheExpiration expiration) {
+        return (int) Preconditions.checkNotNull(expiration, "Expiration").getLifeTimeIn(TimeUnit.SECONDS);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putIfAbsent(key, value, defaultExpiration);
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value, CacheExpiration expiration) {
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Preconditions.checkNotNull(key, "Key");
+        final MemcachedClientIF client = currentClient.get();
+        final String encodedKey = keyMarshaller.encode(Serializable.class.cast(key));
+
+        final V item = previousValueOf(key, encodedKey);
+        if (writeBehind == null) {
+            final String operation = "delete of " + encodedKey;
+            try {
+                guard.permit(operation);
+                guard.sent(operation, client.delete(encodedKey));
+            } catch (MemcacheUnavailableException e) {
+                // consistent with put, which skips its write as well
+                LOG.debug("Not deleting '{}': {}", encodedKey, e.getMessage());
+            }
+        } else {
+            writeBehind.remove(encodedKey);
+        }
+        if (localValues != null) {
+            localValues.invalidate(encodedKey);
+        }
+        forget(encodedKey);
+        invalidateWritten(encodedKey);
+        return item;
+    }
+
+    /**
+     * Reads the value a put or remove replaces. Untracked regions don't read it at all,
+     * so that their writes stay a single memcache operation. With write behind, only a queued
+     * write is considered, so that writers never block on memcache.
+     *
+     * @param key the key
+     * @param encodedKey the memcache key
+     * @return the replaced value or null if there is none, it is not known locally or the region is untracked
+     */
+    @SuppressWarnings("unchecked")
+    private V previousValueOf(Object key, String encodedKey) {
+        if (!isTracking()) {
+            return null;
+        }
+        final MetaValue previous;
+        if (writeBehind == null) {
+            previous = lookupQuietly(encodedKey);
+        } else {
+            final WriteBehindQueue.Pending pending = writeBehind.get(encodedKey);
+            previous = pending == null ? null : pending.getValue();
+        }
+        return isOwnedBy(key, previous) ? (V) previous.getValue() : null;
+    }
+
+    private void forget(String encodedKey) {
+        if (!isTracking()) {
+            return;
+        }
+        keySet.remove(encodedKey);
+        deadlines.remove(encodedKey);
+        if (keyIndex != null) {
+            keyIndex.remove(encodedKey);
+        }
+    }
+
+    private void forgetAll(Collection<String> encodedKeys) {
+        if (!isTracking()) {
+            return;
+        }
+        keySet.removeAll(encodedKeys);
+        deadlines.keySet().removeAll(encodedKeys);
+        if (keyIndex != null) {
+            keyIndex.keySet().removeAll(encodedKeys);
+        }
+    }
+
+    /**
+     * Whether the original keys of this region can be recovered without network reads,
+     * either by decoding the memcache keys or by the original key index. Keys which the marshaller
+     * hashed because they exceed the key limit are still read from memcache, see {@link #decodeKey(String)}.
+     *
+     * @return true if the original keys are available locally
+     */
+    private boolean hasLocalKeys() {
+        return keyMarshaller.isDecodable() || keyIndex != null;
+    }
+
+    /**
+     * Recovers the original key of the given memcache key locally, or from the stored value
+     * if the marshaller can't decode it. Requires {@link #hasLocalKeys()}.
+     *
+     * @param encodedKey the memcache key
+     * @return the original key or null if the index doesn't know the given key
+     *         or the value of an undecodable key is gone
+     */
+    @SuppressWarnings("unchecked")
+    private K decodeKey(String encodedKey) {
+        if (keyMarshaller.isDecodable()) {
+            final K key = (K) keyMarshaller.decode(encodedKey);
+            // keys exceeding the key limit are hashed, only their values know them
+            return key == null ? storedKeyOf(encodedKey) : key;
+        } else {
+            final byte[] serialized = keyIndex.get(encodedKey);
+            return serialized == null ? null : (K) SerializationUtils.deserialize(serialized);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private K storedKeyOf(String encodedKey) {
+        MetaValue metaValue;
+        try {
+            metaValue = getInternal(encodedKey);
+        } catch (MemcacheUnavailableException e) {
+            metaValue = fallback(encodedKey, e);
+        }
+        return metaValue == null ? null : (K) metaValue.getKey();
+    }
+
+    /**
+     * Invalidates the local copies of the given key on this and, if enabled, all other nodes.
+     *
+     * @param encodedKey the memcache key
+     */
+    private void invalidate(String encodedKey) {
+        invalidateLocally(encodedKey);
+        if (invalidationBus != null) {
+            invalidationBus.publish(name, encodedKey);
+        }
+    }
+
+    /**
+     * Invalidates the local copies of the given key after a write. Other nodes are invalidated
+     * once the write reached memcache, which is later for writes behind, see {@link WriteBehindSink#written(String)}.
+     *
+     * @param encodedKey the memcache key
+     */
+    private void invalidateWritten(String encodedKey) {
+        if (writeBehind == null) {
+            invalidate(encodedKey);
+        } else {
+            invalidateLocally(encodedKey);
+        }
+    }
+
+    private void invalidateLocally(String encodedKey) {
+        if (nearCache != null) {
+            nearCache.invalidate(encodedKey);
+        }
+        if (negativeCache != null) {
+            negativeCache.invalidate(encodedKey);
+        }
+    }
+
+    @Override
+    public boolean removeIf(Predicate<? super K> predicate) {
+        Preconditions.checkNotNull(predicate, "Predicate");
+        checkTracking();
+        final List<String> matching = Lists.newArrayList();
+
+        if (hasLocalKeys()) {
+            // the keys are known locally, no network reads needed
+            for (String encodedKey : keySet) {
+                final K key = decodeKey(encodedKey);
+                if (key != null && predicate.apply(key)) {
+                    matching.add(encodedKey);
+                }
+            }
+        } else {
+            final MemcachedClientIF client = currentClient.get();
+            final List<String> stale = Lists.newArrayList();
+            for (List<String> page : Iterables.partition(keySet, BULK_SIZE)) {
+                final Map<String, Object> values =
+                    decoder.decodeAll(getBulk(client, page));
+                for (String encodedKey : page) {
+                    final Object stored = values.get(encodedKey);
+                    final MetaValue metaValue = stored == null ? null : resolve(encodedKey, stored);
+                    if (metaValue == null || metaValue.isAbsent()) {
+                        stale.add(encodedKey);
+                    } else {
+                        @SuppressWarnings("unchecked")
+                        final K key = (K) metaValue.getKey();
+                        if (predicate.apply(key)) {
+                            matching.add(encodedKey);
+                        }
+                    }
+                }
+            }
+            forgetAll(stale);
+        }
+
+        deleteAll(matching);
+        return !matching.isEmpty();
+    }
+
+    /**
+     * Deletes all given keys in one pipelined batch and waits for the batch to complete.
+     *
+     * @param encodedKeys the keys to delete
+     */
+    private void deleteAll(Collection<String> encodedKeys) {
+        final MemcachedClientIF client = currentClient.get();
+        final List<Future<Boolean>> deletions = Lists.newArrayListWithCapacity(encodedKeys.size());
+        for (String encodedKey : encodedKeys) {
+            if (writeBehind == null) {
+                guard.permit("delete of " + encodedKey);
+                deletions.add(client.delete(encodedKey));
+            } else {
+                writeBehind.remove(encodedKey);
+            }
+        }
+
+        for (Future<Boolean> deletion : deletions) {
+            guard.await("delete", deletion);
+        }
+
+        forgetAll(encodedKeys);
+        for (String encodedKey : encodedKeys) {
+            if (localValues != null) {
+                localValues.invalidate(encodedKey);
+            }
+            invalidateWritten(encodedKey);
+        }
+        LOG.trace("Deleted {} keys", encodedKeys.size());
+    }
+
+    @Override
+    public void clear() {
+        if (writeBehind != null) {
+            writeBehind.clear();
+        }
+        currentClient.get().flush();
+        if (isTracking()) {
+            keySet.clear();
+        }
+        deadlines.clear();
+        if (keyIndex != null) {
+            keyIndex.clear();
+        }
+        if (localValues != null) {
+            localValues.clear();
+        }
+        if (nearCache != null) {
+            nearCache.clear();
+            hotKeyTracker.clear();
+        }
+        if (negativeCache != null) {
+            negativeCache.clear();
+        }
+        if (invalidationBus != null) {
+            invalidationBus.publish(name, null);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int getSize() {
+        return isTracking() ? keySet.size() : -1;
+    }
+
+    @Override
+    public long getValueCount() {
+        return sizeStats.getCount();
+    }
+
+    @Override
+    public long getTotalValueBytes() {
+        return sizeStats.getTotalBytes();
+    }
+
+    @Override
+    public long getMaxValueBytes() {
+        return sizeStats.getMaxBytes();
+    }
+
+    @Override
+    public String[] getValueSizeHistogram() {
+        return sizeStats.getHistogram();
+    }
+
+    @Override
+    public long getRejectedValues() {
+        return sizeStats.getRejected();
+    }
+
+    @Override
+    public long getWastedBytes() {
+        return slabStats == null ? -1 : slabStats.getWastedBytes();
+    }
+
+    @Override
+    public String[] getSlabUsage() {
+        return slabStats == null ? new String[0] : slabStats.getUsage();
+    }
+
+    @Override
+    public double getSuggestedGrowthFactor() {
+        return slabStats == null ? 0 : slabStats.suggestGrowthFactor();
+    }
+
+    @Override
+    public String getCircuitState() {
+        return guard.getState();
+    }
+
+    @Override
+    public String[] getHotKeys() {
+        if (hotKeyTracker == null) {
+            return new String[0];
+        }
+
+        final List<String> hotKeys = Lists.newArrayList();
+        for (Entry<String, Long> entry : hotKeyTracker.getHotKeys().entrySet()) {
+            final MetaValue local = nearCache.get(entry.getKey());
+            final Object key = local == null ? entry.getKey() : local.getKey();
+            hotKeys.add(key + " (" + entry.getValue() + " reads)");
+        }
+        return hotKeys.toArray(new String[hotKeys.size()]);
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        return false;
     }
 
     @Override
@@ -211,6 +1444,245 @@ class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V> i
         return null;
     }
 
+    /**
+     * Applies the invalidations of other nodes.
+     */
+    private final class InvalidationListener implements InvalidationBus.Listener {
+
+        @Override
+        public void invalidate(String encodedKey) {
+            invalidateLocally(encodedKey);
+            // another node wrote the key, so an oversized value of this node is outdated
+            if (localValues != null) {
+                localValues.invalidate(encodedKey);
+            }
+        }
+
+        @Override
+        public void invalidateAll() {
+            invalidateAllLocally();
+            if (localValues != null) {
+                localValues.clear();
+            }
+        }
+
+    }
+
+    /**
+     * Future of {@link #getAsync(Serializable)}. The value is completed once, by the first thread
+     * that queries it, in the same way {@link #get(Object)} completes it, including the operation timeout.
+     */
+    private final class ValueFuture implements Future<V> {
+
+        private final Object key;
+        private final String encodedKey;
+        // null if the value is known locally
+        private final Future<Object> future;
+        // held while completing, which may read chunks or delete stale values
+        private final Lock lock = new ReentrantLock();
+        private boolean completed;
+        private MetaValue metaValue;
+
+        ValueFuture(Object key, String encodedKey, Future<Object> future) {
+            this.key = key;
+            this.encodedKey = encodedKey;
+            this.future = future;
+        }
+
+        ValueFuture(Object key, String encodedKey, @Nullable MetaValue local) {
+            this.key = key;
+            this.encodedKey = encodedKey;
+            this.future = null;
+            this.completed = true;
+            this.metaValue = local;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future != null && future.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return future != null && future.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return future == null || future.isDone();
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            return value();
+        }
+
+        @Override
+        public V get(long duration, TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            if (future != null) {
+                try {
+                    // a shorter timeout of the caller, the operation timeout applies in any case
+                    future.get(duration, unit);
+                } catch (ExecutionException e) {
+                    // recorded and answered from the near cache by value()
+                    LOG.trace("Get of '{}' failed: {}", encodedKey, e.getMessage());
+                }
+            }
+            return value();
+        }
+
+        @SuppressWarnings("unchecked")
+        private V value() {
+            lock.lock();
+            try {
+                if (!completed) {
+                    try {
+                        final Object stored = guard.await("get of " + encodedKey, future);
+                        metaValue = complete(currentClient.get(), encodedKey, stored);
+                        if (metaValue == null) {
+                            rememberMiss(encodedKey);
+                        }
+                    } catch (MemcacheUnavailableException e) {
+                        metaValue = fallback(encodedKey, e);
+                    }
+                    completed = true;
+                }
+                return isOwnedBy(key, metaValue) ? (V) metaValue.getValue() : null;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * Reads the pages of a {@link #scan(int, Executor)}.
+     */
+    private final class ScanSource implements ScanPublisher.Source<Entry<K, V>> {
+
+        @Override
+        public Iterator<String> keys() {
+            return keySet.iterator();
+        }
+
+        @Override
+        public Future<Map<String, CachedData>> fetch(List<String> encodedKeys) {
+            final String operation = "scan of " + encodedKeys.size() + " keys";
+            guard.permit(operation);
+            try {
+                return currentClient.get().asyncGetBulk(encodedKeys, CachedDataTranscoder.INSTANCE);
+            } catch (IllegalStateException e) {
+                throw guard.rejected(operation, e);
+            }
+        }
+
+        @Override
+        public Map<String, CachedData> await(Future<Map<String, CachedData>> future) {
+            return guard.await("scan", future);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public List<Entry<K, V>> complete(List<String> encodedKeys, Map<String, CachedData> values) {
+            final MemcachedClientIF client = currentClient.get();
+            final Map<String, Object> decoded = decoder.decodeAll(values);
+            final List<Entry<K, V>> entries = Lists.newArrayListWithCapacity(values.size());
+            for (String encodedKey : encodedKeys) {
+                final WriteBehindQueue.Pending pending = writeBehind == null ? null : writeBehind.get(encodedKey);
+                final MetaValue oversized = localValueOf(encodedKey);
+                final MetaValue metaValue;
+                if (pending != null) {
+                    metaValue = pending.getValue();
+                } else if (oversized != null) {
+                    metaValue = oversized;
+                } else {
+                    metaValue = MemcacheCacheRegion.this.complete(client, encodedKey, decoded.get(encodedKey));
+                }
+                if (metaValue != null) {
+                    entries.add(Maps.immutableEntry((K) metaValue.getKey(), (V) metaValue.getValue()));
+                }
+            }
+            return entries;
+        }
+
+    }
+
+    /**
+     * Writes the queued writes of the write behind queue.
+     */
+    private final class WriteBehindSink implements WriteBehindQueue.Sink {
+
+        @Override
+        public Future<Boolean> store(String encodedKey, MetaValue value, int timeout) {
+            final String operation = "set of " + encodedKey;
+            guard.permit(operation);
+            final Future<Boolean> future = chunkedValues.store(encodedKey, timeout, value);
+            guard.sent(operation, future);
+            if (ChunkedValues.isRejected(future)) {
+                final WriteBehindQueue.Pending latest = writeBehind.get(encodedKey);
+                // unless a later write of the key is pending already
+                if (latest == null || latest.getValue() == value) {
+                    forget(encodedKey);
+                }
+            }
+            return future;
+        }
+
+        @Override
+        public Future<Boolean> delete(String encodedKey) {
+            final String operation = "delete of " + encodedKey;
+            guard.permit(operation);
+            final Future<Boolean> future = currentClient.get().delete(encodedKey);
+            guard.sent(operation, future);
+            return future;
+        }
+
+        @Override
+        public void written(String encodedKey) {
+            if (invalidationBus != null) {
+                // other nodes would otherwise reload the previous value before the write arrived
+                invalidationBus.publish(name, encodedKey);
+            }
+        }
+
+    }
+
+    /**
+     * Key set view that works on locally available keys only, see {@link #hasLocalKeys()}.
+     */
+    private final class LocalKeySet extends AbstractSet<K> {
+
+        @Override
+        public Iterator<K> iterator() {
+            final Iterator<K> iterator = Iterators.transform(keySet.iterator(), new Function<String, K>() {
+
+                @Override
+                public K apply(String encodedKey) {
+                    return decodeKey(encodedKey);
+                }
+
+            });
+            return Iterators.filter(iterator, Predicates.notNull());
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Serializable && keySet.contains(keyMarshaller.encode(Serializable.class.cast(o)));
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            return contains(o) && MemcacheCacheRegion.this.remove(o) != null;
+        }
+
+        @Override
+        public int size() {
+            return keySet.size();
+        }
+
+    }
+
     /**
      * Memcache specific implementation of the entry set.
      */
@@ -218,12 +1690,13 @@ class MemcacheCacheRegion<K extends Serializable, V> extends AbstractMap<K, V> i
 
         @Override
         public Iterator<Entry<K, V>> iterator() {
+            checkTracking();
             return new EntrySetIterator();
         }
 
         @Override
         public int size() {
-            return keySet.size();
+            return MemcacheCacheRegion.this.size();
         }
 
     }
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * JMX interface of a memcache cache region.
+ *
+ * @since 1.0
+ */
+public interface MemcacheCacheRegionMBean {
+
+    /**
+     * The name of the cache region.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * The number of keys known to the key set of this region.
+     *
+     * @return the number of tracked keys, -1 if this region does not track its keys
+     */
+    int getSize();
+
+    /**
+     * The keys that are currently considered hot and are replicated locally,
+     * each with its estimated read count.
+     *
+     * @return the hot keys, empty if hot key detection is disabled
+     */
+    String[] getHotKeys();
+
+    /**
+     * The number of values written to memcache since startup, excluding rejected values.
+     * Every write counts, including overwrites of the same key, but not the touches of idle based values.
+     *
+     * @return the number of written values
+     */
+    long getValueCount();
+
+    /**
+     * The total size of the encoded payloads written to memcache since startup, not the size
+     * of the values currently stored.
+     *
+     * @return the total size in bytes
+     */
+    long getTotalValueBytes();
+
+    /**
+     * The size of the largest encoded payload written to memcache since startup.
+     *
+     * @return the maximum size in bytes
+     */
+    long getMaxValueBytes();
+
+    /**
+     * The distribution of the sizes of the written payloads, in power of two buckets.
+     *
+     * @return one line per non-empty bucket
+     */
+    String[] getValueSizeHistogram();
+
+    /**
+     * The number of values which exceeded the chunk size and were not written to memcache,
+     * see {@link OversizePolicy}.
+     *
+     * @return the number of rejected values
+     */
+    long getRejectedValues();
+
+    /**
+     * The bytes memcached wastes for the items written since startup, as the items don't fill
+     * the chunks of their slab classes. Every write counts, including overwrites, but not the touches
+     * of idle based values.
+     *
+     * @return the wasted bytes, -1 if slab shaping is disabled
+     */
+    long getWastedBytes();
+
+    /**
+     * The item counts and the wasted memory of the slab classes that received items of this region.
+     *
+     * @return one line per used slab class, empty if slab shaping is disabled
+     */
+    String[] getSlabUsage();
+
+    /**
+     * The memcached growth factor (-f) which would waste the least memory for the items of this region.
+     *
+     * @return the suggested growth factor, 0 if slab shaping is disabled
+     */
+    double getSuggestedGrowthFactor();
+
+    /**
+     * The state of the circuit breaker of this region.
+     *
+     * @return CLOSED, OPEN or HALF_OPEN, DISABLED if the circuit breaker is disabled
+     */
+    String getCircuitState();
+
+}
@@ -16,15 +16,43 @@
 
 package de.cosmocode.palava.cache;
 
+import com.google.common.base.Preconditions;
 import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Binding;
 import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Provider;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+import com.google.inject.name.Names;
+import de.cosmocode.palava.cache.keysets.KeyIndexFactory;
 import de.cosmocode.palava.cache.keysets.KeySetFactory;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
 import de.cosmocode.palava.ipc.Current;
 import net.spy.memcached.MemcachedClientIF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Memcache implementation of the cache repository.
@@ -32,21 +60,71 @@ import java.util.concurrent.ConcurrentMap;
  * @author Oliver Lorenz
  * @since 1.0
  */
-class MemcacheCacheRepository implements CacheRepository {
+@Singleton
+class MemcacheCacheRepository implements CacheRepository, Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheCacheRepository.class);
 
     private final KeySetFactory keySetFactory;
     private final Provider<MemcachedClientIF> currentClient;
+    private final Injector injector;
+    private KeyIndexFactory keyIndexFactory;
     private KeyMarshaller keyMarshaller = KeyMarshallers.HASHED_JSON;
     private Marshaller marshaller = JacksonMarshaller.INSTANCE;
+    private RegistryMarshaller registryMarshaller;
+    private Codec codec = Codec.JSON;
+    private boolean compression;
+    private int asyncDecodeThreshold;
+
+    private int parallelDecodeThreshold;
+    private int parallelDecodeParallelism = Runtime.getRuntime().availableProcessors();
+    private ExecutorService parallelDecodeExecutor;
+    private boolean ownsParallelDecodeExecutor;
+    private KeyTracking keyTracking = KeyTracking.PERSISTENT;
+
+    private int hotKeyCapacity;
+    private long hotKeyThreshold = 1000;
+    private long hotKeyWindow = 100000;
+    private long hotKeyTtlMillis = 1000;
+
+    private int negativeTtlSeconds;
+    private int negativeCapacity = 10000;
+
+    private int chunkSize = MemcacheCacheRegion.DEFAULT_CHUNK_SIZE;
+    private OversizePolicy oversizePolicy = OversizePolicy.CHUNK;
+
+    private SlabShaping slabShaping = SlabShaping.NONE;
+    private int slabMinSpace = SlabClasses.DEFAULT_MIN_SPACE;
+    private double slabGrowthFactor = SlabClasses.DEFAULT_GROWTH_FACTOR;
+    private int slabItemSizeMax = SlabClasses.DEFAULT_ITEM_SIZE_MAX;
+
+    private int circuitFailureThreshold;
+    private long circuitTimeoutMillis = 100;
+    private long circuitSlowCallMillis = 50;
+    private long circuitOpenMillis = 5000;
+
+    private int writeBehindCapacity;
+    private int writeBehindBatchSize = 500;
+
+    private long invalidationIntervalMillis;
+    private int invalidationTtlSeconds = 300;
+    private InvalidationTransport invalidationTransport;
+    private InvalidationBus invalidationBus;
+
+    private int reaperIntervalSeconds;
+    private int reaperBatchSize = 1000;
+    private ScheduledExecutorService reaper;
 
     private final ConcurrentMap<String, CacheRegion<?, ?>> cacheRegionLookup = new MapMaker().makeMap();
 
     @Inject
     MemcacheCacheRepository(
             final KeySetFactory keySetFactory,
-            @Current final Provider<MemcachedClientIF> currentClient) {
+            @Current final Provider<MemcachedClientIF> currentClient,
+            final Injector injector) {
         this.keySetFactory = keySetFactory;
         this.currentClient = currentClient;
+        this.injector = injector;
     }
 
     @Inject(optional = true)
@@ -59,21 +137,409 @@ class MemcacheCacheRepository implements CacheRepository {
         this.marshaller = marshaller;
     }
 
+    @Inject(optional = true)
+    public void setRegistryMarshaller(final RegistryMarshaller registryMarshaller) {
+        this.registryMarshaller = registryMarshaller;
+    }
+
+    @Inject(optional = true)
+    public void setCodec(@Named(MemcacheCacheConfig.CODEC) Codec codec) {
+        this.codec = codec;
+    }
+
+    @Inject(optional = true)
+    public void setCompression(@Named(MemcacheCacheConfig.COMPRESSION) boolean compression) {
+        this.compression = compression;
+    }
+
+    @Inject(optional = true)
+    public void setAsyncDecodeThreshold(@Named(MemcacheCacheConfig.ASYNC_DECODE_THRESHOLD) int threshold) {
+        this.asyncDecodeThreshold = threshold;
+    }
+
+    @Inject(optional = true)
+    public void setParallelDecodeThreshold(@Named(MemcacheCacheConfig.PARALLEL_DECODE_THRESHOLD) int threshold) {
+        this.parallelDecodeThreshold = threshold;
+    }
+
+    @Inject(optional = true)
+    public void setParallelDecodeParallelism(
+        @Named(MemcacheCacheConfig.PARALLEL_DECODE_PARALLELISM) int parallelism) {
+        this.parallelDecodeParallelism = parallelism;
+    }
+
+    @Inject(optional = true)
+    public void setParallelDecodeExecutor(
+        @Named(MemcacheCacheConfig.PARALLEL_DECODE_EXECUTOR) ExecutorService executor) {
+        this.parallelDecodeExecutor = executor;
+    }
+
+    @Inject(optional = true)
+    public void setKeyTracking(@Named(MemcacheCacheConfig.KEY_TRACKING) KeyTracking keyTracking) {
+        this.keyTracking = keyTracking;
+    }
+
+    @Inject(optional = true)
+    public void setKeyIndexFactory(final KeyIndexFactory keyIndexFactory) {
+        this.keyIndexFactory = keyIndexFactory;
+    }
+
+    @Inject(optional = true)
+    public void setHotKeyCapacity(@Named(MemcacheCacheConfig.HOT_KEY_CAPACITY) int hotKeyCapacity) {
+        this.hotKeyCapacity = hotKeyCapacity;
+    }
+
+    @Inject(optional = true)
+    public void setHotKeyThreshold(@Named(MemcacheCacheConfig.HOT_KEY_THRESHOLD) long hotKeyThreshold) {
+        this.hotKeyThreshold = hotKeyThreshold;
+    }
+
+    @Inject(optional = true)
+    public void setHotKeyWindow(@Named(MemcacheCacheConfig.HOT_KEY_WINDOW) long hotKeyWindow) {
+        this.hotKeyWindow = hotKeyWindow;
+    }
+
+    @Inject(optional = true)
+    public void setHotKeyTtlMillis(@Named(MemcacheCacheConfig.HOT_KEY_TTL_MILLIS) long hotKeyTtlMillis) {
+        this.hotKeyTtlMillis = hotKeyTtlMillis;
+    }
+
+    @Inject(optional = true)
+    public void setNegativeTtlSeconds(@Named(MemcacheCacheConfig.NEGATIVE_TTL_SECONDS) int negativeTtlSeconds) {
+        this.negativeTtlSeconds = negativeTtlSeconds;
+    }
+
+    @Inject(optional = true)
+    public void setNegativeCapacity(@Named(MemcacheCacheConfig.NEGATIVE_CAPACITY) int negativeCapacity) {
+        this.negativeCapacity = negativeCapacity;
+    }
+
+    @Inject(optional = true)
+    public void setChunkSize(@Named(MemcacheCacheConfig.CHUNK_SIZE) int chunkSize) {
+        Preconditions.checkArgument(chunkSize > 0 && chunkSize <= MemcacheCacheRegion.MAX_CHUNK_SIZE,
+            "Chunk size must be between 1 and %s", MemcacheCacheRegion.MAX_CHUNK_SIZE);
+        this.chunkSize = chunkSize;
+    }
+
+    @Inject(optional = true)
+    public void setOversizePolicy(@Named(MemcacheCacheConfig.OVERSIZE_POLICY) OversizePolicy oversizePolicy) {
+        this.oversizePolicy = oversizePolicy;
+    }
+
+    @Inject(optional = true)
+    public void setSlabShaping(@Named(MemcacheCacheConfig.SLAB_SHAPING) SlabShaping slabShaping) {
+        this.slabShaping = slabShaping;
+    }
+
+    @Inject(optional = true)
+    public void setSlabMinSpace(@Named(MemcacheCacheConfig.SLAB_MIN_SPACE) int minSpace) {
+        this.slabMinSpace = minSpace;
+    }
+
+    @Inject(optional = true)
+    public void setSlabGrowthFactor(@Named(MemcacheCacheConfig.SLAB_GROWTH_FACTOR) double growthFactor) {
+        this.slabGrowthFactor = growthFactor;
+    }
+
+    @Inject(optional = true)
+    public void setSlabItemSizeMax(@Named(MemcacheCacheConfig.SLAB_ITEM_SIZE_MAX) int itemSizeMax) {
+        this.slabItemSizeMax = itemSizeMax;
+    }
+
+    @Inject(optional = true)
+    public void setCircuitFailureThreshold(@Named(MemcacheCacheConfig.CIRCUIT_FAILURE_THRESHOLD) int threshold) {
+        this.circuitFailureThreshold = threshold;
+    }
+
+    @Inject(optional = true)
+    public void setCircuitTimeoutMillis(@Named(MemcacheCacheConfig.CIRCUIT_TIMEOUT_MILLIS) long timeoutMillis) {
+        this.circuitTimeoutMillis = timeoutMillis;
+    }
+
+    @Inject(optional = true)
+    public void setCircuitSlowCallMillis(@Named(MemcacheCacheConfig.CIRCUIT_SLOW_CALL_MILLIS) long slowCallMillis) {
+        this.circuitSlowCallMillis = slowCallMillis;
+    }
+
+    @Inject(optional = true)
+    public void setCircuitOpenMillis(@Named(MemcacheCacheConfig.CIRCUIT_OPEN_MILLIS) long openMillis) {
+        this.circuitOpenMillis = openMillis;
+    }
+
+    @Inject(optional = true)
+    public void setWriteBehindCapacity(@Named(MemcacheCacheConfig.WRITE_BEHIND_CAPACITY) int capacity) {
+        this.writeBehindCapacity = capacity;
+    }
+
+    @Inject(optional = true)
+    public void setWriteBehindBatchSize(@Named(MemcacheCacheConfig.WRITE_BEHIND_BATCH_SIZE) int batchSize) {
+        this.writeBehindBatchSize = batchSize;
+    }
+
+    @Inject(optional = true)
+    public void setInvalidationIntervalMillis(@Named(MemcacheCacheConfig.INVALIDATION_INTERVAL_MILLIS) long millis) {
+        this.invalidationIntervalMillis = millis;
+    }
+
+    @Inject(optional = true)
+    public void setInvalidationTtlSeconds(@Named(MemcacheCacheConfig.INVALIDATION_TTL_SECONDS) int ttlSeconds) {
+        this.invalidationTtlSeconds = ttlSeconds;
+    }
+
+    @Inject(optional = true)
+    public void setInvalidationTransport(InvalidationTransport invalidationTransport) {
+        this.invalidationTransport = invalidationTransport;
+    }
+
+    @Inject(optional = true)
+    public void setReaperIntervalSeconds(@Named(MemcacheCacheConfig.REAPER_INTERVAL_SECONDS) int seconds) {
+        this.reaperIntervalSeconds = seconds;
+    }
+
+    @Inject(optional = true)
+    public void setReaperBatchSize(@Named(MemcacheCacheConfig.REAPER_BATCH_SIZE) int reaperBatchSize) {
+        this.reaperBatchSize = reaperBatchSize;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        if (reaperIntervalSeconds <= 0) {
+            return;
+        }
+
+        reaper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "memcache-keyset-reaper");
+                thread.setDaemon(true);
+                return thread;
+            }
+
+        });
+        reaper.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                reapAll();
+            }
+
+        }, reaperIntervalSeconds, reaperIntervalSeconds, TimeUnit.SECONDS);
+        LOG.info("Reaping key sets every {} seconds, {} keys per region", reaperIntervalSeconds, reaperBatchSize);
+    }
+
+    private void reapAll() {
+        for (CacheRegion<?, ?> region : cacheRegionLookup.values()) {
+            try {
+                MemcacheCacheRegion.class.cast(region).reap(reaperBatchSize);
+            } catch (RuntimeException e) {
+                // the next run will try again, but the reaper must not die
+                LOG.warn("Unable to reap key set of region " + region.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        if (reaper != null) {
+            reaper.shutdownNow();
+        }
+        for (CacheRegion<?, ?> region : cacheRegionLookup.values()) {
+            MemcacheCacheRegion.class.cast(region).dispose();
+            unregister(region.getName());
+        }
+        synchronized (this) {
+            if (invalidationBus != null) {
+                invalidationBus.close();
+            }
+            if (ownsParallelDecodeExecutor) {
+                parallelDecodeExecutor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Returns the executor of parallel decoding, creating a pool of daemon threads
+     * on first use if none is bound.
+     *
+     * @return the executor
+     */
+    private synchronized ExecutorService parallelDecodeExecutor() {
+        if (parallelDecodeExecutor == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            // the calling thread decodes one slice itself
+            final int threads = Math.max(1, parallelDecodeParallelism - 1);
+            parallelDecodeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "memcache-decoder-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+
+            });
+            ownsParallelDecodeExecutor = true;
+            LOG.info("Decoding multi-gets of at least {} values on {} threads", parallelDecodeThreshold, threads);
+        }
+        return parallelDecodeExecutor;
+    }
+
+    /**
+     * Returns the invalidation bus, which is created on first use.
+     *
+     * @return the invalidation bus
+     */
+    private synchronized InvalidationBus invalidationBus() {
+        if (invalidationBus == null) {
+            final InvalidationTransport transport = invalidationTransport == null ?
+                new MemcacheInvalidationTransport(currentClient, invalidationTtlSeconds) : invalidationTransport;
+            invalidationBus = new InvalidationBus(transport, TimeUnit.SECONDS.toMillis(invalidationTtlSeconds));
+            invalidationBus.start(invalidationIntervalMillis);
+            LOG.info("Exchanging invalidations every {}ms using {}", invalidationIntervalMillis, transport);
+        }
+        return invalidationBus;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
     public <K extends Serializable, V> CacheRegion<K, V> getRegion(final String name) {
         if (cacheRegionLookup.containsKey(name)) {
             return (CacheRegion<K, V>) cacheRegionLookup.get(name);
         } else {
-            final CacheRegion<K, V> newCacheRegion = new MemcacheCacheRegion<K, V>(keySetFactory, currentClient,
-                    keyMarshaller, marshaller, name);
+            final MemcacheRegionConfig config = configOf(name);
+            final KeyMarshaller regionKeyMarshaller = orDefault(config.getKeyMarshaller(), keyMarshaller);
+            final KeyTracking regionKeyTracking = orDefault(config.getKeyTracking(), keyTracking);
+            final MarshallerTranscoder transcoder = new MarshallerTranscoder(
+                orDefault(config.getCodec(), codec), marshallers(), orDefault(config.getCompression(), compression));
+            transcoder.setAsyncDecodeThreshold(asyncDecodeThreshold);
+
+            final MemcacheCacheRegion<K, V> newCacheRegion = new MemcacheCacheRegion<K, V>(
+                keySetOf(name, regionKeyTracking), currentClient, regionKeyMarshaller, transcoder, name);
+            newCacheRegion.setChunkSize(orDefault(config.getChunkSize(), chunkSize));
+            if (orDefault(config.getVerifyKeys(), regionKeyMarshaller instanceof MurmurKeyMarshaller)) {
+                newCacheRegion.enableKeyVerification();
+            }
+            newCacheRegion.setOversizePolicy(orDefault(config.getOversizePolicy(), oversizePolicy));
+            final SlabShaping regionSlabShaping = orDefault(config.getSlabShaping(), slabShaping);
+            if (regionSlabShaping != SlabShaping.NONE) {
+                newCacheRegion.enableSlabShaping(regionSlabShaping,
+                    new SlabStats(slabMinSpace, slabGrowthFactor, slabItemSizeMax));
+            }
+            if (parallelDecodeThreshold > 0 && parallelDecodeParallelism > 1) {
+                newCacheRegion.enableParallelDecoding(
+                    parallelDecodeExecutor(), parallelDecodeThreshold, parallelDecodeParallelism);
+            }
+            if (config.getDefaultExpiration() != null) {
+                newCacheRegion.setDefaultExpiration(config.getDefaultExpiration());
+            }
+            if (keyIndexFactory != null && regionKeyTracking == KeyTracking.PERSISTENT &&
+                !regionKeyMarshaller.isDecodable()) {
+                newCacheRegion.enableKeyIndex(keyIndexFactory.create(name));
+            }
+            final int regionHotKeyCapacity = orDefault(config.getHotKeyCapacity(), hotKeyCapacity);
+            if (regionHotKeyCapacity > 0) {
+                newCacheRegion.enableHotKeyReplication(
+                    new HotKeyTracker(regionHotKeyCapacity, hotKeyThreshold, hotKeyWindow),
+                    new NearCache(orDefault(config.getNearCacheTtlMillis(), hotKeyTtlMillis), regionHotKeyCapacity)
+                );
+            }
+            final int regionNegativeTtlSeconds = orDefault(config.getNegativeTtlSeconds(), negativeTtlSeconds);
+            if (regionNegativeTtlSeconds > 0) {
+                newCacheRegion.enableNegativeCaching(new NegativeCache(regionNegativeTtlSeconds, negativeCapacity));
+            }
+            if (circuitFailureThreshold > 0) {
+                newCacheRegion.enableCircuitBreaker(
+                    new CircuitBreaker(circuitFailureThreshold, circuitSlowCallMillis, circuitOpenMillis),
+                    circuitTimeoutMillis
+                );
+            }
+            final int regionWriteBehindCapacity = orDefault(config.getWriteBehindCapacity(), writeBehindCapacity);
+            if (regionWriteBehindCapacity > 0) {
+                newCacheRegion.enableWriteBehind(regionWriteBehindCapacity, writeBehindBatchSize);
+            }
             final CacheRegion<?, ?> previousCacheRegion = cacheRegionLookup.putIfAbsent(name, newCacheRegion);
             if (previousCacheRegion == null) {
+                // registered by name, so only the region that won the race may subscribe
+                if (invalidationIntervalMillis > 0) {
+                    newCacheRegion.enableInvalidationBus(invalidationBus());
+                }
+                register(newCacheRegion);
                 return newCacheRegion;
             } else {
+                // stops the writer of the unused region
+                newCacheRegion.dispose();
                 return (CacheRegion<K, V>) previousCacheRegion;
             }
         }
     }
 
+    private MemcacheRegionConfig configOf(String name) {
+        final Key<MemcacheRegionConfig> key = Key.get(MemcacheRegionConfig.class, Names.named(name));
+        final Binding<?> binding = injector.getBindings().get(key);
+        if (binding == null) {
+            return new MemcacheRegionConfig();
+        } else {
+            return MemcacheRegionConfig.class.cast(binding.getProvider().get());
+        }
+    }
+
+    private static <T> T orDefault(T value, T defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+
+    private Set<String> keySetOf(String name, KeyTracking tracking) {
+        switch (tracking) {
+            case NONE:
+                return null;
+            case MEMORY:
+                return Sets.newSetFromMap(new MapMaker().<String, Boolean>makeMap());
+            case PERSISTENT:
+                return keySetFactory.create(name);
+            default:
+                throw new AssertionError("Unknown key tracking " + tracking);
+        }
+    }
+
+    private Map<Codec, Marshaller> marshallers() {
+        final Map<Codec, Marshaller> marshallers = Maps.newEnumMap(Codec.class);
+        // a custom marshaller replaces json, which is the codec of values stored without codec information
+        marshallers.put(Codec.JSON, marshaller);
+        marshallers.put(Codec.SMILE, SmileMarshaller.INSTANCE);
+        if (registryMarshaller != null) {
+            marshallers.put(Codec.REGISTRY, registryMarshaller);
+        }
+        return marshallers;
+    }
+
+    private ObjectName objectNameOf(String regionName) throws JMException {
+        return new ObjectName(
+            "de.cosmocode.palava.cache:type=MemcacheCacheRegion,name=" + ObjectName.quote(regionName));
+    }
+
+    private void register(MemcacheCacheRegion<?, ?> region) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = objectNameOf(region.getName());
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(new StandardMBean(region, MemcacheCacheRegionMBean.class), objectName);
+        } catch (JMException e) {
+            LOG.warn("Unable to register cache region {} in JMX: {}", region.getName(), e);
+        }
+    }
+
+    private void unregister(String regionName) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName objectName = objectNameOf(regionName);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            LOG.warn("Unable to unregister cache region {} from JMX: {}", regionName, e);
+        }
+    }
+
 }
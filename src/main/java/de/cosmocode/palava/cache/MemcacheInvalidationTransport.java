@@ -0,0 +1,144 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.inject.Provider;
+import net.spy.memcached.MemcachedClientIF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *   Invalidation transport which keeps a version log in memcache itself. Every published batch
+ *   gets the next number of a memcache counter and is stored under a key containing that number.
+ *   Nodes poll the counter and read all batches they have not seen yet with one multi-get.
+ * </p>
+ * <p>
+ *   A batch which is missing for longer than the publishing of a batch may take,
+ *   e.g. because memcache evicted it, is reported as a loss.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class MemcacheInvalidationTransport implements InvalidationTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemcacheInvalidationTransport.class);
+
+    private static final String HEAD = "invalidation.head";
+
+    private static final String ENTRY = "invalidation.log.";
+
+    // nodes which fall further behind give up and invalidate everything
+    private static final int MAX_BACKLOG = 1000;
+
+    private static final long MAX_MISSING_MILLIS = 5000;
+
+    private final Provider<MemcachedClientIF> currentClient;
+    private final int ttlSeconds;
+
+    // only accessed by the polling thread
+    private long lastSeen = -1;
+    private long missingSince;
+
+    /**
+     * Creates a new transport.
+     *
+     * @param currentClient the memcache client provider
+     * @param ttlSeconds how long published batches are kept, must exceed the poll interval of all nodes
+     */
+    public MemcacheInvalidationTransport(Provider<MemcachedClientIF> currentClient, int ttlSeconds) {
+        Preconditions.checkArgument(ttlSeconds > 0, "TTL must be positive");
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+        this.ttlSeconds = ttlSeconds;
+    }
+
+    @Override
+    public void publish(Collection<InvalidationEvent> events) {
+        final MemcachedClientIF client = currentClient.get();
+        final long sequence = client.incr(HEAD, 1, 1);
+        client.set(ENTRY + sequence, ttlSeconds, InvalidationEvent.encode(events));
+    }
+
+    @Override
+    public List<InvalidationEvent> poll() throws IOException {
+        final MemcachedClientIF client = currentClient.get();
+        final Object head = client.get(HEAD);
+        if (head == null) {
+            // nothing was ever published, or the counter was evicted and starts over with the next batch
+            final boolean lost = lastSeen > 0;
+            lastSeen = 0;
+            if (lost) {
+                return Collections.singletonList(InvalidationEvent.all());
+            }
+            return Collections.emptyList();
+        }
+
+        final long current = Long.parseLong(head.toString().trim());
+        if (lastSeen < 0) {
+            lastSeen = current;
+            return Collections.emptyList();
+        } else if (current < lastSeen || current - lastSeen > MAX_BACKLOG) {
+            LOG.info("Lost invalidations between {} and {}", lastSeen, current);
+            lastSeen = current;
+            missingSince = 0;
+            return Collections.singletonList(InvalidationEvent.all());
+        } else if (current == lastSeen) {
+            return Collections.emptyList();
+        }
+
+        final List<String> keys = Lists.newArrayList();
+        for (long sequence = lastSeen + 1; sequence <= current; sequence++) {
+            keys.add(ENTRY + sequence);
+        }
+        final Map<String, Object> batches = client.getBulk(keys);
+
+        final List<InvalidationEvent> events = Lists.newArrayList();
+        for (long sequence = lastSeen + 1; sequence <= current; sequence++) {
+            final byte[] batch = (byte[]) batches.get(ENTRY + sequence);
+            if (batch != null) {
+                events.addAll(InvalidationEvent.decode(batch, 0, batch.length));
+                missingSince = 0;
+            } else if (missingSince == 0) {
+                // the sequence number is taken before the batch is stored, it may just not be there yet
+                missingSince = System.currentTimeMillis();
+                break;
+            } else if (System.currentTimeMillis() - missingSince < MAX_MISSING_MILLIS) {
+                break;
+            } else {
+                LOG.info("Lost invalidation batch {}", sequence);
+                events.add(InvalidationEvent.all());
+                missingSince = 0;
+            }
+            lastSeen = sequence;
+        }
+        return events;
+    }
+
+    @Override
+    public void close() {
+        // the client is managed elsewhere
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.reactivestreams.Publisher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ *   Memcache specific extension of the {@link CacheRegion}.
+ * </p>
+ * <p>
+ *   All regions returned by the memcache implementation of the {@link CacheRepository} implement
+ *   this interface, so a region can be safely cast to it.
+ * </p>
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the values
+ * @since 1.0
+ */
+public interface MemcacheRegion<K extends Serializable, V> extends CacheRegion<K, V> {
+
+    /**
+     * Counts the entries of this region that are still present in memcache. This reconciles the
+     * key set in batches, so afterwards {@link #size()} is exact as well, until memcache evicts entries again.
+     * Entries which idled out are counted until they are read.
+     *
+     * @return the number of entries present in memcache
+     * @throws UnsupportedOperationException if this region does not track its keys, see {@link KeyTracking#NONE}
+     */
+    int exactSize();
+
+    /**
+     * <p>
+     *   Reads the value of the given key without blocking. The read is sent immediately,
+     *   the returned future waits for the response only when it is queried.
+     * </p>
+     * <p>
+     *   This allows to issue many reads from a few threads and to await them later, instead of
+     *   blocking one thread per read. The value is decoded by the first thread querying the future,
+     *   or by the transcode pool of the memcache client if it exceeds the
+     *   {@link MemcacheCacheConfig#ASYNC_DECODE_THRESHOLD}.
+     * </p>
+     *
+     * @param key the key
+     * @return a future of the value, which yields null if there is none
+     */
+    Future<V> getAsync(K key);
+
+    /**
+     * Stores the given value and attaches the given tags to it.
+     * The entry is considered absent as soon as any of its tags is invalidated
+     * using {@link #invalidateTag(String)}.
+     *
+     * @param key the key
+     * @param value the value
+     * @param expiration the expiration of the entry
+     * @param tags the tags of the entry
+     * @return the previous value of the key or null if there was none
+     */
+    V put(K key, V value, CacheExpiration expiration, String... tags);
+
+    /**
+     * Invalidates all entries tagged with the given tag, using one single memcache operation.
+     *
+     * @param tag the tag to invalidate
+     */
+    void invalidateTag(String tag);
+
+    /**
+     * Atomically increments a counter. Counters use the same keys as entries, but are stored
+     * separately as plain numbers and are not part of the entries of this region.
+     *
+     * @param key the key of the counter
+     * @param delta the non-negative delta
+     * @param initialValue the value of the counter if it does not exist yet, the delta is not applied to it
+     * @param expiration the expiration of a newly created counter, only the life time is supported
+     * @return the new value of the counter
+     * @throws IllegalStateException if memcache is unavailable or did not answer in time
+     */
+    long increment(K key, int delta, long initialValue, CacheExpiration expiration);
+
+    /**
+     * Atomically decrements a counter. A counter never drops below zero.
+     *
+     * @param key the key of the counter
+     * @param delta the non-negative delta
+     * @param initialValue the value of the counter if it does not exist yet, the delta is not applied to it
+     * @param expiration the expiration of a newly created counter, only the life time is supported
+     * @return the new value of the counter
+     * @throws IllegalStateException if memcache is unavailable or did not answer in time
+     */
+    long decrement(K key, int delta, long initialValue, CacheExpiration expiration);
+
+    /**
+     * Asynchronous version of {@link #increment(Object, int, long, CacheExpiration)}.
+     *
+     * @param key the key of the counter
+     * @param delta the delta, negative values decrement the counter
+     * @param initialValue the value of the counter if it does not exist yet, the delta is not applied to it
+     * @param expiration the expiration of a newly created counter, only the life time is supported
+     * @return a future of the new value of the counter
+     */
+    Future<Long> incrementAsync(K key, int delta, long initialValue, CacheExpiration expiration);
+
+    /**
+     * Increments several counters, sending all operations before awaiting any result.
+     *
+     * @param deltas the deltas by key, negative values decrement the counter
+     * @param initialValue the value of counters which do not exist yet, the delta is not applied to it
+     * @param expiration the expiration of newly created counters, only the life time is supported
+     * @return the new values by key
+     * @throws IllegalStateException if memcache is unavailable or did not answer in time
+     */
+    Map<K, Long> incrementAll(Map<? extends K, Integer> deltas, long initialValue, CacheExpiration expiration);
+
+    /**
+     * Reads the current value of a counter.
+     *
+     * @param key the key of the counter
+     * @param defaultValue the value returned if the counter does not exist
+     * @return the current value of the counter
+     */
+    long getCounter(K key, long defaultValue);
+
+    /**
+     * Removes a counter.
+     *
+     * @param key the key of the counter
+     */
+    void removeCounter(K key);
+
+    /**
+     * <p>
+     *   Publishes all live entries of this region, for consumers that process the whole region,
+     *   such as reindexers and exporters, with backpressure.
+     * </p>
+     * <p>
+     *   The tracked keys are read in pipelined multi-gets of at most the given page size, sized by the
+     *   demand of the subscriber. The next page is fetched while the current one is emitted, so each
+     *   subscription holds at most two pages. Missing, expired and invalidated entries are skipped.
+     *   Every subscription scans the region anew. A page that memcache doesn't answer within the operation
+     *   timeout, or while the circuit is open, fails the subscription with a {@link MemcacheUnavailableException}.
+     * </p>
+     *
+     * @param pageSize the maximum number of keys per multi-get
+     * @param executor the executor which reads the pages and signals the subscriber
+     * @return a publisher of the entries of this region
+     * @throws UnsupportedOperationException if this region does not track its keys, see {@link KeyTracking#NONE}
+     */
+    Publisher<Map.Entry<K, V>> scan(int pageSize, Executor executor);
+
+    /**
+     * Writes a snapshot of all live entries of this region to the given stream. Every entry is written
+     * with its encoded payload and its remaining life time. The stream is not closed.
+     * Entries with a life time that were not written since the last restart are skipped,
+     * unless they are idle based, because their remaining life time is unknown.
+     *
+     * @param output the stream to write to
+     * @return the number of exported entries
+     * @throws IOException if writing fails
+     * @throws UnsupportedOperationException if this region does not track its keys, see {@link KeyTracking#NONE}
+     */
+    int exportTo(OutputStream output) throws IOException;
+
+    /**
+     * Stores all entries of a snapshot written by {@link #exportTo(OutputStream)}, keeping their
+     * remaining life times. The entries are written with pipelined sets, of which at most
+     * the given number are in flight at any time. The stream is not closed.
+     *
+     * @param input the stream to read from
+     * @param maxInFlight the maximum number of sets awaiting their response
+     * @return the number of imported entries
+     * @throws IOException if reading fails or the stream does not contain a snapshot
+     */
+    int importFrom(InputStream input, int maxInFlight) throws IOException;
+
+}
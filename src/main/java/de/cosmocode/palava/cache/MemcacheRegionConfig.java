@@ -0,0 +1,252 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * <p>
+ *   Configuration of a single memcache region, bound using the {@link MemcacheRegionModule}.
+ * </p>
+ * <p>
+ *   Every setting that is not set explicitly falls back to the repository wide setting,
+ *   as configured with the keys in {@link MemcacheCacheConfig}.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class MemcacheRegionConfig {
+
+    private Codec codec;
+    private Boolean compression;
+    private KeyMarshaller keyMarshaller;
+    private Boolean verifyKeys;
+    private KeyTracking keyTracking;
+    private CacheExpiration defaultExpiration;
+    private Integer hotKeyCapacity;
+    private Long nearCacheTtlMillis;
+    private Integer negativeTtlSeconds;
+    private Integer chunkSize;
+    private OversizePolicy oversizePolicy;
+    private SlabShaping slabShaping;
+    private Integer writeBehindCapacity;
+
+    /**
+     * Sets the codec values are written with.
+     *
+     * @param value the codec
+     * @return this config
+     */
+    public MemcacheRegionConfig codec(Codec value) {
+        this.codec = Preconditions.checkNotNull(value, "Codec");
+        return this;
+    }
+
+    /**
+     * Enables or disables gzip compression of the encoded values.
+     *
+     * @param value true to compress values
+     * @return this config
+     */
+    public MemcacheRegionConfig compression(boolean value) {
+        this.compression = value;
+        return this;
+    }
+
+    /**
+     * Sets the key marshaller which encodes the keys of the region.
+     *
+     * @param value the key marshaller
+     * @return this config
+     */
+    public MemcacheRegionConfig keyMarshaller(KeyMarshaller value) {
+        this.keyMarshaller = Preconditions.checkNotNull(value, "KeyMarshaller");
+        return this;
+    }
+
+    /**
+     * Enables or disables the comparison of the key stored along with every read value against the
+     * requested key, which detects hash collisions of the key marshaller. Enabled by default
+     * for the {@link MurmurKeyMarshaller} only.
+     *
+     * @param value true to verify keys
+     * @return this config
+     */
+    public MemcacheRegionConfig verifyKeys(boolean value) {
+        this.verifyKeys = value;
+        return this;
+    }
+
+    /**
+     * Sets how the keys of the region are tracked.
+     *
+     * @param value the key tracking
+     * @return this config
+     */
+    public MemcacheRegionConfig keyTracking(KeyTracking value) {
+        this.keyTracking = Preconditions.checkNotNull(value, "KeyTracking");
+        return this;
+    }
+
+    /**
+     * Sets the expiration of entries that are put without an explicit expiration.
+     *
+     * @param value the default expiration
+     * @return this config
+     */
+    public MemcacheRegionConfig defaultExpiration(CacheExpiration value) {
+        this.defaultExpiration = Preconditions.checkNotNull(value, "Expiration");
+        return this;
+    }
+
+    /**
+     * Sets the number of hot keys which are replicated in the near cache, 0 disables the near cache.
+     *
+     * @param value the hot key capacity
+     * @return this config
+     */
+    public MemcacheRegionConfig hotKeyCapacity(int value) {
+        Preconditions.checkArgument(value >= 0, "Capacity must not be negative");
+        this.hotKeyCapacity = value;
+        return this;
+    }
+
+    /**
+     * Sets how long hot keys are kept in the near cache.
+     *
+     * @param value the ttl in milliseconds
+     * @return this config
+     */
+    public MemcacheRegionConfig nearCacheTtlMillis(long value) {
+        Preconditions.checkArgument(value > 0, "TTL must be positive");
+        this.nearCacheTtlMillis = value;
+        return this;
+    }
+
+    /**
+     * Sets how long misses are cached, 0 disables negative caching.
+     *
+     * @param value the ttl in seconds
+     * @return this config
+     */
+    public MemcacheRegionConfig negativeTtlSeconds(int value) {
+        Preconditions.checkArgument(value >= 0, "TTL must not be negative");
+        this.negativeTtlSeconds = value;
+        return this;
+    }
+
+    /**
+     * Sets the size of the chunks large values are split into.
+     *
+     * @param value the chunk size in bytes, at most the item size limit of the client minus the item header
+     * @return this config
+     */
+    public MemcacheRegionConfig chunkSize(int value) {
+        Preconditions.checkArgument(value > 0 && value <= MemcacheCacheRegion.MAX_CHUNK_SIZE,
+            "Chunk size must be between 1 and %s", MemcacheCacheRegion.MAX_CHUNK_SIZE);
+        this.chunkSize = value;
+        return this;
+    }
+
+    /**
+     * Sets how values whose payload exceeds the chunk size are stored.
+     *
+     * @param value the oversize policy
+     * @return this config
+     */
+    public MemcacheRegionConfig oversizePolicy(OversizePolicy value) {
+        this.oversizePolicy = Preconditions.checkNotNull(value, "OversizePolicy");
+        return this;
+    }
+
+    /**
+     * Sets whether the written items are related to the slab classes of memcached.
+     *
+     * @param value the slab shaping mode
+     * @return this config
+     */
+    public MemcacheRegionConfig slabShaping(SlabShaping value) {
+        this.slabShaping = Preconditions.checkNotNull(value, "SlabShaping");
+        return this;
+    }
+
+    /**
+     * Sets the number of keys whose writes may be queued for write behind, 0 disables write behind.
+     * With write behind, put and remove return the replaced value only if its write is still queued.
+     *
+     * @param value the capacity of the write behind queue
+     * @return this config
+     */
+    public MemcacheRegionConfig writeBehindCapacity(int value) {
+        Preconditions.checkArgument(value >= 0, "Capacity must not be negative");
+        this.writeBehindCapacity = value;
+        return this;
+    }
+
+    Codec getCodec() {
+        return codec;
+    }
+
+    Boolean getCompression() {
+        return compression;
+    }
+
+    KeyMarshaller getKeyMarshaller() {
+        return keyMarshaller;
+    }
+
+    Boolean getVerifyKeys() {
+        return verifyKeys;
+    }
+
+    KeyTracking getKeyTracking() {
+        return keyTracking;
+    }
+
+    CacheExpiration getDefaultExpiration() {
+        return defaultExpiration;
+    }
+
+    Integer getHotKeyCapacity() {
+        return hotKeyCapacity;
+    }
+
+    Long getNearCacheTtlMillis() {
+        return nearCacheTtlMillis;
+    }
+
+    Integer getNegativeTtlSeconds() {
+        return negativeTtlSeconds;
+    }
+
+    Integer getChunkSize() {
+        return chunkSize;
+    }
+
+    OversizePolicy getOversizePolicy() {
+        return oversizePolicy;
+    }
+
+    SlabShaping getSlabShaping() {
+        return slabShaping;
+    }
+
+    Integer getWriteBehindCapacity() {
+        return writeBehindCapacity;
+    }
+
+}
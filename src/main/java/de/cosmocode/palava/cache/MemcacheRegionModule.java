@@ -0,0 +1,45 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.name.Names;
+
+/**
+ * Binds the configuration of one memcache region. The {@link MemcacheCacheRepository}
+ * applies it when the region with the given name is created.
+ *
+ * @since 1.0
+ */
+public final class MemcacheRegionModule implements Module {
+
+    private final String name;
+    private final MemcacheRegionConfig config;
+
+    public MemcacheRegionModule(String name, MemcacheRegionConfig config) {
+        this.name = Preconditions.checkNotNull(name, "Name");
+        this.config = Preconditions.checkNotNull(config, "Config");
+    }
+
+    @Override
+    public void configure(Binder binder) {
+        binder.bind(MemcacheRegionConfig.class).annotatedWith(Names.named(name)).toInstance(config);
+    }
+
+}
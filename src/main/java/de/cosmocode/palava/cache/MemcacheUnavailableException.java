@@ -0,0 +1,36 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * Signals that memcache could not be reached in time or that the circuit of a region is open.
+ *
+ * @since 1.0
+ */
+final class MemcacheUnavailableException extends IllegalStateException {
+
+    private static final long serialVersionUID = -2741207369540371342L;
+
+    MemcacheUnavailableException(String message) {
+        super(message);
+    }
+
+    MemcacheUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
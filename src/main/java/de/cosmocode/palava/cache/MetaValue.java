@@ -17,7 +17,9 @@
 package de.cosmocode.palava.cache;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Map;
 
 import org.codehaus.jackson.annotate.JsonIgnore;
 
@@ -35,6 +37,19 @@ final class MetaValue implements Serializable {
     private Date lastAccessedAt;
     private Serializable key;
     private Object value;
+    private boolean absent;
+    private Map<String, Long> tags = Collections.emptyMap();
+
+    /**
+     * Creates a sentinel meta value that marks a key as known to be absent.
+     *
+     * @return a new absent marker
+     */
+    static MetaValue absent() {
+        final MetaValue metaValue = new MetaValue();
+        metaValue.absent = true;
+        return metaValue;
+    }
 
     public long getIdleTimeInSeconds() {
         return idleTimeInSeconds;
@@ -84,6 +99,27 @@ final class MetaValue implements Serializable {
         this.value = value;
     }
 
+    /**
+     * Returns true if this is a negative cache entry, which carries neither key nor value.
+     * @return true if this marks an absent key
+     */
+    @JsonIgnore
+    public boolean isAbsent() {
+        return absent;
+    }
+
+    /**
+     * The tags of this entry, each with the version the tag had when this entry was stored.
+     * @return the tag versions, empty if this entry is untagged
+     */
+    public Map<String, Long> getTags() {
+        return tags;
+    }
+
+    public void setTags(Map<String, Long> tags) {
+        this.tags = tags;
+    }
+
     public String getValueClassName() {
         return value.getClass().getName();
     }
@@ -103,6 +139,25 @@ final class MetaValue implements Serializable {
         }
     }
 
+    /**
+     * Derives the remaining life time from the time this entry was stored,
+     * which is only known for idle based entries.
+     *
+     * @param now the current time in milliseconds
+     * @return the remaining seconds, 0 if this entry has no life time,
+     *         -1 if it already expired or its remaining life time is unknown
+     */
+    int remainingLifeTimeInSeconds(long now) {
+        if (getLifeTimeInSeconds() == 0) {
+            return 0;
+        } else if (getStoredAt() == null) {
+            return -1;
+        } else {
+            final long remaining = getLifeTimeInSeconds() - (now - getStoredAt().getTime()) / 1000;
+            return remaining > 0 ? (int) remaining : -1;
+        }
+    }
+
     /**
      * Calculate a new timeout based on the time that this entry was initially stored and
      * the lifetime in seconds.
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>
+ *   Invalidation transport which sends every batch as UDP multicast datagrams.
+ * </p>
+ * <p>
+ *   Delivery is fast, but not reliable: the bus notices lost datagrams with the next event
+ *   of the same node only, so local copies may stay stale until then. Use it only for short lived local copies.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class MulticastInvalidationTransport implements InvalidationTransport {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MulticastInvalidationTransport.class);
+
+    // stays below the usual ethernet mtu, so datagrams are not fragmented
+    private static final int MAX_DATAGRAM_SIZE = 1400;
+
+    private final InetAddress group;
+    private final int port;
+    private final MulticastSocket socket;
+    private final Queue<InvalidationEvent> received = new ConcurrentLinkedQueue<InvalidationEvent>();
+
+    /**
+     * Joins the given multicast group and starts receiving events.
+     *
+     * @param group the multicast group
+     * @param port the port
+     * @throws IOException if the group can't be joined
+     */
+    public MulticastInvalidationTransport(InetAddress group, int port) throws IOException {
+        this.group = Preconditions.checkNotNull(group, "Group");
+        this.port = port;
+        this.socket = new MulticastSocket(port);
+        socket.joinGroup(group);
+
+        final Thread receiver = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                receive();
+            }
+
+        }, "memcache-invalidation-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void receive() {
+        final byte[] buffer = new byte[MAX_DATAGRAM_SIZE];
+        while (!socket.isClosed()) {
+            final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+                received.addAll(InvalidationEvent.decode(packet.getData(), packet.getOffset(), packet.getLength()));
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    LOG.warn("Unable to receive invalidations", e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void publish(Collection<InvalidationEvent> events) throws IOException {
+        final byte[] bytes = InvalidationEvent.encode(events);
+        if (bytes.length <= MAX_DATAGRAM_SIZE || events.size() == 1) {
+            socket.send(new DatagramPacket(bytes, bytes.length, group, port));
+        } else {
+            final List<InvalidationEvent> list = Lists.newArrayList(events);
+            final int half = list.size() / 2;
+            publish(list.subList(0, half));
+            publish(list.subList(half, list.size()));
+        }
+    }
+
+    @Override
+    public List<InvalidationEvent> poll() {
+        final List<InvalidationEvent> events = Lists.newArrayList();
+        InvalidationEvent event = received.poll();
+        while (event != null) {
+            events.add(event);
+            event = received.poll();
+        }
+        return events;
+    }
+
+    @Override
+    public void close() {
+        try {
+            socket.leaveGroup(group);
+        } catch (IOException e) {
+            LOG.debug("Unable to leave multicast group", e);
+        }
+        socket.close();
+    }
+
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * The x64 128 bit variant of MurmurHash3, a fast non-cryptographic hash function.
+ *
+ * @since 1.0
+ */
+final class Murmur3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Murmur3() {
+
+    }
+
+    /**
+     * Hashes the given bytes.
+     *
+     * @param data the bytes to hash
+     * @param seed the seed
+     * @return the 128 bit hash as 32 lower case hex digits, the first half of the hash first
+     */
+    static String hash128Hex(byte[] data, int seed) {
+        final int length = data.length;
+        final int blocks = length / 16;
+        long h1 = seed & 0xFFFFFFFFL;
+        long h2 = seed & 0xFFFFFFFFL;
+
+        for (int i = 0; i < blocks; i++) {
+            long k1 = getLong(data, i * 16);
+            long k2 = getLong(data, i * 16 + 8);
+
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33);
+            k2 *= C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        final int tail = blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= (data[tail + 14] & 0xFFL) << 48;
+            case 14: k2 ^= (data[tail + 13] & 0xFFL) << 40;
+            case 13: k2 ^= (data[tail + 12] & 0xFFL) << 32;
+            case 12: k2 ^= (data[tail + 11] & 0xFFL) << 24;
+            case 11: k2 ^= (data[tail + 10] & 0xFFL) << 16;
+            case 10: k2 ^= (data[tail + 9] & 0xFFL) << 8;
+            case 9:
+                k2 ^= data[tail + 8] & 0xFFL;
+                k2 *= C2;
+                k2 = Long.rotateLeft(k2, 33);
+                k2 *= C1;
+                h2 ^= k2;
+            case 8: k1 ^= (data[tail + 7] & 0xFFL) << 56;
+            case 7: k1 ^= (data[tail + 6] & 0xFFL) << 48;
+            case 6: k1 ^= (data[tail + 5] & 0xFFL) << 40;
+            case 5: k1 ^= (data[tail + 4] & 0xFFL) << 32;
+            case 4: k1 ^= (data[tail + 3] & 0xFFL) << 24;
+            case 3: k1 ^= (data[tail + 2] & 0xFFL) << 16;
+            case 2: k1 ^= (data[tail + 1] & 0xFFL) << 8;
+            case 1:
+                k1 ^= data[tail] & 0xFFL;
+                k1 *= C1;
+                k1 = Long.rotateLeft(k1, 31);
+                k1 *= C2;
+                h1 ^= k1;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        final char[] hex = new char[32];
+        toHex(h1, hex, 0);
+        toHex(h2, hex, 16);
+        return new String(hex);
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        // little endian
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (data[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+
+    private static long fmix(long k) {
+        long h = k;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void toHex(long value, char[] hex, int offset) {
+        for (int i = 0; i < 16; i++) {
+            hex[offset + i] = HEX[(int) (value >>> (60 - i * 4)) & 0xF];
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ *   Key marshaller which keeps short keys readable and hashes all others using the fast,
+ *   non-cryptographic 128 bit {@link Murmur3} instead of SHA-1.
+ * </p>
+ * <p>
+ *   Every key is prefixed with the namespace of the marshaller, usually the name of the region,
+ *   so equal keys of different regions don't share memcache items. Strings and the json encoding
+ *   of all other keys are used as they are if they fit into memcache's key limit and contain
+ *   printable ascii characters only. Longer keys are hashed.
+ * </p>
+ * <p>
+ *   Regions using this marshaller compare the key stored along with every value against the requested key,
+ *   so a hash collision is detected and reads as a miss. Keys therefore have to implement equals.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class MurmurKeyMarshaller implements KeyMarshaller {
+
+    private static final int MAX_KEY_LENGTH = 250;
+
+    private static final int MAX_NAMESPACE_LENGTH = 100;
+
+    private final String prefix;
+
+    public MurmurKeyMarshaller(String namespace) {
+        Preconditions.checkNotNull(namespace, "Namespace");
+        Preconditions.checkArgument(namespace.length() <= MAX_NAMESPACE_LENGTH && isPrintable(namespace),
+            "Namespace must be at most %s printable ascii characters: %s", MAX_NAMESPACE_LENGTH, namespace);
+        this.prefix = namespace + ":";
+    }
+
+    @Override
+    public String encode(Serializable key) {
+        Preconditions.checkNotNull(key, "Key");
+        // the type markers keep the string "1" apart from the number 1
+        if (key instanceof String) {
+            return encode('s', String.class.cast(key));
+        } else {
+            return encode('j', KeyMarshallers.JSON.encode(key));
+        }
+    }
+
+    private String encode(char type, String plain) {
+        if (prefix.length() + 2 + plain.length() <= MAX_KEY_LENGTH && isPrintable(plain)) {
+            return prefix + type + ':' + plain;
+        } else {
+            return prefix + "h:" + Murmur3.hash128Hex((type + plain).getBytes(Charsets.UTF_8), 0);
+        }
+    }
+
+    private static boolean isPrintable(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            // memcache keys must not contain whitespace or control characters
+            if (c <= ' ' || c > '~') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Serializable decode(String encoded) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isDecodable() {
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "MurmurKeyMarshaller(" + prefix.substring(0, prefix.length() - 1) + ")";
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A small local cache in front of memcache, which holds meta values for a short time only.
+ * It holds at most as many values as the hot key tracker tracks keys.
+ *
+ * @since 1.0
+ */
+final class NearCache {
+
+    private final long ttlMillis;
+    private final int capacity;
+    private final ConcurrentMap<String, Entry> entries = Maps.newConcurrentMap();
+
+    NearCache(long ttlMillis, int capacity) {
+        Preconditions.checkArgument(ttlMillis > 0, "TTL must be positive");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        this.ttlMillis = ttlMillis;
+        this.capacity = capacity;
+    }
+
+    MetaValue get(String encodedKey) {
+        final Entry entry = entries.get(encodedKey);
+        if (entry == null) {
+            return null;
+        } else if (entry.expiresAt < System.currentTimeMillis()) {
+            entries.remove(encodedKey, entry);
+            return null;
+        } else {
+            return entry.metaValue;
+        }
+    }
+
+    void put(String encodedKey, MetaValue metaValue) {
+        if (entries.size() >= capacity && !entries.containsKey(encodedKey)) {
+            purgeExpired();
+            if (entries.size() >= capacity) {
+                // keys which were hot once must not grow the heap, those will be read from memcache instead
+                return;
+            }
+        }
+        entries.put(encodedKey, new Entry(metaValue, System.currentTimeMillis() + ttlMillis));
+    }
+
+    void invalidate(String encodedKey) {
+        entries.remove(encodedKey);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private void purgeExpired() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+            if (entry.getValue().expiresAt < now) {
+                entries.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A locally cached meta value with its local expiration.
+     */
+    private static final class Entry {
+
+        private final MetaValue metaValue;
+        private final long expiresAt;
+
+        Entry(MetaValue metaValue, long expiresAt) {
+            this.metaValue = metaValue;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+}
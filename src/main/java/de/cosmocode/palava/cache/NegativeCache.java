@@ -0,0 +1,88 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Remembers encoded keys which are known to be absent in memcache for a short time,
+ * so that repeated misses can be answered without a network call.
+ *
+ * @since 1.0
+ */
+final class NegativeCache {
+
+    private final int ttlInSeconds;
+    private final int capacity;
+    private final ConcurrentMap<String, Long> deadlines = Maps.newConcurrentMap();
+
+    NegativeCache(int ttlInSeconds, int capacity) {
+        Preconditions.checkArgument(ttlInSeconds > 0, "TTL must be positive");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        this.ttlInSeconds = ttlInSeconds;
+        this.capacity = capacity;
+    }
+
+    int getTtlInSeconds() {
+        return ttlInSeconds;
+    }
+
+    boolean contains(String encodedKey) {
+        final Long deadline = deadlines.get(encodedKey);
+        if (deadline == null) {
+            return false;
+        } else if (deadline < System.currentTimeMillis()) {
+            deadlines.remove(encodedKey, deadline);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    void add(String encodedKey) {
+        if (deadlines.size() >= capacity) {
+            purgeExpired();
+            if (deadlines.size() >= capacity) {
+                // a flood of distinct misses must not grow the heap, those will go to memcache instead
+                return;
+            }
+        }
+        deadlines.put(encodedKey, System.currentTimeMillis() + ttlInSeconds * 1000L);
+    }
+
+    void invalidate(String encodedKey) {
+        deadlines.remove(encodedKey);
+    }
+
+    void clear() {
+        deadlines.clear();
+    }
+
+    private void purgeExpired() {
+        final long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : deadlines.entrySet()) {
+            if (entry.getValue() < now) {
+                deadlines.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+}
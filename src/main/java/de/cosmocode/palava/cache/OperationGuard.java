@@ -0,0 +1,274 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import net.spy.memcached.MemcachedClientIF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *   Guards the memcache operations of one region by its {@link CircuitBreaker}, if enabled.
+ * </p>
+ * <p>
+ *   Every operation is sent asynchronously and awaited for at most the operation timeout,
+ *   so that a stalled node never blocks the region longer than that. While the circuit is open,
+ *   operations fail fast with a {@link MemcacheUnavailableException} and writes are skipped.
+ * </p>
+ * <p>
+ *   Writes are not awaited. Their outcome is recorded once they completed, a write that did not complete
+ *   within the operation timeout counts as failed.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class OperationGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OperationGuard.class);
+
+    // the default operation timeout of the memcache client
+    static final long DEFAULT_TIMEOUT_MILLIS = 1000;
+
+    // returned by memcache's incr and decr if the counter does not exist
+    private static final long MISSING = -1L;
+
+    // the most writes whose outcome is pending, the outcome of further ones is not recorded
+    private static final int MAX_PENDING_WRITES = 1024;
+
+    private final String regionName;
+    private final Queue<SentWrite> writes = new ConcurrentLinkedQueue<SentWrite>();
+    private final AtomicInteger pendingWrites = new AtomicInteger();
+    private volatile CircuitBreaker circuitBreaker;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    OperationGuard(String regionName) {
+        this.regionName = Preconditions.checkNotNull(regionName, "RegionName");
+    }
+
+    /**
+     * Enables the given circuit breaker.
+     *
+     * @param breaker the circuit breaker
+     * @param operationTimeoutMillis the timeout of a single operation in milliseconds
+     */
+    void enable(CircuitBreaker breaker, long operationTimeoutMillis) {
+        Preconditions.checkArgument(operationTimeoutMillis > 0, "Timeout must be positive");
+        this.circuitBreaker = Preconditions.checkNotNull(breaker, "Breaker");
+        this.timeoutMillis = operationTimeoutMillis;
+    }
+
+    String getState() {
+        final CircuitBreaker breaker = circuitBreaker;
+        return breaker == null ? "DISABLED" : breaker.getState().name();
+    }
+
+    /**
+     * Checks whether an operation may be sent to memcache. Every permitted operation
+     * has to be followed by a call to {@link #await(String, Future)} or {@link #rejected(String, RuntimeException)}.
+     *
+     * @param operation the description of the operation
+     * @throws MemcacheUnavailableException if the circuit is open
+     */
+    void permit(String operation) {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            return;
+        }
+        recordWrites(breaker);
+        if (!breaker.allowRequest()) {
+            throw new MemcacheUnavailableException("Circuit of region " + regionName + " is open, skipping " +
+                operation);
+        }
+    }
+
+    /**
+     * Records an operation that could not even be sent, e.g. because the operation queue of the client is full.
+     *
+     * @param operation the description of the operation
+     * @param e the failure
+     * @return the exception to be thrown
+     */
+    MemcacheUnavailableException rejected(String operation, RuntimeException e) {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.recordFailure();
+        }
+        return new MemcacheUnavailableException("Unable to enqueue " + operation, e);
+    }
+
+    /**
+     * Records the outcome of a permitted write once it completed, without waiting for it.
+     *
+     * @param operation the description of the operation
+     * @param future the future of the sent write
+     */
+    void sent(String operation, Future<?> future) {
+        final CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            return;
+        }
+        if (pendingWrites.incrementAndGet() > MAX_PENDING_WRITES) {
+            pendingWrites.decrementAndGet();
+        } else {
+            writes.add(new SentWrite(operation, future));
+        }
+        recordWrites(breaker);
+    }
+
+    private void recordWrites(CircuitBreaker breaker) {
+        final long now = System.nanoTime();
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        final Iterator<SentWrite> iterator = writes.iterator();
+        while (iterator.hasNext()) {
+            final SentWrite write = iterator.next();
+            final boolean done = write.future.isDone();
+            if (!done && now - write.sentAt < timeoutNanos) {
+                continue;
+            } else if (!write.recorded.compareAndSet(false, true)) {
+                // recorded by a concurrent caller
+                continue;
+            }
+            iterator.remove();
+            pendingWrites.decrementAndGet();
+            if (done && write.succeeded()) {
+                // the completion was observed late, so only timed out writes count as slow
+                breaker.recordSuccess(0L);
+            } else {
+                LOG.debug("{} of region {} failed or timed out", write.operation, regionName);
+                breaker.recordFailure();
+            }
+        }
+    }
+
+    /**
+     * Awaits the result of a permitted operation for at most the operation timeout.
+     *
+     * @param <T> the generic result type
+     * @param operation the description of the operation
+     * @param future the future of the sent operation
+     * @return the result
+     * @throws MemcacheUnavailableException if the operation failed or memcache did not answer in time
+     */
+    <T> T await(String operation, Future<T> future) {
+        final CircuitBreaker breaker = circuitBreaker;
+        final long start = System.nanoTime();
+        try {
+            final T result = future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (breaker != null) {
+                breaker.recordSuccess(System.nanoTime() - start);
+            }
+            return result;
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            if (breaker != null) {
+                breaker.recordFailure();
+            }
+            throw new MemcacheUnavailableException(operation + " timed out", e);
+        } catch (ExecutionException e) {
+            if (breaker != null) {
+                breaker.recordFailure();
+            }
+            throw new MemcacheUnavailableException(operation + " failed", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MemcacheUnavailableException("Interrupted during " + operation, e);
+        }
+    }
+
+    /**
+     * Adds the given delta to a counter, creating it with the initial value if it does not exist,
+     * like the client's incr and decr with a default, but guarded.
+     *
+     * @param client the memcache client
+     * @param key the key of the counter
+     * @param delta the delta, negative values decrement the counter
+     * @param initialValue the value of a newly created counter, the delta is not applied to it
+     * @param timeout the memcache expiration of a newly created counter
+     * @return the new value of the counter
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    long mutate(MemcachedClientIF client, String key, int delta, long initialValue, int timeout) {
+        final String operation = "mutate of " + key;
+        final long value = mutateIfPresent(client, key, delta);
+        if (value != MISSING) {
+            return value;
+        }
+        permit(operation);
+        if (await(operation, client.add(key, timeout, String.valueOf(initialValue))).booleanValue()) {
+            return initialValue;
+        }
+        // created concurrently
+        return mutateIfPresent(client, key, delta);
+    }
+
+    private long mutateIfPresent(MemcachedClientIF client, String key, int delta) {
+        final String operation = "mutate of " + key;
+        permit(operation);
+        final Future<Long> future;
+        try {
+            future = delta < 0 ? client.asyncDecr(key, -delta) : client.asyncIncr(key, delta);
+        } catch (IllegalStateException e) {
+            throw rejected(operation, e);
+        }
+        return await(operation, future).longValue();
+    }
+
+    /**
+     * A write whose outcome is not recorded yet.
+     */
+    private static final class SentWrite {
+
+        private final String operation;
+        private final Future<?> future;
+        private final long sentAt = System.nanoTime();
+        private final AtomicBoolean recorded = new AtomicBoolean();
+
+        SentWrite(String operation, Future<?> future) {
+            this.operation = operation;
+            this.future = future;
+        }
+
+        boolean succeeded() {
+            try {
+                future.get();
+                return true;
+            } catch (ExecutionException e) {
+                return false;
+            } catch (CancellationException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+    }
+
+}
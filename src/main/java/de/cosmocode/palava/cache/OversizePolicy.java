@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * What a region does with values whose encoded payload exceeds its chunk size,
+ * which stays below the item size limit of memcached.
+ *
+ * @since 1.0
+ */
+public enum OversizePolicy {
+
+    /**
+     * Oversized values are not stored, the previous value of the key is removed
+     * and the key is no longer tracked.
+     */
+    REJECT,
+
+    /**
+     * Oversized values are gzip compressed, values that are still too large are rejected.
+     * Has no effect on regions which compress all values anyway.
+     */
+    COMPRESS,
+
+    /**
+     * Oversized values are split into several chunks, see {@link MemcacheCacheConfig#CHUNK_SIZE}.
+     */
+    CHUNK,
+
+    /**
+     * Oversized values are kept in memory on this node only, softly referenced, so the garbage collector
+     * may drop them under memory pressure. The previous value of the key is removed from memcache,
+     * so other nodes see a miss.
+     */
+    LOCAL_ONLY;
+
+}
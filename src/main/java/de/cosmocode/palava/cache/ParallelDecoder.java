@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * <p>
+ *   Decodes the raw values of a multi-get, splitting large results across an executor.
+ * </p>
+ * <p>
+ *   Results with fewer values than the threshold are decoded on the calling thread, as the hand-off
+ *   costs more than it saves for a few small values. Larger results are split into slices, one per
+ *   thread of the configured parallelism. The calling thread decodes the last slice itself while the
+ *   executor decodes the others, so a saturated executor slows decoding down but never blocks it.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class ParallelDecoder {
+
+    private final Transcoder<Object> transcoder;
+    private final ExecutorService executor;
+    private final int threshold;
+    private final int parallelism;
+
+    /**
+     * Creates a decoder which decodes on the calling thread only.
+     *
+     * @param transcoder the transcoder of the values
+     */
+    ParallelDecoder(Transcoder<Object> transcoder) {
+        this.transcoder = Preconditions.checkNotNull(transcoder, "Transcoder");
+        this.executor = null;
+        this.threshold = Integer.MAX_VALUE;
+        this.parallelism = 1;
+    }
+
+    /**
+     * Creates a decoder which splits results of at least the given size across the given executor.
+     *
+     * @param transcoder the transcoder of the values
+     * @param executor the executor decoding the slices
+     * @param threshold the number of values from which results are decoded in parallel
+     * @param parallelism the number of slices, including the one of the calling thread
+     */
+    ParallelDecoder(Transcoder<Object> transcoder, ExecutorService executor, int threshold, int parallelism) {
+        Preconditions.checkArgument(threshold > 0, "Threshold must be positive");
+        Preconditions.checkArgument(parallelism > 0, "Parallelism must be positive");
+        this.transcoder = Preconditions.checkNotNull(transcoder, "Transcoder");
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+        this.threshold = threshold;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Decodes all given values.
+     *
+     * @param values the raw values by key
+     * @return the decoded values by key
+     */
+    Map<String, Object> decodeAll(Map<String, CachedData> values) {
+        if (executor == null || parallelism == 1 || values.size() < threshold) {
+            return decode(values.entrySet());
+        }
+
+        final int sliceSize = (values.size() + parallelism - 1) / parallelism;
+        final List<List<Map.Entry<String, CachedData>>> slices =
+            Lists.newArrayList(Iterables.partition(values.entrySet(), sliceSize));
+        final List<Future<Map<String, Object>>> forked = Lists.newArrayListWithCapacity(slices.size() - 1);
+        for (final List<Map.Entry<String, CachedData>> slice : slices.subList(0, slices.size() - 1)) {
+            forked.add(executor.submit(new Callable<Map<String, Object>>() {
+
+                @Override
+                public Map<String, Object> call() {
+                    return decode(slice);
+                }
+
+            }));
+        }
+
+        final Map<String, Object> decoded = decode(slices.get(slices.size() - 1));
+        for (Future<Map<String, Object>> future : forked) {
+            try {
+                decoded.putAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return decoded;
+    }
+
+    private Map<String, Object> decode(Iterable<Map.Entry<String, CachedData>> values) {
+        final Map<String, Object> decoded = Maps.newHashMap();
+        for (Map.Entry<String, CachedData> entry : values) {
+            decoded.put(entry.getKey(), transcoder.decode(entry.getValue()));
+        }
+        return decoded;
+    }
+
+}
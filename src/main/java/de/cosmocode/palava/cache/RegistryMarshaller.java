@@ -0,0 +1,271 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import de.cosmocode.commons.Bijection;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>
+ *   Registration based marshaller. Every value type has to be registered with a unique id
+ *   and a {@link ValueCodec}, which writes the value without any reflection.
+ *   Only the id of the type is stored along with the value, which keeps the payload small.
+ * </p>
+ * <p>
+ *   Strings, integers, longs, doubles, booleans and byte arrays are registered by default,
+ *   using negative ids. Ids of custom types must not be negative and must never be reused
+ *   for another type while values of the old type may still be in memcache.
+ * </p>
+ *
+ * @since 1.0
+ */
+public final class RegistryMarshaller implements StreamingMarshaller {
+
+    private final ConcurrentMap<Integer, Registration<?>> byId = Maps.newConcurrentMap();
+    private final ConcurrentMap<Class<?>, Registration<?>> byType = Maps.newConcurrentMap();
+
+    private final Bijection<Serializable, Object> inverse = new RegistryInverseMarshaller();
+
+    public RegistryMarshaller() {
+        add(new Registration<String>(-1, String.class, new ValueCodec<String>() {
+
+            @Override
+            public void write(String value, DataOutput output) throws IOException {
+                // length prefixed instead of writeUTF, which is limited to 65535 bytes
+                final byte[] bytes = value.getBytes(Charsets.UTF_8);
+                output.writeInt(bytes.length);
+                output.write(bytes);
+            }
+
+            @Override
+            public String read(DataInput input) throws IOException {
+                final byte[] bytes = new byte[input.readInt()];
+                input.readFully(bytes);
+                return new String(bytes, Charsets.UTF_8);
+            }
+
+        }));
+        add(new Registration<Integer>(-2, Integer.class, new ValueCodec<Integer>() {
+
+            @Override
+            public void write(Integer value, DataOutput output) throws IOException {
+                output.writeInt(value);
+            }
+
+            @Override
+            public Integer read(DataInput input) throws IOException {
+                return input.readInt();
+            }
+
+        }));
+        add(new Registration<Long>(-3, Long.class, new ValueCodec<Long>() {
+
+            @Override
+            public void write(Long value, DataOutput output) throws IOException {
+                output.writeLong(value);
+            }
+
+            @Override
+            public Long read(DataInput input) throws IOException {
+                return input.readLong();
+            }
+
+        }));
+        add(new Registration<Double>(-4, Double.class, new ValueCodec<Double>() {
+
+            @Override
+            public void write(Double value, DataOutput output) throws IOException {
+                output.writeDouble(value);
+            }
+
+            @Override
+            public Double read(DataInput input) throws IOException {
+                return input.readDouble();
+            }
+
+        }));
+        add(new Registration<Boolean>(-5, Boolean.class, new ValueCodec<Boolean>() {
+
+            @Override
+            public void write(Boolean value, DataOutput output) throws IOException {
+                output.writeBoolean(value);
+            }
+
+            @Override
+            public Boolean read(DataInput input) throws IOException {
+                return input.readBoolean();
+            }
+
+        }));
+        add(new Registration<byte[]>(-6, byte[].class, new ValueCodec<byte[]>() {
+
+            @Override
+            public void write(byte[] value, DataOutput output) throws IOException {
+                output.writeInt(value.length);
+                output.write(value);
+            }
+
+            @Override
+            public byte[] read(DataInput input) throws IOException {
+                final byte[] value = new byte[input.readInt()];
+                input.readFully(value);
+                return value;
+            }
+
+        }));
+    }
+
+    /**
+     * Registers the given type.
+     *
+     * @param <T> the generic type
+     * @param id the unique id of the type, must not be negative
+     * @param type the type
+     * @param codec the codec for values of the given type
+     * @return this marshaller
+     * @throws IllegalArgumentException if id is negative or the id or type are already registered
+     */
+    public <T> RegistryMarshaller register(int id, Class<T> type, ValueCodec<T> codec) {
+        Preconditions.checkArgument(id >= 0, "Id must not be negative");
+        add(new Registration<T>(id, Preconditions.checkNotNull(type, "Type"),
+            Preconditions.checkNotNull(codec, "Codec")));
+        return this;
+    }
+
+    private void add(Registration<?> registration) {
+        Preconditions.checkArgument(byId.putIfAbsent(registration.id, registration) == null,
+            "Id %s is already registered", registration.id);
+        if (byType.putIfAbsent(registration.type, registration) != null) {
+            byId.remove(registration.id);
+            throw new IllegalArgumentException(registration.type + " is already registered");
+        }
+    }
+
+    @Override
+    public Bijection<Serializable, Object> inverse() {
+        return inverse;
+    }
+
+    @Override
+    public Serializable apply(@Nullable Object input) {
+        if (input == null) {
+            return null;
+        }
+
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try {
+            write(input, byteStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return byteStream.toByteArray();
+    }
+
+    @Override
+    public void write(Object input, OutputStream output) throws IOException {
+        final DataOutputStream dataStream = new DataOutputStream(output);
+        final Object value = BinaryHeader.write(input, dataStream);
+        final Registration<?> registration = byType.get(value.getClass());
+        Preconditions.checkArgument(registration != null, "%s is not registered", value.getClass());
+        dataStream.writeInt(registration.id);
+        registration.write(value, dataStream);
+        dataStream.flush();
+    }
+
+    @Override
+    public Object read(InputStream input) throws IOException {
+        final DataInputStream dataStream = new DataInputStream(input);
+        final MetaValue metaValue = BinaryHeader.read(dataStream);
+        final int id = dataStream.readInt();
+        final Registration<?> registration = byId.get(id);
+        if (registration == null) {
+            throw new IllegalStateException("No type registered with id " + id);
+        }
+        final Object value = registration.codec.read(dataStream);
+
+        if (metaValue == null) {
+            return value;
+        } else {
+            metaValue.setValue(value);
+            return metaValue;
+        }
+    }
+
+    /**
+     * A registered type.
+     *
+     * @param <T> the generic type
+     */
+    private static final class Registration<T> {
+
+        private final int id;
+        private final Class<T> type;
+        private final ValueCodec<T> codec;
+
+        Registration(int id, Class<T> type, ValueCodec<T> codec) {
+            this.id = id;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        void write(Object value, DataOutput output) throws IOException {
+            codec.write(type.cast(value), output);
+        }
+
+    }
+
+    /**
+     * Decoding part of the registry marshaller implementation.
+     */
+    private final class RegistryInverseMarshaller implements Bijection<Serializable, Object> {
+
+        @Override
+        public Bijection<Object, Serializable> inverse() {
+            return RegistryMarshaller.this;
+        }
+
+        @Override
+        public Object apply(@Nullable Serializable input) {
+            if (input == null) {
+                return null;
+            }
+
+            try {
+                return read(new ByteArrayInputStream(byte[].class.cast(input)));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+    }
+
+}
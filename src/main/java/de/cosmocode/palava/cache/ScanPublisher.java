@@ -0,0 +1,276 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import net.spy.memcached.CachedData;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   Publishes the live entries of a region, reading them in pages of pipelined multi-gets.
+ * </p>
+ * <p>
+ *   Every subscription walks the tracked keys independently. Pages are sized by the outstanding demand,
+ *   up to the configured page size, and the next page is requested from memcache while the current one
+ *   is emitted, so fetching overlaps with the processing of the subscriber. At most two pages are held
+ *   in memory per subscription. Missing, expired and invalidated entries are skipped.
+ * </p>
+ * <p>
+ *   All blocking work and all signals to the subscriber run on the given executor, never on the thread
+ *   calling {@link Subscription#request(long)}. A page that can't be read in time fails the scan
+ *   with {@link Subscriber#onError(Throwable)}.
+ * </p>
+ *
+ * @param <E> the type of the published entries
+ * @since 1.0
+ */
+final class ScanPublisher<E> implements Publisher<E> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScanPublisher.class);
+
+    /**
+     * The region being scanned.
+     *
+     * @param <E> the type of the entries
+     */
+    interface Source<E> {
+
+        /**
+         * Iterates over the tracked memcache keys.
+         *
+         * @return a new iterator
+         */
+        Iterator<String> keys();
+
+        /**
+         * Sends a multi-get of the given keys.
+         *
+         * @param encodedKeys the memcache keys
+         * @return a future of the raw values by key
+         * @throws RuntimeException if the multi-get can't be sent, fails the scan
+         */
+        Future<Map<String, CachedData>> fetch(List<String> encodedKeys);
+
+        /**
+         * Waits for a multi-get sent by {@link #fetch(List)}, for a bounded time.
+         *
+         * @param future the future of the multi-get
+         * @return the raw values by key
+         * @throws RuntimeException if the multi-get failed or timed out, fails the scan
+         */
+        Map<String, CachedData> await(Future<Map<String, CachedData>> future);
+
+        /**
+         * Turns the raw values of one page into entries, skipping everything that isn't live.
+         *
+         * @param encodedKeys the memcache keys of the page
+         * @param values the raw values by key
+         * @return the live entries, in the order of the keys
+         */
+        List<E> complete(List<String> encodedKeys, Map<String, CachedData> values);
+
+    }
+
+    private final Source<E> source;
+    private final int pageSize;
+    private final Executor executor;
+
+    ScanPublisher(Source<E> source, int pageSize, Executor executor) {
+        Preconditions.checkArgument(pageSize > 0, "PageSize must be positive");
+        this.source = Preconditions.checkNotNull(source, "Source");
+        this.pageSize = pageSize;
+        this.executor = Preconditions.checkNotNull(executor, "Executor");
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super E> subscriber) {
+        Preconditions.checkNotNull(subscriber, "Subscriber");
+        final ScanSubscription subscription = new ScanSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    /**
+     * One scan. The drain loop is serialized by the work in progress counter, so only one thread
+     * at a time touches the key iterator, the pages and the subscriber.
+     */
+    private final class ScanSubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super E> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        // only touched by the drain loop
+        private Iterator<String> keys;
+        private final Queue<E> buffer = new LinkedList<E>();
+        private List<String> nextKeys;
+        private Future<Map<String, CachedData>> next;
+        private boolean done;
+
+        ScanSubscription(Subscriber<? super E> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Request must be positive, but was " + n);
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                    if (current == Long.MAX_VALUE) {
+                        break;
+                    }
+                } while (!demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            } else if (cancelled) {
+                release();
+                return;
+            } else if (invalidRequest != null) {
+                terminate(invalidRequest);
+                return;
+            }
+
+            try {
+                if (keys == null) {
+                    keys = source.keys();
+                }
+                while (demand.get() > 0 && !cancelled) {
+                    if (buffer.isEmpty() && !fill()) {
+                        done = true;
+                        subscriber.onComplete();
+                        return;
+                    }
+                    subscriber.onNext(buffer.remove());
+                    demand.decrementAndGet();
+                }
+                if (cancelled) {
+                    release();
+                }
+            } catch (RuntimeException e) {
+                terminate(e);
+            }
+        }
+
+        /**
+         * Fills the empty buffer with the next page that contains live entries
+         * and requests the page after it.
+         *
+         * @return false if there are no entries left
+         */
+        private boolean fill() {
+            while (buffer.isEmpty()) {
+                if (next == null) {
+                    send(pageSize(0));
+                    if (next == null) {
+                        return false;
+                    }
+                }
+                final List<String> page = nextKeys;
+                final Map<String, CachedData> values = source.await(next);
+                next = null;
+                nextKeys = null;
+                buffer.addAll(source.complete(page, values));
+                if (demand.get() > buffer.size()) {
+                    // overlaps the next round trip with the processing of this page
+                    send(pageSize(buffer.size()));
+                }
+            }
+            return true;
+        }
+
+        private int pageSize(int buffered) {
+            final long wanted = Math.max(1, demand.get() - buffered);
+            return (int) Math.min(wanted, pageSize);
+        }
+
+        private void send(int size) {
+            final List<String> page = Lists.newArrayListWithCapacity(size);
+            while (page.size() < size && keys.hasNext()) {
+                page.add(keys.next());
+            }
+            if (!page.isEmpty()) {
+                nextKeys = page;
+                next = source.fetch(page);
+            }
+        }
+
+        private void terminate(Throwable e) {
+            LOG.debug("Scan failed", e);
+            release();
+            done = true;
+            subscriber.onError(e);
+        }
+
+        private void release() {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+            nextKeys = null;
+            buffer.clear();
+            done = true;
+        }
+
+    }
+
+}
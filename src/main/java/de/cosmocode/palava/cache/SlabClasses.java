@@ -0,0 +1,120 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ *   The slab class layout of a memcached server, computed the same way memcached computes it
+ *   from its -n (minimum space) and -f (growth factor) options.
+ * </p>
+ * <p>
+ *   Memcached stores every item in a chunk of the smallest slab class it fits into. The difference
+ *   between the chunk size and the item size is wasted. Item sizes are approximated from the item header
+ *   of a 64 bit memcached 1.4 with CAS enabled, the key, the suffix and the payload.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class SlabClasses {
+
+    static final int DEFAULT_MIN_SPACE = 48;
+
+    static final double DEFAULT_GROWTH_FACTOR = 1.25;
+
+    static final int DEFAULT_ITEM_SIZE_MAX = 1024 * 1024;
+
+    // sizeof(item) plus the 8 bytes of the cas value
+    private static final int ITEM_HEADER = 56;
+
+    private static final int CHUNK_ALIGN_BYTES = 8;
+
+    private final double growthFactor;
+    private final int[] sizes;
+
+    SlabClasses(int minSpace, double growthFactor, int itemSizeMax) {
+        Preconditions.checkArgument(minSpace > 0, "Minimum space must be positive");
+        Preconditions.checkArgument(growthFactor > 1.0, "Growth factor must be greater than 1");
+        Preconditions.checkArgument(itemSizeMax > minSpace, "Item size max must be greater than minimum space");
+        this.growthFactor = growthFactor;
+
+        final int[] classes = new int[256];
+        int count = 0;
+        // see slabs_init of memcached
+        long size = ITEM_HEADER - 8 + minSpace;
+        while (count < classes.length - 1 && size <= itemSizeMax / growthFactor) {
+            if (size % CHUNK_ALIGN_BYTES != 0) {
+                size += CHUNK_ALIGN_BYTES - size % CHUNK_ALIGN_BYTES;
+            }
+            classes[count++] = (int) size;
+            size = (long) (size * growthFactor);
+        }
+        classes[count++] = itemSizeMax;
+        this.sizes = Arrays.copyOf(classes, count);
+    }
+
+    double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    int getClassCount() {
+        return sizes.length;
+    }
+
+    /**
+     * The chunk size of the given slab class.
+     *
+     * @param slabClass the index of the slab class
+     * @return the chunk size in bytes
+     */
+    int getChunkSize(int slabClass) {
+        return sizes[slabClass];
+    }
+
+    /**
+     * Finds the slab class of an item of the given size.
+     *
+     * @param itemSize the item size, see {@link #itemSize(String, int, int)}
+     * @return the index of the slab class, -1 if the item is larger than the largest class
+     */
+    int classOf(int itemSize) {
+        final int index = Arrays.binarySearch(sizes, itemSize);
+        if (index >= 0) {
+            return index;
+        }
+        final int insertion = -index - 1;
+        return insertion < sizes.length ? insertion : -1;
+    }
+
+    /**
+     * Approximates the size memcached needs for an item.
+     *
+     * @param key the memcache key
+     * @param flags the flags of the item
+     * @param payloadLength the length of the payload
+     * @return the item size in bytes
+     */
+    static int itemSize(String key, int flags, int payloadLength) {
+        // key with terminating null, " <flags> <length>\r\n", payload plus \r\n
+        final int suffix = 4 + Integer.toString(flags).length() + Integer.toString(payloadLength).length();
+        return ITEM_HEADER + key.length() + 1 + suffix + payloadLength + 2;
+    }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+/**
+ * Whether a region relates the sizes of its items to the slab classes of memcached,
+ * see {@link SlabClasses}.
+ *
+ * @since 1.0
+ */
+public enum SlabShaping {
+
+    /**
+     * Item sizes are not related to slab classes.
+     */
+    NONE,
+
+    /**
+     * The slab class and the wasted bytes of every written item are reported, items are written as they are.
+     */
+    REPORT,
+
+    /**
+     * Like {@link #REPORT}, but uncompressed payloads are gzip compressed if this moves the item
+     * into a smaller slab class.
+     */
+    COMPACT;
+
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *   Relates the items written by one region to the slab classes of memcached.
+ * </p>
+ * <p>
+ *   Counts the items and wasted bytes per slab class and keeps a uniform sample of the recent item sizes,
+ *   from which the growth factor wasting the least memory for this region is estimated.
+ *   These are per write statistics, an overwritten item counts once per write and no live size
+ *   per key is tracked, so the counts describe the write mix rather than the current memory usage.
+ * </p>
+ * <p>
+ *   Smaller growth factors waste less per item, but spread the items over more slab classes,
+ *   each of which allocates memory in pages of the maximum item size. The estimate therefore adds
+ *   half a page per used slab class to the wasted bytes of the items.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class SlabStats {
+
+    private static final int SAMPLE_SIZE = 1024;
+
+    private static final double MIN_SUGGESTED_FACTOR = 1.05;
+
+    private static final double MAX_SUGGESTED_FACTOR = 2.0;
+
+    private static final double FACTOR_STEP = 0.05;
+
+    private final SlabClasses slabClasses;
+    private final int minSpace;
+    private final int itemSizeMax;
+
+    private final AtomicLongArray items;
+    private final AtomicLongArray wasted;
+    private final AtomicLong totalWasted = new AtomicLong();
+
+    // guarded by sample
+    private final int[] sample = new int[SAMPLE_SIZE];
+    private final Random random = new Random();
+    private long sampled;
+
+    SlabStats(int minSpace, double growthFactor, int itemSizeMax) {
+        this.slabClasses = new SlabClasses(minSpace, growthFactor, itemSizeMax);
+        this.minSpace = minSpace;
+        this.itemSizeMax = itemSizeMax;
+        this.items = new AtomicLongArray(slabClasses.getClassCount());
+        this.wasted = new AtomicLongArray(slabClasses.getClassCount());
+    }
+
+    SlabClasses getSlabClasses() {
+        return slabClasses;
+    }
+
+    /**
+     * Accounts a written item.
+     *
+     * @param itemSize the size of the item, see {@link SlabClasses#itemSize(String, int, int)}
+     */
+    void record(int itemSize) {
+        Preconditions.checkArgument(itemSize > 0, "Item size must be positive");
+        final int slabClass = slabClasses.classOf(itemSize);
+        if (slabClass < 0) {
+            // too large for memcached, rejected by the server
+            return;
+        }
+        final int slack = slabClasses.getChunkSize(slabClass) - itemSize;
+        items.incrementAndGet(slabClass);
+        wasted.addAndGet(slabClass, slack);
+        totalWasted.addAndGet(slack);
+
+        synchronized (sample) {
+            sampled++;
+            if (sampled <= SAMPLE_SIZE) {
+                sample[(int) sampled - 1] = itemSize;
+            } else {
+                final long index = (long) (random.nextDouble() * sampled);
+                if (index < SAMPLE_SIZE) {
+                    sample[(int) index] = itemSize;
+                }
+            }
+        }
+    }
+
+    /**
+     * The bytes wasted by all items written since startup, if they were still stored.
+     *
+     * @return the wasted bytes
+     */
+    long getWastedBytes() {
+        return totalWasted.get();
+    }
+
+    /**
+     * Renders the slab classes that received items, e.g. "chunk 1184: 17 items, 4.2% wasted".
+     *
+     * @return one line per used slab class
+     */
+    String[] getUsage() {
+        final List<String> lines = Lists.newArrayList();
+        for (int i = 0; i < slabClasses.getClassCount(); i++) {
+            final long count = items.get(i);
+            if (count == 0) {
+                continue;
+            }
+            final long chunkSize = slabClasses.getChunkSize(i);
+            final double ratio = 100.0 * wasted.get(i) / (count * chunkSize);
+            lines.add(String.format("chunk %d: %d items, %.1f%% wasted", chunkSize, count, ratio));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Estimates the memcached growth factor (-f) which wastes the least memory for the sampled item sizes.
+     *
+     * @return the suggested growth factor or the configured one if nothing was sampled yet
+     */
+    double suggestGrowthFactor() {
+        final int[] sizes;
+        synchronized (sample) {
+            sizes = new int[(int) Math.min(sampled, SAMPLE_SIZE)];
+            System.arraycopy(sample, 0, sizes, 0, sizes.length);
+        }
+        if (sizes.length == 0) {
+            return slabClasses.getGrowthFactor();
+        }
+
+        double best = slabClasses.getGrowthFactor();
+        long leastWasted = wasteOf(slabClasses, sizes);
+        for (double factor = MIN_SUGGESTED_FACTOR; factor <= MAX_SUGGESTED_FACTOR; factor += FACTOR_STEP) {
+            final long candidate = wasteOf(new SlabClasses(minSpace, factor, itemSizeMax), sizes);
+            if (candidate < leastWasted) {
+                leastWasted = candidate;
+                best = factor;
+            }
+        }
+        return Math.round(best * 100) / 100.0;
+    }
+
+    private long wasteOf(SlabClasses classes, int[] sizes) {
+        final boolean[] used = new boolean[classes.getClassCount()];
+        long waste = 0;
+        for (int size : sizes) {
+            final int slabClass = classes.classOf(size);
+            if (slabClass >= 0) {
+                waste += classes.getChunkSize(slabClass) - size;
+                used[slabClass] = true;
+            }
+        }
+
+        long itemCount = 0;
+        for (int i = 0; i < items.length(); i++) {
+            itemCount += items.get(i);
+        }
+        // scales the sample up to all written items
+        waste = waste * Math.max(itemCount, sizes.length) / sizes.length;
+        for (boolean slabClassUsed : used) {
+            if (slabClassUsed) {
+                waste += itemSizeMax / 2;
+            }
+        }
+        return waste;
+    }
+
+}
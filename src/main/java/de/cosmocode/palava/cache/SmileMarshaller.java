@@ -0,0 +1,135 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.io.Closeables;
+import de.cosmocode.commons.Bijection;
+import de.cosmocode.commons.reflect.Reflection;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Jackson based marshaller that encodes any POJO as Smile, the binary JSON format of Jackson.
+ * Unlike the {@link JacksonMarshaller} the metadata is written as a compact {@link BinaryHeader}.
+ *
+ * @since 1.0
+ */
+enum SmileMarshaller implements StreamingMarshaller {
+
+    INSTANCE;
+
+    private final SmileFactory factory = new SmileFactory();
+    private final ObjectMapper mapper = new ObjectMapper(factory);
+
+    @Override
+    public Bijection<Serializable, Object> inverse() {
+        return SmileInverseMarshaller.INSTANCE;
+    }
+
+    @Override
+    public Serializable apply(@Nullable Object input) {
+        if (input == null) {
+            return null;
+        }
+
+        final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        try {
+            write(input, byteStream);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return byteStream.toByteArray();
+    }
+
+    @Override
+    public void write(Object input, OutputStream output) throws IOException {
+        final DataOutputStream dataStream = new DataOutputStream(output);
+        final Object value = BinaryHeader.write(input, dataStream);
+        dataStream.writeUTF(value.getClass().getName());
+        dataStream.flush();
+
+        final JsonGenerator generator = factory.createJsonGenerator(output);
+        mapper.writeValue(generator, value);
+        generator.flush();
+    }
+
+    @Override
+    public Object read(InputStream input) throws IOException {
+        final DataInputStream dataStream = new DataInputStream(input);
+        final MetaValue metaValue = BinaryHeader.read(dataStream);
+        final String className = dataStream.readUTF();
+
+        final Class<?> valueType;
+        try {
+            valueType = Reflection.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+
+        final JsonParser parser = factory.createJsonParser(input);
+        final Object value = mapper.readValue(parser, valueType);
+
+        if (metaValue == null) {
+            return value;
+        } else {
+            metaValue.setValue(value);
+            return metaValue;
+        }
+    }
+
+    /**
+     * Decoding part of the Smile marshaller implementation.
+     */
+    private enum SmileInverseMarshaller implements Bijection<Serializable, Object> {
+
+        INSTANCE;
+
+        @Override
+        public Bijection<Object, Serializable> inverse() {
+            return SmileMarshaller.INSTANCE;
+        }
+
+        @Override
+        public Object apply(@Nullable Serializable input) {
+            if (input == null) {
+                return null;
+            }
+
+            final InputStream inputStream = new ByteArrayInputStream(byte[].class.cast(input));
+            try {
+                return SmileMarshaller.INSTANCE.read(inputStream);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                Closeables.closeQuietly(inputStream);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A {@link Marshaller} that can write to and read from streams directly,
+ * which allows large values to be stored without buffering the whole payload.
+ *
+ * @since 1.0
+ */
+public interface StreamingMarshaller extends Marshaller {
+
+    /**
+     * Writes the given object to the given stream. The stream is flushed, but not closed.
+     *
+     * @param input the object to write
+     * @param output the stream to write to
+     * @throws IOException if writing to the stream fails
+     */
+    void write(Object input, OutputStream output) throws IOException;
+
+    /**
+     * Reads an object, previously written by {@link #write(Object, OutputStream)}, from the given stream.
+     *
+     * @param input the stream to read from
+     * @return the read object
+     * @throws IOException if reading from the stream fails
+     */
+    Object read(InputStream input) throws IOException;
+
+}
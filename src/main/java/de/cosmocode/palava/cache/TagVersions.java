@@ -0,0 +1,111 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.Provider;
+import net.spy.memcached.MemcachedClientIF;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *   Maintains the version counters of the tags of one cache region in memcache.
+ * </p>
+ * <p>
+ *   An entry stores the versions of its tags at the time it was written. Invalidating a tag
+ *   increments its counter, which makes every entry that carries an older version stale.
+ *   Counters that memcache evicted invalidate their entries as well, and are recreated
+ *   with a time based seed, so that they never return to a previously issued version.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class TagVersions {
+
+    private final Provider<MemcachedClientIF> currentClient;
+    private final String regionName;
+    private final OperationGuard guard;
+
+    TagVersions(Provider<MemcachedClientIF> currentClient, String regionName, OperationGuard guard) {
+        this.currentClient = Preconditions.checkNotNull(currentClient, "CurrentClient");
+        this.regionName = Preconditions.checkNotNull(regionName, "RegionName");
+        this.guard = Preconditions.checkNotNull(guard, "Guard");
+    }
+
+    /**
+     * Reads the current versions of the given tags, creating their counters if necessary.
+     *
+     * @param tags the tags
+     * @return a map of tag to current version
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    Map<String, Long> current(String... tags) {
+        final MemcachedClientIF client = currentClient.get();
+        final Map<String, Long> versions = Maps.newHashMap();
+        for (String tag : tags) {
+            Preconditions.checkNotNull(tag, "Tag");
+            versions.put(tag, guard.mutate(client, toKey(tag), 0, System.currentTimeMillis(), 0));
+        }
+        return versions;
+    }
+
+    /**
+     * Checks whether all the given tag versions are still current.
+     *
+     * @param versions the versions of the tags as stored in an entry
+     * @return true if no tag was invalidated since the versions were read
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    boolean isCurrent(Map<String, Long> versions) {
+        final List<String> keys = Lists.newArrayListWithCapacity(versions.size());
+        for (String tag : versions.keySet()) {
+            keys.add(toKey(tag));
+        }
+
+        final String operation = "getBulk of tag versions";
+        guard.permit(operation);
+        final Map<String, Object> counters = guard.await(operation, currentClient.get().asyncGetBulk(keys));
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            final Object counter = counters.get(toKey(entry.getKey()));
+            if (counter == null || entry.getValue() != Long.parseLong(counter.toString().trim())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Invalidates the given tag by incrementing its version counter.
+     *
+     * @param tag the tag
+     * @throws MemcacheUnavailableException if the circuit is open or memcache did not answer in time
+     */
+    void invalidate(String tag) {
+        Preconditions.checkNotNull(tag, "Tag");
+        guard.mutate(currentClient.get(), toKey(tag), 1, System.currentTimeMillis(), 0);
+    }
+
+    private String toKey(String tag) {
+        return "tag." + DigestUtils.shaHex(regionName + '\0' + tag);
+    }
+
+}
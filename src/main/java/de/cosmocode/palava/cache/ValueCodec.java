@@ -0,0 +1,49 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Hand written binary serialization of one value type, registered at the {@link RegistryMarshaller}.
+ *
+ * @param <T> the value type
+ * @since 1.0
+ */
+public interface ValueCodec<T> {
+
+    /**
+     * Writes the given value.
+     *
+     * @param value the value, never null
+     * @param output the output to write to
+     * @throws IOException if writing fails
+     */
+    void write(T value, DataOutput output) throws IOException;
+
+    /**
+     * Reads a value written by {@link #write(Object, DataOutput)}.
+     *
+     * @param input the input to read from
+     * @return the read value
+     * @throws IOException if reading fails
+     */
+    T read(DataInput input) throws IOException;
+
+}
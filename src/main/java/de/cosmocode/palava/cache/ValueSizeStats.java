@@ -0,0 +1,121 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ *   Accounts the sizes of the encoded payloads written by one region. These are per write statistics,
+ *   an overwritten key counts once per write and no live size per key is tracked.
+ * </p>
+ * <p>
+ *   The histogram uses power of two buckets from 64 bytes up to 1 megabyte, the last bucket
+ *   counts everything larger. All updates are lock free.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class ValueSizeStats {
+
+    private static final int SMALLEST_BUCKET_SHIFT = 6;
+
+    private static final int LARGEST_BUCKET_SHIFT = 20;
+
+    private static final int BUCKETS = LARGEST_BUCKET_SHIFT - SMALLEST_BUCKET_SHIFT + 2;
+
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Accounts a written payload.
+     *
+     * @param bytes the size of the payload
+     */
+    void record(long bytes) {
+        Preconditions.checkArgument(bytes >= 0, "Size must not be negative");
+        histogram.incrementAndGet(bucketOf(bytes));
+        count.incrementAndGet();
+        total.addAndGet(bytes);
+        long current = max.get();
+        while (bytes > current && !max.compareAndSet(current, bytes)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Accounts a payload which was too large to be stored in memcache.
+     */
+    void recordRejected() {
+        rejected.incrementAndGet();
+    }
+
+    private static int bucketOf(long bytes) {
+        for (int shift = SMALLEST_BUCKET_SHIFT; shift <= LARGEST_BUCKET_SHIFT; shift++) {
+            if (bytes <= 1L << shift) {
+                return shift - SMALLEST_BUCKET_SHIFT;
+            }
+        }
+        return BUCKETS - 1;
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getTotalBytes() {
+        return total.get();
+    }
+
+    long getMaxBytes() {
+        return max.get();
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Renders the non-empty buckets of the histogram, e.g. "&lt;= 4096 bytes: 17".
+     *
+     * @return one line per non-empty bucket
+     */
+    String[] getHistogram() {
+        final String[] lines = new String[BUCKETS];
+        int size = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            final long values = histogram.get(i);
+            if (values == 0) {
+                continue;
+            } else if (i == BUCKETS - 1) {
+                lines[size++] = "> " + (1L << LARGEST_BUCKET_SHIFT) + " bytes: " + values;
+            } else {
+                lines[size++] = "<= " + (1L << (i + SMALLEST_BUCKET_SHIFT)) + " bytes: " + values;
+            }
+        }
+        final String[] histogramLines = new String[size];
+        System.arraycopy(lines, 0, histogramLines, 0, size);
+        return histogramLines;
+    }
+
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ *   Bounded queue of pending writes of one cache region, drained by a background writer.
+ * </p>
+ * <p>
+ *   Repeated writes of the same key collapse into the latest one. The writer takes up to the batch size
+ *   of pending writes at once, sends them pipelined and waits for the whole batch before taking the next one.
+ *   Writers of new keys block while the queue is full. Pending writes and writes of the current batch
+ *   can be read using {@link #get(String)}.
+ * </p>
+ * <p>
+ *   Blocked writers wait on a {@link Lock} instead of a monitor, so they don't pin the carrier
+ *   of a virtual thread.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class WriteBehindQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindQueue.class);
+
+    /**
+     * The target of the writes.
+     */
+    interface Sink {
+
+        Future<Boolean> store(String encodedKey, MetaValue value, int timeout);
+
+        Future<Boolean> delete(String encodedKey);
+
+        /**
+         * Called once the write of the given key completed, successful or not.
+         *
+         * @param encodedKey the memcache key
+         */
+        void written(String encodedKey);
+
+    }
+
+    private final Sink sink;
+    private final int capacity;
+    private final int batchSize;
+
+    private final Lock lock = new ReentrantLock();
+    // signalled whenever pending or inFlight changed
+    private final Condition changed = lock.newCondition();
+
+    // all guarded by lock
+    private final Map<String, Pending> pending = Maps.newLinkedHashMap();
+    private final Map<String, Pending> inFlight = Maps.newHashMap();
+    private boolean closed;
+
+    private final Thread writer;
+
+    WriteBehindQueue(Sink sink, String name, int capacity, int batchSize) {
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive");
+        Preconditions.checkArgument(batchSize > 0, "BatchSize must be positive");
+        this.sink = Preconditions.checkNotNull(sink, "Sink");
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.writer = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                drain();
+            }
+
+        }, "memcache-write-behind-" + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a write of the given value, blocking while the queue is full.
+     *
+     * @param encodedKey the memcache key
+     * @param value the value
+     * @param timeout the memcache expiration
+     */
+    void put(String encodedKey, MetaValue value, int timeout) {
+        enqueue(encodedKey, new Pending(Preconditions.checkNotNull(value, "Value"), timeout));
+    }
+
+    /**
+     * Queues a removal of the given key, blocking while the queue is full.
+     *
+     * @param encodedKey the memcache key
+     */
+    void remove(String encodedKey) {
+        enqueue(encodedKey, new Pending(null, 0));
+    }
+
+    private void enqueue(String encodedKey, Pending write) {
+        lock.lock();
+        try {
+            Preconditions.checkState(!closed, "Write behind queue is closed");
+            while (pending.size() >= capacity && !pending.containsKey(encodedKey)) {
+                changed.awaitUninterruptibly();
+            }
+            pending.put(encodedKey, write);
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the latest write of the given key which is not yet acknowledged by memcache.
+     *
+     * @param encodedKey the memcache key
+     * @return the write or null if there is none
+     */
+    Pending get(String encodedKey) {
+        lock.lock();
+        try {
+            final Pending write = pending.get(encodedKey);
+            return write == null ? inFlight.get(encodedKey) : write;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards all pending writes and waits for the current batch to complete.
+     */
+    void clear() {
+        lock.lock();
+        try {
+            pending.clear();
+            changed.signalAll();
+            awaitEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until all writes which were queued before this call are acknowledged.
+     */
+    void flush() {
+        lock.lock();
+        try {
+            awaitEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void awaitEmpty() {
+        while (!pending.isEmpty() || !inFlight.isEmpty()) {
+            changed.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Flushes all pending writes and stops the writer. Further writes are rejected.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            final Map<String, Pending> batch = Maps.newLinkedHashMap();
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    // keep draining on interrupts, the queue is stopped by close only
+                    changed.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                final Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext() && batch.size() < batchSize) {
+                    final Map.Entry<String, Pending> entry = iterator.next();
+                    batch.put(entry.getKey(), entry.getValue());
+                    inFlight.put(entry.getKey(), entry.getValue());
+                    iterator.remove();
+                }
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            write(batch);
+
+            lock.lock();
+            try {
+                inFlight.keySet().removeAll(batch.keySet());
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void write(Map<String, Pending> batch) {
+        final Map<String, Future<Boolean>> futures = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+            final Pending write = entry.getValue();
+            try {
+                if (write.value == null) {
+                    futures.put(entry.getKey(), sink.delete(entry.getKey()));
+                } else {
+                    futures.put(entry.getKey(), sink.store(entry.getKey(), write.value, write.timeout));
+                }
+            } catch (RuntimeException e) {
+                LOG.warn("Unable to write " + entry.getKey() + " behind", e);
+            }
+        }
+
+        for (Map.Entry<String, Future<Boolean>> entry : futures.entrySet()) {
+            try {
+                entry.getValue().get();
+            } catch (InterruptedException e) {
+                LOG.debug("Ignoring interrupt of write behind writer");
+            } catch (ExecutionException e) {
+                LOG.warn("Write behind failed", e.getCause());
+            }
+            // a failed write may have been applied anyway
+            sink.written(entry.getKey());
+        }
+        LOG.trace("Wrote batch of {} behind", batch.size());
+    }
+
+    /**
+     * A queued write, either of a value or a removal.
+     */
+    static final class Pending {
+
+        private final MetaValue value;
+        private final int timeout;
+
+        Pending(MetaValue value, int timeout) {
+            this.value = value;
+            this.timeout = timeout;
+        }
+
+        /**
+         * The written value.
+         *
+         * @return the value or null if the write is a removal
+         */
+        MetaValue getValue() {
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache.keysets;
+
+import java.util.Map;
+
+/**
+ * A factory that produces Maps from the keys as they appear in memcache to the serialized original keys
+ * of a cache region. Such an index allows key-level operations on regions whose keys are hashed.
+ *
+ * @since 1.0
+ */
+public interface KeyIndexFactory {
+
+    /**
+     * Constructs the new key index with the given unique name.
+     *
+     * @param name the name of the key index, the same as the cache region; can be used for persistence
+     * @return a new Map of memcache key to serialized original key
+     */
+    Map<String, byte[]> create(final String name);
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache.keysets;
+
+import com.google.common.collect.ForwardingMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.apache.commons.lang.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Key index that holds the serialized original keys in memory, in a ConcurrentMap.
+ * It is persisted next to the {@link MemoryKeySet} of the same name on palava shutdown
+ * and read from the disk on palava startup.
+ *
+ * @since 1.0
+ */
+final class MemoryKeyIndex extends ForwardingMap<String, byte[]> implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryKeyIndex.class);
+
+    private final String name;
+    private final ConcurrentMap<String, byte[]> index = Maps.newConcurrentMap();
+
+    @Inject
+    MemoryKeyIndex(@Assisted final String name) {
+        this.name = name;
+    }
+
+    @Override
+    protected Map<String, byte[]> delegate() {
+        return index;
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        try {
+            final File serializationFile = getSerializationFile();
+            if (serializationFile.exists()) {
+                final Object deserialized = SerializationUtils.deserialize(
+                        Files.newInputStreamSupplier(serializationFile).getInput()
+                );
+                @SuppressWarnings("unchecked")
+                final Map<String, byte[]> deserializedIndex = (Map<String, byte[]>) deserialized;
+                index.putAll(deserializedIndex);
+                LOG.info("Loaded {} indexed keys from hard disk", index.size());
+            }
+        } catch (IOException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        try {
+            SerializationUtils.serialize(
+                    Serializable.class.cast(index),
+                    Files.newOutputStreamSupplier(getSerializationFile()).getOutput()
+            );
+        } catch (IOException e) {
+            throw new LifecycleException(e);
+        }
+    }
+
+    private File getSerializationFile() {
+        return new File(MemoryKeySet.getSerializationDirectory(), name + ".idx");
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryKeyIndex{" +
+                "name='" + name + '\'' +
+                ", size=" + index.size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache.keysets;
+
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.assistedinject.FactoryProvider;
+
+/**
+ * Binds the memory key index implementation to be constructed by the KeyIndexFactory.
+ * Installing this module enables the original key index for regions with non-decodable keys,
+ * which makes key iteration and key lookups of those regions local operations.
+ * The index is persisted next to the memory key sets.
+ *
+ * @since 1.0
+ */
+public class MemoryKeyIndexModule implements Module {
+
+    @Override
+    public void configure(Binder binder) {
+        binder.bind(KeyIndexFactory.class).toProvider(
+                FactoryProvider.newFactory(KeyIndexFactory.class, MemoryKeyIndex.class));
+    }
+
+}
@@ -91,11 +91,20 @@ final class MemoryKeySet extends ForwardingSet<String> implements Set<String>, I
     }
 
     private File getSerializationFile() {
+        return new File(getSerializationDirectory(), name + ".ser");
+    }
+
+    /**
+     * The directory in which the in-memory key structures are persisted.
+     *
+     * @return the serialization directory, created if necessary
+     */
+    static File getSerializationDirectory() {
         final File parentDir = new File(System.getProperty("java.io.tmpdir", "/tmp"), "memoryKeySets");
         if (parentDir.mkdirs()) {
             LOG.info("Created parent serialization directory {}", parentDir);
         }
-        return new File(parentDir, name + ".ser");
+        return parentDir;
     }
 
     @Override
@@ -0,0 +1,268 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache.keysets;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.inject.Inject;
+import com.google.inject.assistedinject.Assisted;
+import com.google.inject.name.Named;
+import de.cosmocode.palava.core.lifecycle.Disposable;
+import de.cosmocode.palava.core.lifecycle.Initializable;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.apache.commons.lang.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ *   KeySet that partitions the keys by their hash into a fixed number of shards. Every shard is an independent
+ *   concurrent set, so writers of different shards never contend.
+ * </p>
+ * <p>
+ *   Every shard is persisted to its own file on palava shutdown and read from the disk on palava startup.
+ *   The shards are loaded and saved in parallel. Files of a former shard count and of a former
+ *   {@link MemoryKeySet} are loaded as well, and removed after the next save.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class ShardedKeySet extends AbstractSet<String> implements Initializable, Disposable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShardedKeySet.class);
+
+    private final String name;
+    private final Set<String>[] shards;
+
+    @Inject
+    @SuppressWarnings("unchecked")
+    ShardedKeySet(@Assisted final String name, @Named(ShardedKeySetModule.SHARDS) int shards) {
+        Preconditions.checkArgument(shards > 0, "Shards must be positive");
+        this.name = Preconditions.checkNotNull(name, "Name");
+        this.shards = new Set[shards];
+        for (int i = 0; i < shards; i++) {
+            this.shards[i] = Sets.newSetFromMap(new MapMaker().<String, Boolean>makeMap());
+        }
+    }
+
+    private Set<String> shardOf(Object key) {
+        // spread the hash, the shards of a set would otherwise use the same bits as the buckets of their map
+        final int hash = key.hashCode() * 0x9E3779B9;
+        return shards[(hash >>> 1) % shards.length];
+    }
+
+    @Override
+    public boolean add(String key) {
+        return shardOf(Preconditions.checkNotNull(key, "Key")).add(key);
+    }
+
+    @Override
+    public boolean remove(Object key) {
+        return key != null && shardOf(key).remove(key);
+    }
+
+    @Override
+    public boolean contains(Object key) {
+        return key != null && shardOf(key).contains(key);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Set<String> shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (Set<String> shard : shards) {
+            if (!shard.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (Set<String> shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return Iterators.concat(Iterators.transform(Iterators.forArray(shards),
+            new Function<Set<String>, Iterator<String>>() {
+
+                @Override
+                public Iterator<String> apply(Set<String> shard) {
+                    return shard.iterator();
+                }
+
+            }));
+    }
+
+    @Override
+    public void initialize() throws LifecycleException {
+        final List<Callable<Void>> tasks = Lists.newArrayList();
+        for (final File file : existingFiles()) {
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    final Object deserialized = SerializationUtils.deserialize(
+                            Files.newInputStreamSupplier(file).getInput()
+                    );
+                    @SuppressWarnings("unchecked")
+                    final Collection<String> keys = (Collection<String>) deserialized;
+                    // keys are redistributed, the file may stem from another shard count
+                    addAll(keys);
+                    return null;
+                }
+
+            });
+        }
+        runInParallel(tasks);
+        if (!tasks.isEmpty()) {
+            LOG.info("Loaded {} keys of {} from {} files", new Object[] {size(), name, tasks.size()});
+        }
+    }
+
+    @Override
+    public void dispose() throws LifecycleException {
+        final List<Callable<Void>> tasks = Lists.newArrayListWithCapacity(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            final Set<String> shard = shards[i];
+            final File file = getSerializationFile(i);
+            tasks.add(new Callable<Void>() {
+
+                @Override
+                public Void call() throws IOException {
+                    final File temporary = new File(file.getPath() + ".tmp");
+                    SerializationUtils.serialize(
+                            Sets.newHashSet(shard),
+                            Files.newOutputStreamSupplier(temporary).getOutput()
+                    );
+                    // replace the former file only once the shard is written completely
+                    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                        throw new IOException("Unable to rename " + temporary + " to " + file);
+                    }
+                    return null;
+                }
+
+            });
+        }
+        runInParallel(tasks);
+        compact();
+    }
+
+    /**
+     * Removes the files which are no longer part of the current shard layout.
+     */
+    private void compact() {
+        final List<File> current = Lists.newArrayListWithCapacity(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            current.add(getSerializationFile(i));
+        }
+        for (File file : existingFiles()) {
+            if (!current.contains(file)) {
+                if (file.delete()) {
+                    LOG.debug("Deleted stale key set file {}", file);
+                } else {
+                    LOG.warn("Unable to delete stale key set file {}", file);
+                }
+            }
+        }
+    }
+
+    private void runInParallel(List<Callable<Void>> tasks) throws LifecycleException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        final int threads = Math.min(tasks.size(), Runtime.getRuntime().availableProcessors());
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new LifecycleException(e);
+        } catch (ExecutionException e) {
+            throw new LifecycleException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Lists the shard files of this key set of any shard count and the file of a former {@link MemoryKeySet}.
+     *
+     * @return all existing files of this key set
+     */
+    private List<File> existingFiles() {
+        // the shard infix keeps the files of regions like "cache.0" apart from the shards of "cache"
+        final Pattern pattern = Pattern.compile(Pattern.quote(name) + "\\.shard-\\d+\\.ser");
+        final String legacy = name + ".ser";
+        final File[] files = MemoryKeySet.getSerializationDirectory().listFiles();
+        final List<File> existing = Lists.newArrayList();
+        for (File file : files == null ? new File[0] : files) {
+            final Matcher matcher = pattern.matcher(file.getName());
+            if (matcher.matches() || file.getName().equals(legacy)) {
+                existing.add(file);
+            }
+        }
+        return existing;
+    }
+
+    private File getSerializationFile(int shard) {
+        return new File(MemoryKeySet.getSerializationDirectory(), name + ".shard-" + shard + ".ser");
+    }
+
+    @Override
+    public String toString() {
+        return "ShardedKeySet{" +
+                "name='" + name + '\'' +
+                ", shards=" + shards.length +
+                ", size=" + size() +
+                '}';
+    }
+
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache.keysets;
+
+import com.google.common.base.Preconditions;
+import com.google.inject.Binder;
+import com.google.inject.Module;
+import com.google.inject.assistedinject.FactoryProvider;
+import com.google.inject.name.Names;
+
+/**
+ * Binds the sharded key set implementation to be constructed by the KeySetFactory.
+ * Like the memory key set it holds the keys in the memory of the jvm, but partitioned into shards,
+ * each of which is persisted to its own file. Shards are loaded and saved in parallel.
+ *
+ * @since 1.0
+ */
+public class ShardedKeySetModule implements Module {
+
+    static final String SHARDS = "cache.memcache.keySets.shards";
+
+    private final int shards;
+
+    /**
+     * Uses one shard per available processor.
+     */
+    public ShardedKeySetModule() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ShardedKeySetModule(int shards) {
+        Preconditions.checkArgument(shards > 0, "Shards must be positive");
+        this.shards = shards;
+    }
+
+    @Override
+    public void configure(Binder binder) {
+        binder.bindConstant().annotatedWith(Names.named(SHARDS)).to(shards);
+        binder.bind(KeySetFactory.class).toProvider(
+                FactoryProvider.newFactory(KeySetFactory.class, ShardedKeySet.class));
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.Lists;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Tests {@link KeyMarshallers#BASE64_SERIALIZE}.
+ *
+ * @since 1.0
+ */
+public class Base64KeysTest {
+
+    private final KeyMarshaller marshaller = KeyMarshallers.BASE64_SERIALIZE;
+
+    private void assertRoundTrip(Serializable key) {
+        final String encoded = marshaller.encode(key);
+        Assert.assertTrue(encoded, encoded.matches("[A-Za-z0-9_\\-]+"));
+        Assert.assertTrue(encoded.length() <= 250);
+        Assert.assertEquals(key, marshaller.decode(encoded));
+    }
+
+    private String repeat(int length) {
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void strings() {
+        assertRoundTrip("");
+        assertRoundTrip("a");
+        assertRoundTrip("ab");
+        assertRoundTrip("abc");
+        assertRoundTrip("with spaces\r\n and \u00fcml\u00e4uts \u20ac");
+    }
+
+    @Test
+    public void numbers() {
+        assertRoundTrip(42);
+        assertRoundTrip(-42);
+        assertRoundTrip(Long.MAX_VALUE);
+        Assert.assertFalse(marshaller.encode(42).equals(marshaller.encode(42L)));
+        Assert.assertFalse(marshaller.encode(42).equals(marshaller.encode("42")));
+    }
+
+    @Test
+    public void serializables() {
+        final ArrayList<Integer> key = Lists.newArrayList(1, 2, 3);
+        assertRoundTrip(key);
+    }
+
+    @Test
+    public void longKeysAreHashed() {
+        final String key = repeat(200);
+        final String encoded = marshaller.encode(key);
+        Assert.assertTrue(encoded.length() <= 250);
+        Assert.assertEquals(encoded, marshaller.encode(repeat(200)));
+        Assert.assertFalse(encoded.equals(marshaller.encode(repeat(201))));
+        Assert.assertNull(marshaller.decode(encoded));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidKey() {
+        marshaller.decode("s a");
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link CircuitBreaker}.
+ *
+ * @since 1.0
+ */
+public class CircuitBreakerTest {
+
+    @Test
+    public void opensAfterConsecutiveFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(2, 50, 10000);
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        Assert.assertTrue(breaker.allowRequest());
+        breaker.recordFailure();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void slowCallsCountAsFailures() {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 50, 10000);
+        breaker.recordSuccess(TimeUnit.MILLISECONDS.toNanos(100));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenProbe() throws InterruptedException {
+        final CircuitBreaker breaker = new CircuitBreaker(1, 50, 10);
+        breaker.recordFailure();
+        Thread.sleep(20);
+        Assert.assertTrue(breaker.allowRequest());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        Assert.assertFalse(breaker.allowRequest());
+        breaker.recordSuccess(0);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+}
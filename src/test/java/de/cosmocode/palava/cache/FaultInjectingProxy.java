@@ -0,0 +1,279 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ *   A TCP proxy in front of the local memcache server, which speaks just enough of the text protocol
+ *   to inject faults: latency on every response, dropped connections and values missing from get responses,
+ *   which simulates eviction pressure and partial multi-get responses.
+ * </p>
+ * <p>
+ *   Commands of a connection are processed one after another, so pipelined commands queue up behind
+ *   injected latency, just like they do behind a stalled memcache node.
+ * </p>
+ *
+ * @since 1.0
+ */
+final class FaultInjectingProxy {
+
+    // the text protocol is ascii, but latin-1 passes every byte through unchanged
+    private static final String CHARSET = "ISO-8859-1";
+
+    private static final Set<String> STORAGE_COMMANDS = ImmutableSet.of(
+        "set", "add", "replace", "append", "prepend", "cas"
+    );
+
+    private final String address;
+    private final int port;
+    private final int targetPort;
+
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+    private final AtomicLong values = new AtomicLong();
+
+    private volatile long latencyMillis;
+    private volatile int dropEveryNthValue;
+
+    private ServerSocket serverSocket;
+
+    FaultInjectingProxy(String address, int port, int targetPort) {
+        this.address = address;
+        this.port = port;
+        this.targetPort = targetPort;
+    }
+
+    /**
+     * Delays every response by the given time.
+     *
+     * @param millis the latency in milliseconds, 0 disables it
+     */
+    void setLatencyMillis(long millis) {
+        this.latencyMillis = millis;
+    }
+
+    /**
+     * Drops every nth value from get responses, as if memcache had evicted it.
+     *
+     * @param n the interval, 1 drops every value, 0 disables it
+     */
+    void setDropEveryNthValue(int n) {
+        this.dropEveryNthValue = n;
+    }
+
+    /**
+     * Closes all currently open connections, the client has to reconnect.
+     */
+    void dropConnections() {
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(address, port));
+        daemon("fault-injecting-proxy", new Runnable() {
+
+            @Override
+            public void run() {
+                accept();
+            }
+
+        });
+    }
+
+    void stop() {
+        closeQuietly(serverSocket);
+        dropConnections();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            final Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // closed by stop
+                return;
+            }
+            daemon("fault-injecting-proxy-" + client.getPort(), new Runnable() {
+
+                @Override
+                public void run() {
+                    serve(client);
+                }
+
+            });
+        }
+    }
+
+    private void serve(Socket client) {
+        sockets.add(client);
+        Socket server = null;
+        try {
+            server = new Socket(address, targetPort);
+            sockets.add(server);
+            final InputStream fromClient = new BufferedInputStream(client.getInputStream());
+            final OutputStream toClient = new BufferedOutputStream(client.getOutputStream());
+            final InputStream fromServer = new BufferedInputStream(server.getInputStream());
+            final OutputStream toServer = new BufferedOutputStream(server.getOutputStream());
+
+            while (true) {
+                final String command = readLine(fromClient);
+                final String[] parts = command.split(" ");
+                writeLine(toServer, command);
+                if (STORAGE_COMMANDS.contains(parts[0])) {
+                    toServer.write(readFully(fromClient, Integer.parseInt(parts[4]) + 2));
+                }
+                toServer.flush();
+
+                final ByteArrayOutputStream response = new ByteArrayOutputStream();
+                if ("get".equals(parts[0]) || "gets".equals(parts[0])) {
+                    copyValues(fromServer, response);
+                } else if ("stats".equals(parts[0])) {
+                    copyUntilEnd(fromServer, response);
+                } else {
+                    writeLine(response, readLine(fromServer));
+                }
+
+                final long latency = latencyMillis;
+                if (latency > 0) {
+                    Thread.sleep(latency);
+                }
+                response.writeTo(toClient);
+                toClient.flush();
+            }
+        } catch (IOException e) {
+            // connection dropped, either by a peer or by dropConnections
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(client);
+            closeQuietly(server);
+            sockets.remove(client);
+            sockets.remove(server);
+        }
+    }
+
+    private void copyValues(InputStream input, OutputStream output) throws IOException {
+        while (true) {
+            final String line = readLine(input);
+            if (line.startsWith("VALUE ")) {
+                final byte[] data = readFully(input, Integer.parseInt(line.split(" ")[3]) + 2);
+                final int n = dropEveryNthValue;
+                if (n > 0 && values.incrementAndGet() % n == 0) {
+                    continue;
+                }
+                writeLine(output, line);
+                output.write(data);
+            } else {
+                writeLine(output, line);
+                return;
+            }
+        }
+    }
+
+    private void copyUntilEnd(InputStream input, OutputStream output) throws IOException {
+        String line;
+        do {
+            line = readLine(input);
+            writeLine(output, line);
+        } while (!"END".equals(line) && !line.endsWith("ERROR"));
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int previous = -1;
+        while (true) {
+            final int current = input.read();
+            if (current == -1) {
+                throw new EOFException();
+            } else if (previous == '\r' && current == '\n') {
+                final byte[] bytes = line.toByteArray();
+                return new String(bytes, 0, bytes.length - 1, CHARSET);
+            }
+            line.write(current);
+            previous = current;
+        }
+    }
+
+    private static void writeLine(OutputStream output, String line) throws IOException {
+        output.write(line.getBytes(CHARSET));
+        output.write('\r');
+        output.write('\n');
+    }
+
+    private static byte[] readFully(InputStream input, int length) throws IOException {
+        final byte[] bytes = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            final int read = input.read(bytes, offset, length - offset);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+        return bytes;
+    }
+
+    private static void daemon(String name, Runnable runnable) {
+        final Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    private static void closeQuietly(ServerSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link HotKeyTracker}.
+ *
+ * @since 1.0
+ */
+public class HotKeyTrackerTest {
+
+    @Test
+    public void detectsHotKey() {
+        final HotKeyTracker tracker = new HotKeyTracker(2, 10, 1000);
+        for (int i = 0; i < 9; i++) {
+            Assert.assertFalse(tracker.offer("hot"));
+        }
+        Assert.assertTrue(tracker.offer("hot"));
+        Assert.assertFalse(tracker.offer("cold"));
+        Assert.assertTrue(tracker.getHotKeys().containsKey("hot"));
+    }
+
+    @Test
+    public void capacityIsBounded() {
+        final HotKeyTracker tracker = new HotKeyTracker(2, 5, 10000);
+        for (String key : new String[] {"a", "b", "c"}) {
+            for (int i = 0; i < 10; i++) {
+                tracker.offer(key);
+            }
+        }
+        Assert.assertEquals(2, tracker.getHotKeys().size());
+    }
+
+    @Test
+    public void decaysAfterWindow() {
+        final HotKeyTracker tracker = new HotKeyTracker(2, 10, 20);
+        for (int i = 0; i < 10; i++) {
+            tracker.offer("hot");
+        }
+        Assert.assertTrue(tracker.getHotKeys().containsKey("hot"));
+        for (int i = 0; i < 10; i++) {
+            tracker.offer("other" + i);
+        }
+        Assert.assertFalse(tracker.getHotKeys().containsKey("hot"));
+    }
+
+}
@@ -0,0 +1,267 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Key;
+import com.google.inject.Provider;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.Current;
+import net.spy.memcached.MemcachedClientIF;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Tests {@link InvalidationBus} with several in-process nodes sharing the local memcache server.
+ *
+ * @since 1.0
+ */
+public class InvalidationBusTest {
+
+    private final Framework framework = Palava.newFramework(new MemcacheTestModule(), new Properties());
+
+    @Before
+    public void start() throws LifecycleException {
+        framework.start();
+    }
+
+    @After
+    public void stop() throws LifecycleException {
+        framework.stop();
+    }
+
+    /**
+     * Records all invalidations of one node.
+     */
+    private static final class RecordingListener implements InvalidationBus.Listener {
+
+        private final List<String> keys = Lists.newArrayList();
+        private int all;
+
+        @Override
+        public void invalidate(String encodedKey) {
+            keys.add(encodedKey);
+        }
+
+        @Override
+        public void invalidateAll() {
+            all++;
+        }
+
+    }
+
+    /**
+     * Delivers the queued events and records the published ones.
+     */
+    private static final class QueueTransport implements InvalidationTransport {
+
+        private final List<InvalidationEvent> incoming = Lists.newArrayList();
+        private final List<InvalidationEvent> published = Lists.newArrayList();
+
+        @Override
+        public void publish(Collection<InvalidationEvent> events) {
+            published.addAll(events);
+        }
+
+        @Override
+        public List<InvalidationEvent> poll() {
+            final List<InvalidationEvent> events = Lists.newArrayList(incoming);
+            incoming.clear();
+            return events;
+        }
+
+        @Override
+        public void close() {
+            // nothing to release
+        }
+
+    }
+
+    private final Provider<MemcachedClientIF> client = new Provider<MemcachedClientIF>() {
+
+        @Override
+        public MemcachedClientIF get() {
+            return framework.getInstance(Key.get(MemcachedClientIF.class, Current.class));
+        }
+
+    };
+
+    private InvalidationBus newNode(RecordingListener listener) {
+        final InvalidationBus bus = newBus();
+        bus.register("region", listener);
+        return bus;
+    }
+
+    private InvalidationBus newBus() {
+        final InvalidationBus bus = new InvalidationBus(new MemcacheInvalidationTransport(client, 60), 60000);
+        // the first run only determines the position in the version log
+        bus.runOnce();
+        return bus;
+    }
+
+    /**
+     * Creates the region of one node, which replicates every key read at least once.
+     */
+    private MemcacheCacheRegion<String, String> newRegion(InvalidationBus bus) {
+        final MemcacheCacheRegion<String, String> region = new MemcacheCacheRegion<String, String>(
+            null, client, KeyMarshallers.HASHED_JSON, new MarshallerTranscoder(JacksonMarshaller.INSTANCE), "shared");
+        region.enableHotKeyReplication(new HotKeyTracker(10, 1, 1000), new NearCache(60000, 10));
+        region.enableInvalidationBus(bus);
+        return region;
+    }
+
+    @Test
+    public void severalNodes() {
+        final RecordingListener first = new RecordingListener();
+        final RecordingListener second = new RecordingListener();
+        final RecordingListener third = new RecordingListener();
+        final InvalidationBus publisher = newNode(first);
+        final InvalidationBus secondNode = newNode(second);
+        final InvalidationBus thirdNode = newNode(third);
+
+        publisher.publish("region", "a");
+        publisher.publish("region", "b");
+        publisher.publish("region", "a");
+        publisher.publish("other", "c");
+        publisher.runOnce();
+        secondNode.runOnce();
+        thirdNode.runOnce();
+
+        Assert.assertTrue(first.keys.isEmpty());
+        Assert.assertEquals(Arrays.asList("b", "a"), second.keys);
+        Assert.assertEquals(Arrays.asList("b", "a"), third.keys);
+
+        publisher.publish("region", null);
+        publisher.runOnce();
+        secondNode.runOnce();
+        Assert.assertEquals(1, second.all);
+        Assert.assertEquals(0, third.all);
+    }
+
+    @Test
+    public void evictsNearCachesOfOtherNodes() {
+        final InvalidationBus firstBus = newBus();
+        final InvalidationBus secondBus = newBus();
+        final MemcacheCacheRegion<String, String> first = newRegion(firstBus);
+        final MemcacheCacheRegion<String, String> second = newRegion(secondBus);
+
+        first.put("key", "v1");
+        Assert.assertEquals("v1", second.get("key"));
+        first.put("key", "v2");
+        // still replicated on the second node
+        Assert.assertEquals("v1", second.get("key"));
+
+        firstBus.runOnce();
+        secondBus.runOnce();
+        Assert.assertEquals("v2", second.get("key"));
+        first.remove("key");
+        first.dispose();
+        second.dispose();
+    }
+
+    @Test
+    public void evictsAfterWriteBehind() {
+        final InvalidationBus firstBus = newBus();
+        final InvalidationBus secondBus = newBus();
+        final MemcacheCacheRegion<String, String> first = newRegion(firstBus);
+        first.enableWriteBehind(10, 10);
+        final MemcacheCacheRegion<String, String> second = newRegion(secondBus);
+
+        first.put("key", "v1");
+        first.flush();
+        firstBus.runOnce();
+        secondBus.runOnce();
+        Assert.assertEquals("v1", second.get("key"));
+
+        first.put("key", "v2");
+        first.flush();
+        firstBus.runOnce();
+        secondBus.runOnce();
+        Assert.assertEquals("v2", second.get("key"));
+        first.remove("key");
+        first.dispose();
+        second.dispose();
+    }
+
+    @Test
+    public void consecutiveGenerations() {
+        final QueueTransport transport = new QueueTransport();
+        final InvalidationBus bus = new InvalidationBus(transport, 60000);
+        bus.publish("region", "a");
+        bus.publish("region", "b");
+        bus.publish("region", "a");
+        bus.runOnce();
+        bus.publish("region", "c");
+        bus.runOnce();
+
+        Assert.assertEquals(3, transport.published.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(i + 1, transport.published.get(i).getGeneration());
+        }
+    }
+
+    @Test
+    public void duplicatesAndGaps() {
+        final QueueTransport transport = new QueueTransport();
+        final InvalidationBus bus = new InvalidationBus(transport, 60000);
+        final RecordingListener listener = new RecordingListener();
+        bus.register("region", listener);
+
+        transport.incoming.add(new InvalidationEvent("other", "region", "a", 1));
+        transport.incoming.add(new InvalidationEvent("other", "region", "a", 1));
+        transport.incoming.add(new InvalidationEvent("other", "region", "b", 2));
+        bus.runOnce();
+        Assert.assertEquals(Arrays.asList("a", "b"), listener.keys);
+        Assert.assertEquals(0, listener.all);
+
+        // 3 got lost and arrives late
+        transport.incoming.add(new InvalidationEvent("other", "region", "d", 4));
+        transport.incoming.add(new InvalidationEvent("other", "region", "c", 3));
+        bus.runOnce();
+        Assert.assertEquals(Arrays.asList("a", "b", "d"), listener.keys);
+        Assert.assertEquals(1, listener.all);
+    }
+
+    @Test
+    public void forgetsSilentNodes() throws InterruptedException {
+        final QueueTransport transport = new QueueTransport();
+        final InvalidationBus bus = new InvalidationBus(transport, 50);
+        final RecordingListener listener = new RecordingListener();
+        bus.register("region", listener);
+
+        transport.incoming.add(new InvalidationEvent("other", "region", "a", 1));
+        bus.runOnce();
+        Thread.sleep(100);
+        bus.runOnce();
+
+        // the first event of a forgotten node starts over, without a gap
+        transport.incoming.add(new InvalidationEvent("other", "region", "c", 3));
+        bus.runOnce();
+        Assert.assertEquals(Arrays.asList("a", "c"), listener.keys);
+        Assert.assertEquals(0, listener.all);
+    }
+
+}
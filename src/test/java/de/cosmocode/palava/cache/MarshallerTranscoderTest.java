@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.Maps;
+import net.spy.memcached.CachedData;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ * Tests {@link MarshallerTranscoder}.
+ *
+ * @since 1.0
+ */
+public class MarshallerTranscoderTest {
+
+    private MarshallerTranscoder transcoder(Codec codec) {
+        final Map<Codec, Marshaller> marshallers = Maps.newEnumMap(Codec.class);
+        marshallers.put(Codec.JSON, JacksonMarshaller.INSTANCE);
+        marshallers.put(Codec.SMILE, SmileMarshaller.INSTANCE);
+        marshallers.put(Codec.REGISTRY, new RegistryMarshaller());
+        return new MarshallerTranscoder(codec, marshallers);
+    }
+
+    private MetaValue metaValue(Object value) {
+        final MetaValue metaValue = new MetaValue();
+        metaValue.setKey("key");
+        metaValue.setValue(value);
+        return metaValue;
+    }
+
+    @Test
+    public void smile() {
+        final MarshallerTranscoder transcoder = transcoder(Codec.SMILE);
+        final TestObject value = new TestObject("John", "Mal", 12);
+        final MetaValue decoded = (MetaValue) transcoder.decode(transcoder.encode(metaValue(value)));
+        Assert.assertEquals("key", decoded.getKey());
+        Assert.assertEquals(value, decoded.getValue());
+    }
+
+    @Test
+    public void registry() {
+        final MarshallerTranscoder transcoder = transcoder(Codec.REGISTRY);
+        final MetaValue decoded = (MetaValue) transcoder.decode(transcoder.encode(metaValue(42L)));
+        Assert.assertEquals("key", decoded.getKey());
+        Assert.assertEquals(42L, decoded.getValue());
+    }
+
+    @Test
+    public void registryLongString() {
+        final MarshallerTranscoder transcoder = transcoder(Codec.REGISTRY);
+        final StringBuilder value = new StringBuilder();
+        // three bytes per character in UTF-8, far beyond the 65535 bytes of writeUTF
+        for (int i = 0; i < 30000; i++) {
+            value.append('\u20ac');
+        }
+        final MetaValue decoded = (MetaValue) transcoder.decode(transcoder.encode(metaValue(value.toString())));
+        Assert.assertEquals(value.toString(), decoded.getValue());
+    }
+
+    @Test
+    public void readsValuesOfPreviousCodec() {
+        final TestObject value = new TestObject("John", "Mal", 12);
+        final CachedData legacy = new MarshallerTranscoder(JacksonMarshaller.INSTANCE).encode(metaValue(value));
+        Assert.assertEquals(0, legacy.getFlags());
+        final MetaValue decoded = (MetaValue) transcoder(Codec.SMILE).decode(legacy);
+        Assert.assertEquals(value, decoded.getValue());
+    }
+
+    @Test
+    public void compressed() {
+        final Map<Codec, Marshaller> marshallers = Maps.newEnumMap(Codec.class);
+        marshallers.put(Codec.JSON, JacksonMarshaller.INSTANCE);
+        final MarshallerTranscoder transcoder = new MarshallerTranscoder(Codec.JSON, marshallers, true);
+        final TestObject value = new TestObject("John", "Mal", 12);
+        final CachedData cachedData = transcoder.encode(metaValue(value));
+        Assert.assertTrue((cachedData.getFlags() & MarshallerTranscoder.FLAG_COMPRESSED) != 0);
+        final MetaValue decoded = (MetaValue) transcoder(Codec.SMILE).decode(cachedData);
+        Assert.assertEquals(value, decoded.getValue());
+    }
+
+}
@@ -0,0 +1,181 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.Lists;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Load tests of {@link MemcacheCacheRegion}, asserting generous throughput and latency bounds
+ * against the local memcache server. They depend on the machine and are therefore excluded
+ * from the default test run, run them with the load-tests profile.
+ *
+ * @since 1.0
+ */
+public class MemcacheCacheRegionLoadTest {
+
+    private static final int THREADS = 4;
+
+    private static final int OPERATIONS_PER_THREAD = 500;
+
+    private static final long MAX_P99_MILLIS = 50;
+
+    private static final long MIN_OPERATIONS_PER_SECOND = 500;
+
+    private final Framework framework = Palava.newFramework(new MemcacheTestModule(), new Properties());
+
+    @Before
+    public void start() throws LifecycleException {
+        framework.start();
+    }
+
+    @After
+    public void stop() throws LifecycleException {
+        framework.stop();
+    }
+
+    /**
+     * An operation under test.
+     */
+    private interface Operation {
+
+        void run(CacheRegion<String, TestObject> region, String key);
+
+    }
+
+    private void assertBounds(final Operation operation) throws InterruptedException {
+        final CacheRegion<String, TestObject> region = framework.getInstance(CacheRepository.class).getRegion("load");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            region.put("key" + i, value);
+        }
+
+        final long[] latencies = new long[THREADS * OPERATIONS_PER_THREAD];
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        final long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            final int offset = t * OPERATIONS_PER_THREAD;
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+                            final long begin = System.nanoTime();
+                            operation.run(region, "key" + i);
+                            latencies[offset + i] = System.nanoTime() - begin;
+                        }
+                    } catch (Throwable e) {
+                        // includes assertion errors, which would otherwise be lost in the pool
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+
+            });
+        }
+        Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+        final long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        Assert.assertNull(failure.get());
+
+        Arrays.sort(latencies);
+        final long p99 = TimeUnit.NANOSECONDS.toMillis(latencies[latencies.length * 99 / 100]);
+        final long throughput = latencies.length * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        Assert.assertTrue("p99 of " + p99 + "ms exceeds " + MAX_P99_MILLIS + "ms", p99 <= MAX_P99_MILLIS);
+        Assert.assertTrue("throughput of " + throughput + " ops/s is below " + MIN_OPERATIONS_PER_SECOND,
+            throughput >= MIN_OPERATIONS_PER_SECOND);
+    }
+
+    @Test
+    public void get() throws InterruptedException {
+        assertBounds(new Operation() {
+
+            @Override
+            public void run(CacheRegion<String, TestObject> region, String key) {
+                Assert.assertNotNull(region.get(key));
+            }
+
+        });
+    }
+
+    @Test
+    public void put() throws InterruptedException {
+        final TestObject value = new TestObject("Jane", "Mal", 21);
+        assertBounds(new Operation() {
+
+            @Override
+            public void run(CacheRegion<String, TestObject> region, String key) {
+                region.put(key, value);
+            }
+
+        });
+    }
+
+    /**
+     * Reads as many values as the other tests from a single thread, keeping all reads in flight
+     * using {@link MemcacheRegion#getAsync(Serializable)} instead of blocking one thread per read.
+     *
+     * @throws Exception if a read fails
+     */
+    @Test
+    public void pipelinedGetAsync() throws Exception {
+        final MemcacheRegion<String, TestObject> region = (MemcacheRegion<String, TestObject>)
+            framework.getInstance(CacheRepository.class).<String, TestObject>getRegion("load");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        for (int i = 0; i < OPERATIONS_PER_THREAD; i++) {
+            region.put("key" + i, value);
+        }
+
+        final int operations = THREADS * OPERATIONS_PER_THREAD;
+        final List<Future<TestObject>> futures = Lists.newArrayListWithCapacity(operations);
+        final long start = System.nanoTime();
+        for (int i = 0; i < operations; i++) {
+            futures.add(region.getAsync("key" + (i % OPERATIONS_PER_THREAD)));
+        }
+        for (Future<TestObject> future : futures) {
+            Assert.assertEquals(value, future.get(10, TimeUnit.SECONDS));
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final long throughput = operations * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        Assert.assertTrue("throughput of " + throughput + " ops/s is below " + MIN_OPERATIONS_PER_SECOND,
+            throughput >= MIN_OPERATIONS_PER_SECOND);
+    }
+
+}
@@ -17,20 +17,40 @@
 package de.cosmocode.palava.cache;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.inject.AbstractModule;
+import com.google.inject.Key;
+import com.google.inject.util.Modules;
 import de.cosmocode.junit.LoggingRunner;
 import de.cosmocode.palava.core.Framework;
 import de.cosmocode.palava.core.Palava;
 import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.Current;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests {@link MemcacheCacheRegion}.
@@ -41,7 +61,57 @@ import java.util.Properties;
 @RunWith(LoggingRunner.class)
 public class MemcacheCacheRegionTest {
 
-    private final Framework framework = Palava.newFramework(new MemcacheTestModule(), new Properties());
+    /**
+     * Encodes every key to the same memcache key, to provoke collisions.
+     */
+    private static final KeyMarshaller COLLIDING = new KeyMarshaller() {
+
+        @Override
+        public String encode(Serializable key) {
+            return "colliding";
+        }
+
+        @Override
+        public Serializable decode(String encoded) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isDecodable() {
+            return false;
+        }
+
+    };
+
+    /**
+     * Binds the differently configured regions used by the tests.
+     */
+    private static final class RegionsModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            install(new MemcacheRegionModule("configured", new MemcacheRegionConfig().
+                codec(Codec.SMILE).compression(true).keyTracking(KeyTracking.MEMORY)));
+            install(new MemcacheRegionModule("untracked", new MemcacheRegionConfig().keyTracking(KeyTracking.NONE)));
+            install(new MemcacheRegionModule("writeBehind", new MemcacheRegionConfig().writeBehindCapacity(100)));
+            install(new MemcacheRegionModule("colliding", new MemcacheRegionConfig().
+                keyMarshaller(COLLIDING).verifyKeys(true).keyTracking(KeyTracking.NONE)));
+            install(new MemcacheRegionModule("murmur", new MemcacheRegionConfig().
+                keyMarshaller(new MurmurKeyMarshaller("murmur"))));
+            install(new MemcacheRegionModule("base64", new MemcacheRegionConfig().
+                keyMarshaller(KeyMarshallers.BASE64_SERIALIZE)));
+            install(new MemcacheRegionModule("rejecting", new MemcacheRegionConfig().
+                chunkSize(1024).oversizePolicy(OversizePolicy.REJECT)));
+            install(new MemcacheRegionModule("compressing", new MemcacheRegionConfig().
+                chunkSize(1024).oversizePolicy(OversizePolicy.COMPRESS)));
+            install(new MemcacheRegionModule("local", new MemcacheRegionConfig().
+                chunkSize(1024).oversizePolicy(OversizePolicy.LOCAL_ONLY)));
+        }
+
+    }
+
+    private final Framework framework = Palava.newFramework(
+        Modules.combine(new MemcacheTestModule(), new RegionsModule()), new Properties());
 
     @Before
     public void start() throws LifecycleException {
@@ -58,6 +128,10 @@ public class MemcacheCacheRegionTest {
         return cacheRepository.getRegion(name);
     }
 
+    private MemcachedClientIF getClient() {
+        return framework.getInstance(Key.get(MemcachedClientIF.class, Current.class));
+    }
+
     @Test
     public void putItem() {
         final CacheRegion<String, Object> cacheRegion = getCacheRegion("test");
@@ -83,6 +157,12 @@ public class MemcacheCacheRegionTest {
         Assert.assertTrue(cacheRegion.containsKey(5));
     }
 
+    @Test(expected = UnsupportedOperationException.class)
+    public void removeIfUntracked() {
+        final CacheRegion<String, String> cacheRegion = getCacheRegion("untracked");
+        cacheRegion.removeIf(Predicates.<String>alwaysTrue());
+    }
+
     @Test
     public void putItemWithBigKey() {
         final CacheRegion<Serializable, TestObject> cacheRegion = getCacheRegion("test");
@@ -124,4 +204,349 @@ public class MemcacheCacheRegionTest {
         cacheRegion.put(bigKey, value);
         Assert.assertEquals(value, cacheRegion.get(bigKey));
     }
+
+    @Test
+    public void negativeCachingIsInvalidatedByPut() {
+        final MemcacheCacheRepository cacheRepository = framework.getInstance(MemcacheCacheRepository.class);
+        cacheRepository.setNegativeTtlSeconds(10);
+        final CacheRegion<String, String> cacheRegion = cacheRepository.getRegion("negative");
+        Assert.assertNull(cacheRegion.get("missing"));
+        Assert.assertNull(cacheRegion.get("missing"));
+        cacheRegion.put("missing", "found");
+        Assert.assertEquals("found", cacheRegion.get("missing"));
+    }
+
+    @Test
+    public void invalidateTag() {
+        final MemcacheRegion<String, String> cacheRegion = (MemcacheRegion<String, String>)
+            this.<String, String>getCacheRegion("tagged");
+        cacheRegion.put("a", "1", CacheExpirations.ETERNAL, "group");
+        cacheRegion.put("b", "2", CacheExpirations.ETERNAL, "group", "other");
+        cacheRegion.put("c", "3", CacheExpirations.ETERNAL, "other");
+        Assert.assertEquals("1", cacheRegion.get("a"));
+        cacheRegion.invalidateTag("group");
+        Assert.assertNull(cacheRegion.get("a"));
+        Assert.assertNull(cacheRegion.get("b"));
+        Assert.assertEquals("3", cacheRegion.get("c"));
+    }
+
+    @Test
+    public void reapEvictedKeys() throws Exception {
+        final MemcacheCacheRegion<String, String> cacheRegion = (MemcacheCacheRegion<String, String>)
+            this.<String, String>getCacheRegion("reaped");
+        cacheRegion.clear();
+        for (int i = 0; i < 6; i++) {
+            cacheRegion.put("reap." + i, "value");
+        }
+        // evicted behind the back of the region
+        Assert.assertTrue(getClient().delete(KeyMarshallers.HASHED_JSON.encode("reap.1")).get());
+        Assert.assertTrue(getClient().delete(KeyMarshallers.HASHED_JSON.encode("reap.4")).get());
+
+        // sweeps reap.0 to reap.2 only
+        Assert.assertEquals(1, cacheRegion.reap(3));
+        Assert.assertEquals(5, cacheRegion.size());
+
+        // continues at reap.3
+        Assert.assertEquals(1, cacheRegion.reap(3));
+        Assert.assertEquals(4, cacheRegion.size());
+
+        // starts over, nothing left to prune
+        Assert.assertEquals(0, cacheRegion.reap(10));
+        Assert.assertEquals(4, cacheRegion.size());
+    }
+
+    @Test
+    public void reapExpiredKeys() throws Exception {
+        final MemcacheCacheRegion<String, String> cacheRegion = (MemcacheCacheRegion<String, String>)
+            this.<String, String>getCacheRegion("reapedByDeadline");
+        cacheRegion.clear();
+        cacheRegion.put("eternal", "value");
+        cacheRegion.put("expiring", "value", CacheExpirations.lifeTime(1, TimeUnit.SECONDS));
+        // still present in memcache, so only the tracked deadline can prune it
+        Assert.assertTrue(getClient().set(KeyMarshallers.HASHED_JSON.encode("expiring"), 0, "value").get());
+        Thread.sleep(1500);
+
+        Assert.assertEquals(1, cacheRegion.reap(10));
+        Assert.assertEquals(1, cacheRegion.size());
+        Assert.assertTrue(cacheRegion.keySet().contains("eternal"));
+    }
+
+    @Test
+    public void exactSize() {
+        final MemcacheRegion<String, String> cacheRegion = (MemcacheRegion<String, String>)
+            this.<String, String>getCacheRegion("sized");
+        cacheRegion.clear();
+        cacheRegion.put("first", "1");
+        cacheRegion.put("second", "2");
+        Assert.assertEquals(2, cacheRegion.exactSize());
+        Assert.assertEquals(2, cacheRegion.size());
+    }
+
+    @Test
+    public void putChunkedItem() {
+        final MemcacheCacheRepository cacheRepository = framework.getInstance(MemcacheCacheRepository.class);
+        cacheRepository.setChunkSize(1024);
+        final CacheRegion<String, TestObject> cacheRegion = cacheRepository.getRegion("chunked");
+        final StringBuilder forename = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            forename.append("John").append(i);
+        }
+        final TestObject value = new TestObject(forename.toString(), "Mal", 12);
+        cacheRegion.put("large", value);
+        Assert.assertEquals(value, cacheRegion.get("large"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void chunkSizeAboveItemLimit() {
+        new MemcacheRegionConfig().chunkSize(CachedData.MAX_SIZE);
+    }
+
+    @Test
+    public void regionConfig() {
+        final CacheRegion<String, TestObject> cacheRegion = getCacheRegion("configured");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        cacheRegion.put("configured", value);
+        Assert.assertEquals(value, cacheRegion.get("configured"));
+        Assert.assertEquals(1, cacheRegion.size());
+    }
+
+    @Test
+    public void untrackedRegion() {
+        final CacheRegion<String, String> cacheRegion = getCacheRegion("untracked");
+        Assert.assertNull(cacheRegion.put("key", "value"));
+        Assert.assertNull(cacheRegion.put("key", "value"));
+        Assert.assertTrue(cacheRegion.containsKey("key"));
+        // the replaced value is never read
+        Assert.assertNull(cacheRegion.remove("key"));
+        Assert.assertFalse(cacheRegion.containsKey("key"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void untrackedRegionSize() {
+        getCacheRegion("untracked").size();
+    }
+
+    @Test
+    public void counters() throws Exception {
+        final MemcacheRegion<String, String> cacheRegion = (MemcacheRegion<String, String>)
+            this.<String, String>getCacheRegion("counters");
+        Assert.assertEquals(-1L, cacheRegion.getCounter("hits", -1L));
+        Assert.assertEquals(10L, cacheRegion.increment("hits", 1, 10L, CacheExpirations.ETERNAL));
+        Assert.assertEquals(12L, cacheRegion.increment("hits", 2, 10L, CacheExpirations.ETERNAL));
+        Assert.assertEquals(11L, cacheRegion.decrement("hits", 1, 10L, CacheExpirations.ETERNAL));
+        Assert.assertEquals(16L, cacheRegion.incrementAsync("hits", 5, 0L, CacheExpirations.ETERNAL).get().longValue());
+        Assert.assertEquals(3L, cacheRegion.incrementAsync("misses", 1, 3L, CacheExpirations.ETERNAL).get().longValue());
+
+        final Map<String, Integer> deltas = new HashMap<String, Integer>();
+        deltas.put("hits", 4);
+        deltas.put("misses", -1);
+        final Map<String, Long> values = cacheRegion.incrementAll(deltas, 0L, CacheExpirations.ETERNAL);
+        Assert.assertEquals(Long.valueOf(20L), values.get("hits"));
+        Assert.assertEquals(Long.valueOf(2L), values.get("misses"));
+        Assert.assertEquals(20L, cacheRegion.getCounter("hits", -1L));
+        Assert.assertFalse(cacheRegion.containsKey("hits"));
+    }
+
+    @Test
+    public void exportAndImport() throws IOException {
+        final MemcacheRegion<String, TestObject> cacheRegion = (MemcacheRegion<String, TestObject>)
+            this.<String, TestObject>getCacheRegion("snapshot");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        cacheRegion.put("first", value);
+        cacheRegion.put("second", value);
+        final ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        Assert.assertEquals(2, cacheRegion.exportTo(snapshot));
+
+        cacheRegion.clear();
+        Assert.assertNull(cacheRegion.get("first"));
+        final int imported = cacheRegion.importFrom(new ByteArrayInputStream(snapshot.toByteArray()), 1);
+        Assert.assertEquals(2, imported);
+        Assert.assertEquals(value, cacheRegion.get("first"));
+        Assert.assertEquals(value, cacheRegion.get("second"));
+        Assert.assertEquals(2, cacheRegion.size());
+    }
+
+    @Test
+    public void writeBehind() {
+        final MemcacheCacheRegion<String, String> cacheRegion =
+            (MemcacheCacheRegion<String, String>) this.<String, String>getCacheRegion("writeBehind");
+        for (int i = 0; i < 1000; i++) {
+            cacheRegion.put("key" + (i % 10), "value" + i);
+        }
+        Assert.assertEquals("value999", cacheRegion.get("key9"));
+        cacheRegion.remove("key0");
+        Assert.assertNull(cacheRegion.get("key0"));
+        cacheRegion.flush();
+        Assert.assertEquals("value999", cacheRegion.get("key9"));
+        // nothing queued, put does not read the replaced value from memcache
+        Assert.assertNull(cacheRegion.put("key9", "value999"));
+        cacheRegion.flush();
+        Assert.assertEquals(9, cacheRegion.exactSize());
+    }
+
+    @Test
+    public void getAsync() throws Exception {
+        final MemcacheRegion<String, TestObject> cacheRegion = (MemcacheRegion<String, TestObject>)
+            this.<String, TestObject>getCacheRegion("test");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        cacheRegion.put("present", value);
+        final Future<TestObject> present = cacheRegion.getAsync("present");
+        final Future<TestObject> missing = cacheRegion.getAsync("missing");
+        Assert.assertEquals(value, present.get(1, TimeUnit.SECONDS));
+        Assert.assertNull(missing.get(1, TimeUnit.SECONDS));
+        Assert.assertTrue(present.isDone());
+    }
+
+    @Test
+    public void scan() {
+        final MemcacheRegion<String, TestObject> cacheRegion = (MemcacheRegion<String, TestObject>)
+            this.<String, TestObject>getCacheRegion("scan");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        for (int i = 0; i < 250; i++) {
+            cacheRegion.put("key" + i, value);
+        }
+        cacheRegion.remove("key0");
+
+        final List<Map.Entry<String, TestObject>> received = Lists.newArrayList();
+        final Subscription[] subscription = new Subscription[1];
+        final boolean[] completed = new boolean[1];
+        final Executor sameThread = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+
+        };
+        cacheRegion.scan(100, sameThread).subscribe(new Subscriber<Map.Entry<String, TestObject>>() {
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription[0] = s;
+                s.request(10);
+            }
+
+            @Override
+            public void onNext(Map.Entry<String, TestObject> entry) {
+                received.add(entry);
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                throw new AssertionError(e);
+            }
+
+            @Override
+            public void onComplete() {
+                completed[0] = true;
+            }
+
+        });
+
+        Assert.assertEquals(10, received.size());
+        Assert.assertFalse(completed[0]);
+        subscription[0].request(Long.MAX_VALUE);
+        Assert.assertTrue(completed[0]);
+        Assert.assertEquals(249, received.size());
+        Assert.assertEquals(value, received.get(0).getValue());
+    }
+
+    private TestObject largeValue() {
+        final StringBuilder forename = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            forename.append("John").append(i);
+        }
+        return new TestObject(forename.toString(), "Mal", 12);
+    }
+
+    @Test
+    public void rejectOversizedValues() {
+        final MemcacheCacheRegion<String, TestObject> rejecting =
+            (MemcacheCacheRegion<String, TestObject>) this.<String, TestObject>getCacheRegion("rejecting");
+        rejecting.clear();
+        final TestObject small = new TestObject("John", "Mal", 12);
+
+        rejecting.put("key", small);
+        rejecting.put("key", largeValue());
+        Assert.assertNull(rejecting.get("key"));
+        Assert.assertEquals(1, rejecting.getRejectedValues());
+        Assert.assertEquals(1, rejecting.getValueCount());
+
+        rejecting.put("other", largeValue());
+        Assert.assertEquals(0, rejecting.size());
+        Assert.assertFalse(rejecting.keySet().contains("key"));
+    }
+
+    @Test
+    public void compressOversizedValues() {
+        final MemcacheCacheRegion<String, TestObject> compressing =
+            (MemcacheCacheRegion<String, TestObject>) this.<String, TestObject>getCacheRegion("compressing");
+        compressing.clear();
+        final StringBuilder repetitive = new StringBuilder();
+        final StringBuilder random = new StringBuilder();
+        final Random generator = new Random(42);
+        for (int i = 0; i < 4000; i++) {
+            repetitive.append('a');
+            random.append((char) ('a' + generator.nextInt(26)));
+        }
+        final TestObject compressible = new TestObject(repetitive.toString(), "Mal", 12);
+        final TestObject incompressible = new TestObject(random.toString(), "Mal", 12);
+
+        compressing.put("compressible", compressible);
+        Assert.assertEquals(compressible, compressing.get("compressible"));
+        Assert.assertEquals(0, compressing.getRejectedValues());
+
+        compressing.put("incompressible", incompressible);
+        Assert.assertNull(compressing.get("incompressible"));
+        Assert.assertEquals(1, compressing.getRejectedValues());
+        Assert.assertEquals(1, compressing.size());
+    }
+
+    @Test
+    public void keepOversizedValuesLocally() {
+        final CacheRegion<String, TestObject> local = getCacheRegion("local");
+        final TestObject large = largeValue();
+        local.put("key", large);
+        Assert.assertEquals(large, local.get("key"));
+        local.remove("key");
+        Assert.assertNull(local.get("key"));
+    }
+
+    @Test
+    public void hashedBase64Keys() {
+        final CacheRegion<String, String> cacheRegion = getCacheRegion("base64");
+        cacheRegion.clear();
+        final StringBuilder longKey = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            longKey.append('x');
+        }
+        cacheRegion.put("short", "1");
+        cacheRegion.put(longKey.toString(), "2");
+
+        Assert.assertEquals(Sets.newHashSet("short", longKey.toString()), Sets.newHashSet(cacheRegion.keySet()));
+        Assert.assertTrue(cacheRegion.removeIf(Predicates.equalTo(longKey.toString())));
+        Assert.assertEquals(Sets.newHashSet("short"), Sets.newHashSet(cacheRegion.keySet()));
+        Assert.assertEquals(1, cacheRegion.size());
+    }
+
+    @Test
+    public void murmurKeys() {
+        final CacheRegion<String, TestObject> cacheRegion = getCacheRegion("murmur");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        cacheRegion.put("short", value);
+        cacheRegion.put("with spaces", value);
+        Assert.assertEquals(value, cacheRegion.get("short"));
+        Assert.assertEquals(value, cacheRegion.get("with spaces"));
+    }
+
+    @Test
+    public void keyCollision() {
+        final CacheRegion<String, TestObject> cacheRegion = getCacheRegion("colliding");
+        final TestObject value = new TestObject("John", "Mal", 12);
+        cacheRegion.put("first", value);
+        Assert.assertEquals(value, cacheRegion.get("first"));
+        Assert.assertNull(cacheRegion.get("second"));
+        Assert.assertFalse(cacheRegion.containsKey("second"));
+    }
+
 }
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.name.Names;
+import com.google.inject.util.Modules;
+import de.cosmocode.junit.LoggingRunner;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link MemcacheCacheRegion} with decoding off the reading thread enabled.
+ *
+ * @since 1.0
+ */
+@RunWith(LoggingRunner.class)
+public class MemcacheDecodeTest {
+
+    private static final int ASYNC_DECODE_THRESHOLD = 1024;
+
+    private static final int PARALLEL_DECODE_THRESHOLD = 50;
+
+    /**
+     * Lowers the decode thresholds below the sizes used by the tests.
+     */
+    private static final class DecodeModule extends AbstractModule {
+
+        @Override
+        protected void configure() {
+            bindConstant().annotatedWith(Names.named(MemcacheCacheConfig.ASYNC_DECODE_THRESHOLD)).
+                to(ASYNC_DECODE_THRESHOLD);
+            // splits the pages of scans and bulk reads across the decoder pool
+            bindConstant().annotatedWith(Names.named(MemcacheCacheConfig.PARALLEL_DECODE_THRESHOLD)).
+                to(PARALLEL_DECODE_THRESHOLD);
+            bindConstant().annotatedWith(Names.named(MemcacheCacheConfig.PARALLEL_DECODE_PARALLELISM)).to(2);
+        }
+
+    }
+
+    private final Framework framework = Palava.newFramework(
+        Modules.combine(new MemcacheTestModule(), new DecodeModule()), new Properties());
+
+    @Before
+    public void start() throws LifecycleException {
+        framework.start();
+    }
+
+    @After
+    public void stop() throws LifecycleException {
+        framework.stop();
+    }
+
+    private MemcacheRegion<String, String> getCacheRegion(String name) {
+        return (MemcacheRegion<String, String>) framework.getInstance(CacheRepository.class).
+            <String, String>getRegion(name);
+    }
+
+    private String valueOf(int length) {
+        final StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + i % 26));
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void getAsyncOfLargeValues() throws Exception {
+        final MemcacheRegion<String, String> cacheRegion = getCacheRegion("decoded");
+        final String small = valueOf(10);
+        final String large = valueOf(4 * ASYNC_DECODE_THRESHOLD);
+        cacheRegion.put("small", small);
+        cacheRegion.put("large", large);
+
+        final Future<String> smallFuture = cacheRegion.getAsync("small");
+        final Future<String> largeFuture = cacheRegion.getAsync("large");
+        Assert.assertEquals(large, largeFuture.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(small, smallFuture.get(1, TimeUnit.SECONDS));
+        Assert.assertEquals(large, cacheRegion.get("large"));
+    }
+
+    @Test
+    public void entriesDecodedInParallel() {
+        final MemcacheRegion<String, String> cacheRegion = getCacheRegion("decodedInParallel");
+        cacheRegion.clear();
+        final Map<String, String> expected = Maps.newHashMap();
+        for (int i = 0; i < 3 * PARALLEL_DECODE_THRESHOLD; i++) {
+            expected.put("key" + i, valueOf(i));
+        }
+        cacheRegion.putAll(expected);
+
+        final Map<String, String> actual = Maps.newHashMap();
+        for (Map.Entry<String, String> entry : cacheRegion.entrySet()) {
+            actual.put(entry.getKey(), entry.getValue());
+        }
+        Assert.assertEquals(expected, actual);
+
+        Assert.assertTrue(cacheRegion.removeIf(new Predicate<String>() {
+
+            @Override
+            public boolean apply(String key) {
+                return key.endsWith("0");
+            }
+
+        }));
+        Assert.assertEquals(expected.size() - 3 * PARALLEL_DECODE_THRESHOLD / 10, cacheRegion.size());
+    }
+
+}
@@ -0,0 +1,295 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.inject.Key;
+import com.google.inject.util.Modules;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import de.cosmocode.palava.ipc.Current;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.MemcachedClientIF;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Tests the resilience of {@link MemcacheCacheRegion} against a {@link FaultInjectingProxy}.
+ *
+ * @since 1.0
+ */
+public class MemcacheFaultInjectionTest {
+
+    private static final int PROXY_PORT = 11214;
+
+    private final FaultInjectingProxy proxy = new FaultInjectingProxy(
+        MemcacheTestModule.ADDRESS, PROXY_PORT, MemcacheTestModule.PORT);
+
+    private final Framework framework = Palava.newFramework(Modules.combine(
+        new MemcacheTestModule(PROXY_PORT),
+        new MemcacheRegionModule("untrackedWrites", new MemcacheRegionConfig().keyTracking(KeyTracking.NONE))
+    ), new Properties());
+
+    @Before
+    public void start() throws IOException, LifecycleException {
+        proxy.start();
+        framework.start();
+    }
+
+    @After
+    public void stop() throws LifecycleException {
+        framework.stop();
+        proxy.stop();
+    }
+
+    private MemcacheCacheRepository repository() {
+        return framework.getInstance(MemcacheCacheRepository.class);
+    }
+
+    private <V> V await(CacheRegion<String, V> region, String key, long millis) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + millis;
+        V value = region.get(key);
+        while (value == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            value = region.get(key);
+        }
+        return value;
+    }
+
+    @Test
+    public void latencyOpensCircuit() throws InterruptedException {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(100);
+        repository.setCircuitOpenMillis(200);
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository.<String, String>getRegion("slow");
+        region.put("key", "value");
+        Assert.assertEquals("value", await(region, "key", 5000));
+
+        proxy.setLatencyMillis(500);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(region.get("key"));
+        }
+        Assert.assertEquals("OPEN", region.getCircuitState());
+
+        final long start = System.currentTimeMillis();
+        Assert.assertNull(region.get("key"));
+        Assert.assertTrue("open circuit must fail fast", System.currentTimeMillis() - start < 50);
+
+        proxy.setLatencyMillis(0);
+        Assert.assertEquals("value", await(region, "key", 10000));
+        Assert.assertEquals("CLOSED", region.getCircuitState());
+    }
+
+    @Test
+    public void slowAsyncGetTimesOut() throws InterruptedException, ExecutionException {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(100);
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository.<String, String>getRegion("slowAsync");
+        region.put("key", "value");
+        Assert.assertEquals("value", await(region, "key", 5000));
+
+        proxy.setLatencyMillis(500);
+        for (int i = 0; i < 3; i++) {
+            final long start = System.currentTimeMillis();
+            Assert.assertNull(region.getAsync("key").get());
+            Assert.assertTrue("get must time out", System.currentTimeMillis() - start < 400);
+        }
+        Assert.assertEquals("OPEN", region.getCircuitState());
+        Assert.assertNull(region.getAsync("key").get());
+    }
+
+    @Test
+    public void openCircuitSkipsWrites() throws InterruptedException {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(100);
+        repository.setCircuitOpenMillis(60000);
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository.<String, String>getRegion("open");
+        region.put("key", "value");
+        Assert.assertEquals("value", await(region, "key", 5000));
+        final MemcachedClientIF client = framework.getInstance(Key.get(MemcachedClientIF.class, Current.class));
+        final String encodedKey = KeyMarshallers.HASHED_JSON.encode("key");
+        final CachedData stored = client.get(encodedKey, CachedDataTranscoder.INSTANCE);
+
+        proxy.setLatencyMillis(500);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertNull(region.get("key"));
+        }
+        Assert.assertEquals("OPEN", region.getCircuitState());
+        proxy.setLatencyMillis(0);
+
+        final long start = System.currentTimeMillis();
+        Assert.assertNull(region.put("key", "other"));
+        Assert.assertNull(region.remove("key"));
+        Assert.assertTrue("open circuit must fail fast", System.currentTimeMillis() - start < 50);
+
+        // neither the put nor the remove reached memcache
+        Assert.assertArrayEquals(stored.getData(), client.get(encodedKey, CachedDataTranscoder.INSTANCE).getData());
+    }
+
+    @Test
+    public void writesFeedCircuit() throws InterruptedException {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(100);
+        repository.setCircuitOpenMillis(200);
+        // never reads before a write
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository.<String, String>getRegion("untrackedWrites");
+
+        proxy.setLatencyMillis(500);
+        for (int i = 0; i < 3; i++) {
+            region.put("slow" + i, "value");
+        }
+        Thread.sleep(150);
+        // records the timed out writes
+        region.put("skipped", "value");
+        Assert.assertEquals("OPEN", region.getCircuitState());
+        proxy.setLatencyMillis(0);
+
+        Thread.sleep(300);
+        // the probe of the half open circuit
+        region.put("key", "value");
+        Thread.sleep(100);
+        Assert.assertEquals("value", region.get("key"));
+        Assert.assertEquals("CLOSED", region.getCircuitState());
+    }
+
+    @Test
+    public void slowScanFails() {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(100);
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository.<String, String>getRegion("slowScan");
+        for (int i = 0; i < 10; i++) {
+            region.put("key" + i, "value" + i);
+        }
+
+        proxy.setLatencyMillis(500);
+        final Throwable[] failure = new Throwable[1];
+        final Executor sameThread = new Executor() {
+
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+
+        };
+        region.scan(100, sameThread).subscribe(new Subscriber<Map.Entry<String, String>>() {
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                s.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(Map.Entry<String, String> entry) {
+                Assert.fail("slow page must not be emitted");
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                failure[0] = e;
+            }
+
+            @Override
+            public void onComplete() {
+                Assert.fail("slow scan must not complete");
+            }
+
+        });
+        Assert.assertTrue(String.valueOf(failure[0]), failure[0] instanceof MemcacheUnavailableException);
+    }
+
+    @Test
+    public void openCircuitFailsCounters() throws InterruptedException {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(100);
+        repository.setCircuitOpenMillis(60000);
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository.<String, String>getRegion("openCounters");
+        Assert.assertEquals(1L, region.increment("hits", 1, 1L, CacheExpirations.ETERNAL));
+
+        proxy.setLatencyMillis(500);
+        for (int i = 0; i < 3; i++) {
+            try {
+                region.increment("hits", 1, 1L, CacheExpirations.ETERNAL);
+                Assert.fail("slow counter must time out");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals("OPEN", region.getCircuitState());
+        proxy.setLatencyMillis(0);
+
+        final long start = System.currentTimeMillis();
+        try {
+            region.decrement("hits", 1, 1L, CacheExpirations.ETERNAL);
+            Assert.fail("open circuit must reject counters");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue("open circuit must fail fast", System.currentTimeMillis() - start < 50);
+        }
+    }
+
+    @Test
+    public void droppedConnections() throws InterruptedException {
+        final MemcacheCacheRepository repository = repository();
+        repository.setCircuitFailureThreshold(3);
+        repository.setCircuitTimeoutMillis(200);
+        repository.setCircuitOpenMillis(100);
+        final CacheRegion<String, String> region = repository.getRegion("dropped");
+        region.put("key", "value");
+        Assert.assertEquals("value", await(region, "key", 5000));
+
+        proxy.dropConnections();
+        // reads during the reconnect are misses, never failures
+        Assert.assertEquals("value", await(region, "key", 10000));
+    }
+
+    @Test
+    public void partialMultiGet() {
+        final MemcacheCacheRegion<String, String> region =
+            (MemcacheCacheRegion<String, String>) repository().<String, String>getRegion("partial");
+        for (int i = 0; i < 20; i++) {
+            region.put("key" + i, "value" + i);
+        }
+        Assert.assertEquals(20, region.exactSize());
+
+        proxy.setDropEveryNthValue(2);
+        final int exactSize = region.exactSize();
+        Assert.assertTrue(exactSize < 20);
+        Assert.assertEquals(exactSize, region.size());
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.cache;
+
+import com.google.inject.util.Modules;
+import de.cosmocode.junit.LoggingRunner;
+import de.cosmocode.palava.cache.keysets.MemoryKeyIndexModule;
+import de.cosmocode.palava.core.Framework;
+import de.cosmocode.palava.core.Palava;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Properties;
+
+/**
+ * Tests {@link MemcacheCacheRegion} with the original key index enabled.
+ *
+ * @since 1.0
+ */
+@RunWith(LoggingRunner.class)
+public class MemcacheKeyIndexTest {
+
+    private final Framework framework = Palava.newFramework(
+        Modules.combine(new MemcacheTestModule(), new MemoryKeyIndexModule()), new Properties());
+
+    @Before
+    public void start() throws LifecycleException {
+        framework.start();
+    }
+
+    @After
+    public void stop() throws LifecycleException {
+        framework.stop();
+    }
+
+    private CacheRegion<String, String> getCacheRegion(String name) {
+        return framework.getInstance(CacheRepository.class).getRegion(name);
+    }
+
+    @Test
+    public void keySetOfHashedKeys() {
+        final CacheRegion<String, String> cacheRegion = getCacheRegion("indexed");
+        cacheRegion.put("first", "1");
+        cacheRegion.put("second", "2");
+        Assert.assertEquals(2, cacheRegion.keySet().size());
+        Assert.assertTrue(cacheRegion.keySet().contains("first"));
+        Assert.assertTrue(cacheRegion.keySet().contains("second"));
+        Assert.assertFalse(cacheRegion.containsKey("third"));
+    }
+
+}
@@ -33,23 +33,40 @@ import de.cosmocode.palava.scope.SingletonUnitOfWorkScopeModule;
  */
 final class MemcacheTestModule extends AbstractModule {
 
+    static final String ADDRESS = "127.0.0.1";
+
+    static final int PORT = 11213;
+
+    private final int clientPort;
+
+    MemcacheTestModule() {
+        this(PORT);
+    }
+
+    /**
+     * Creates a module whose client connects to the given port instead of the local server,
+     * e.g. to a {@link FaultInjectingProxy} in front of it.
+     *
+     * @param clientPort the port the memcache client connects to
+     */
+    MemcacheTestModule(int clientPort) {
+        this.clientPort = clientPort;
+    }
+
     @Override
     protected void configure() {
         install(new LifecycleModule());
         install(new DefaultRegistryModule());
         install(new SingletonUnitOfWorkScopeModule());
 
-        final String address = "127.0.0.1";
-        final int port = 11213;
-
         // configure local JVM memcache server
         bindConstant().annotatedWith(Names.named("local.memcache.server.verbose")).to(true);
-        bindConstant().annotatedWith(Names.named("local.memcache.server.address")).to(address);
-        bindConstant().annotatedWith(Names.named("local.memcache.server.port")).to(port);
+        bindConstant().annotatedWith(Names.named("local.memcache.server.address")).to(ADDRESS);
+        bindConstant().annotatedWith(Names.named("local.memcache.server.port")).to(PORT);
         install(new MemcacheLocalServerModule());
 
         // configure memcache client
-        bindConstant().annotatedWith(Names.named("memcache.addresses")).to(address + ":" + port);
+        bindConstant().annotatedWith(Names.named("memcache.addresses")).to(ADDRESS + ":" + clientPort);
         install(new MemcacheClientModule());
 
         install(new MemoryKeySetModule());
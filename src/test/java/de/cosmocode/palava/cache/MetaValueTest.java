@@ -0,0 +1,61 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package de.cosmocode.palava.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Date;
+
+/**
+ * Tests {@link MetaValue}.
+ *
+ * @since 1.0
+ */
+public class MetaValueTest {
+
+    private static final long NOW = 1000000000000L;
+
+    private MetaValue metaValue(long idleTime, long lifeTime, Date storedAt) {
+        final MetaValue metaValue = new MetaValue();
+        metaValue.setIdleTimeInSeconds(idleTime);
+        metaValue.setLifeTimeInSeconds(lifeTime);
+        metaValue.setStoredAt(storedAt);
+        metaValue.setLastAccessedAt(storedAt);
+        return metaValue;
+    }
+
+    @Test
+    public void remainingLifeTimeOfEternal() {
+        Assert.assertEquals(0, metaValue(0, 0, null).remainingLifeTimeInSeconds(NOW));
+        Assert.assertEquals(0, metaValue(60, 0, new Date(NOW - 120000)).remainingLifeTimeInSeconds(NOW));
+    }
+
+    @Test
+    public void remainingLifeTimeOfIdleBased() {
+        Assert.assertEquals(3500, metaValue(60, 3600, new Date(NOW - 100000)).remainingLifeTimeInSeconds(NOW));
+        Assert.assertEquals(-1, metaValue(60, 3600, new Date(NOW - 3600000)).remainingLifeTimeInSeconds(NOW));
+    }
+
+    @Test
+    public void remainingLifeTimeUnknown() {
+        // the store time of entries without idle time is not persisted
+        Assert.assertEquals(-1, metaValue(0, 3600, null).remainingLifeTimeInSeconds(NOW));
+    }
+
+}
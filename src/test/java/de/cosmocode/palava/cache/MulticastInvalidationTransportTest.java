@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.Lists;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests {@link MulticastInvalidationTransport} with two transports joining the same group.
+ *
+ * @since 1.0
+ */
+public class MulticastInvalidationTransportTest {
+
+    private static final int PORT = 45678;
+
+    private MulticastInvalidationTransport sender;
+    private MulticastInvalidationTransport receiver;
+
+    @Before
+    public void join() throws IOException {
+        final InetAddress group = InetAddress.getByName("230.0.0.1");
+        sender = new MulticastInvalidationTransport(group, PORT);
+        receiver = new MulticastInvalidationTransport(group, PORT);
+    }
+
+    @After
+    public void leave() {
+        sender.close();
+        receiver.close();
+    }
+
+    private List<InvalidationEvent> receive(int count) throws InterruptedException {
+        final List<InvalidationEvent> events = Lists.newArrayList();
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (events.size() < count && System.currentTimeMillis() < deadline) {
+            events.addAll(receiver.poll());
+            Thread.sleep(10);
+        }
+        return events;
+    }
+
+    @Test
+    public void publishAndPoll() throws IOException, InterruptedException {
+        sender.publish(Arrays.asList(
+            new InvalidationEvent("sender", "region", "a", 1),
+            new InvalidationEvent("sender", "region", null, 2)
+        ));
+
+        final List<InvalidationEvent> events = receive(2);
+        Assert.assertEquals(2, events.size());
+        Assert.assertEquals("sender", events.get(0).getOrigin());
+        Assert.assertEquals("region", events.get(0).getRegion());
+        Assert.assertEquals("a", events.get(0).getEncodedKey());
+        Assert.assertEquals(1, events.get(0).getGeneration());
+        Assert.assertNull(events.get(1).getEncodedKey());
+        Assert.assertEquals(2, events.get(1).getGeneration());
+        Assert.assertTrue(receiver.poll().isEmpty());
+    }
+
+    @Test
+    public void splitsLargeBatches() throws IOException, InterruptedException {
+        final List<InvalidationEvent> published = Lists.newArrayList();
+        for (int i = 0; i < 200; i++) {
+            published.add(new InvalidationEvent("sender", "region", "some.rather.long.key." + i, i + 1));
+        }
+        sender.publish(published);
+
+        final List<InvalidationEvent> events = receive(published.size());
+        Assert.assertEquals(published.size(), events.size());
+        for (int i = 0; i < events.size(); i++) {
+            Assert.assertEquals(i + 1, events.get(i).getGeneration());
+        }
+    }
+
+}
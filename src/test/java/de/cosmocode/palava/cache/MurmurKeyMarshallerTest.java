@@ -0,0 +1,72 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link MurmurKeyMarshaller} and {@link Murmur3}.
+ *
+ * @since 1.0
+ */
+public class MurmurKeyMarshallerTest {
+
+    private final MurmurKeyMarshaller marshaller = new MurmurKeyMarshaller("region");
+
+    @Test
+    public void murmur3() throws Exception {
+        final byte[] data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8");
+        Assert.assertEquals("e34bbc7bbc071b6c7a433ca9c49a9347", Murmur3.hash128Hex(data, 0));
+    }
+
+    @Test
+    public void shortKeysArePlain() {
+        Assert.assertEquals("region:s:user.42", marshaller.encode("user.42"));
+        Assert.assertEquals("region:j:42", marshaller.encode(42));
+    }
+
+    @Test
+    public void unsafeKeysAreHashed() {
+        final String encoded = marshaller.encode("with space");
+        Assert.assertTrue(encoded, encoded.startsWith("region:h:"));
+        Assert.assertEquals("region:h:".length() + 32, encoded.length());
+        Assert.assertEquals(encoded, marshaller.encode("with space"));
+    }
+
+    @Test
+    public void longKeysAreHashed() {
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            key.append('x');
+        }
+        Assert.assertTrue(marshaller.encode(key.toString()).length() <= 250);
+    }
+
+    @Test
+    public void typesDontCollide() {
+        Assert.assertFalse(marshaller.encode("42").equals(marshaller.encode(42)));
+    }
+
+    @Test
+    public void namespacesDontCollide() {
+        final MurmurKeyMarshaller other = new MurmurKeyMarshaller("x");
+        Assert.assertFalse(other.encode("a b").equals(marshaller.encode("a b")));
+        Assert.assertFalse(other.encode("ab").equals(marshaller.encode("ab")));
+    }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import com.google.common.collect.Maps;
+import net.spy.memcached.CachedData;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests {@link ParallelDecoder}.
+ *
+ * @since 1.0
+ */
+public class ParallelDecoderTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    private final MarshallerTranscoder transcoder = new MarshallerTranscoder(JacksonMarshaller.INSTANCE);
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private Map<String, CachedData> encoded(int size) {
+        final Map<String, CachedData> values = Maps.newLinkedHashMap();
+        for (int i = 0; i < size; i++) {
+            final MetaValue metaValue = new MetaValue();
+            metaValue.setKey("key" + i);
+            metaValue.setValue(new TestObject("John", "Mal", i));
+            values.put("key" + i, transcoder.encode(metaValue));
+        }
+        return values;
+    }
+
+    @Test
+    public void parallel() {
+        final Map<String, CachedData> values = encoded(101);
+        final Map<String, Object> decoded = new ParallelDecoder(transcoder, executor, 10, 4).decodeAll(values);
+        Assert.assertEquals(101, decoded.size());
+        for (int i = 0; i < 101; i++) {
+            final MetaValue metaValue = (MetaValue) decoded.get("key" + i);
+            Assert.assertEquals(new TestObject("John", "Mal", i), metaValue.getValue());
+        }
+    }
+
+    @Test
+    public void belowThreshold() {
+        final ParallelDecoder decoder = new ParallelDecoder(transcoder, executor, 10, 4);
+        executor.shutdown();
+        // a shut down executor rejects all slices, so this only passes on the calling thread
+        Assert.assertEquals(9, decoder.decodeAll(encoded(9)).size());
+    }
+
+}
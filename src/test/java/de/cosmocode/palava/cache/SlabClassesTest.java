@@ -0,0 +1,62 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests {@link SlabClasses} and {@link SlabStats}.
+ *
+ * @since 1.0
+ */
+public class SlabClassesTest {
+
+    private final SlabClasses defaults = new SlabClasses(
+        SlabClasses.DEFAULT_MIN_SPACE, SlabClasses.DEFAULT_GROWTH_FACTOR, SlabClasses.DEFAULT_ITEM_SIZE_MAX);
+
+    @Test
+    public void defaultLayout() {
+        // as printed by memcached -vv with the default options
+        Assert.assertEquals(42, defaults.getClassCount());
+        Assert.assertEquals(96, defaults.getChunkSize(0));
+        Assert.assertEquals(152, defaults.getChunkSize(2));
+        Assert.assertEquals(1184, defaults.getChunkSize(11));
+        Assert.assertEquals(771184, defaults.getChunkSize(40));
+        Assert.assertEquals(1048576, defaults.getChunkSize(41));
+    }
+
+    @Test
+    public void classOf() {
+        Assert.assertEquals(0, defaults.classOf(1));
+        Assert.assertEquals(0, defaults.classOf(96));
+        Assert.assertEquals(1, defaults.classOf(97));
+        Assert.assertEquals(-1, defaults.classOf(1048577));
+    }
+
+    @Test
+    public void wastedBytes() {
+        final SlabStats stats = new SlabStats(
+            SlabClasses.DEFAULT_MIN_SPACE, SlabClasses.DEFAULT_GROWTH_FACTOR, SlabClasses.DEFAULT_ITEM_SIZE_MAX);
+        stats.record(97);
+        stats.record(120);
+        Assert.assertEquals(23, stats.getWastedBytes());
+        Assert.assertEquals(1, stats.getUsage().length);
+        Assert.assertTrue(stats.suggestGrowthFactor() > 1.0);
+    }
+
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Tests {@link WriteBehindQueue}.
+ *
+ * @since 1.0
+ */
+public class WriteBehindQueueTest {
+
+    /**
+     * Records all writes, which complete once the latch is released, and all acknowledged keys.
+     */
+    private static final class RecordingSink implements WriteBehindQueue.Sink {
+
+        private final CountDownLatch released = new CountDownLatch(1);
+        private final List<Object> written = new CopyOnWriteArrayList<Object>();
+        private final List<String> acknowledged = new CopyOnWriteArrayList<String>();
+
+        @Override
+        public Future<Boolean> store(String encodedKey, MetaValue value, int timeout) {
+            written.add(value.getValue());
+            return complete();
+        }
+
+        @Override
+        public Future<Boolean> delete(String encodedKey) {
+            written.add(null);
+            return complete();
+        }
+
+        @Override
+        public void written(String encodedKey) {
+            acknowledged.add(encodedKey);
+        }
+
+        private Future<Boolean> complete() {
+            final FutureTask<Boolean> future = new FutureTask<Boolean>(new Callable<Boolean>() {
+
+                @Override
+                public Boolean call() throws InterruptedException {
+                    released.await();
+                    return Boolean.TRUE;
+                }
+
+            });
+            future.run();
+            return future;
+        }
+
+    }
+
+    private MetaValue metaValue(Object value) {
+        final MetaValue metaValue = new MetaValue();
+        metaValue.setKey("key");
+        metaValue.setValue(value);
+        return metaValue;
+    }
+
+    @Test
+    public void coalescesAndReadsPendingWrites() {
+        final RecordingSink sink = new RecordingSink();
+        final WriteBehindQueue queue = new WriteBehindQueue(sink, "test", 10, 10);
+        for (int i = 0; i < 100; i++) {
+            queue.put("key", metaValue(i), 0);
+        }
+        Assert.assertEquals(99, queue.get("key").getValue().getValue());
+
+        sink.released.countDown();
+        queue.close();
+        Assert.assertTrue(sink.written.size() < 100);
+        Assert.assertEquals(99, sink.written.get(sink.written.size() - 1));
+        Assert.assertNull(queue.get("key"));
+    }
+
+    @Test
+    public void pendingRemoval() {
+        final RecordingSink sink = new RecordingSink();
+        sink.released.countDown();
+        final WriteBehindQueue queue = new WriteBehindQueue(sink, "test", 10, 10);
+        queue.put("key", metaValue("value"), 0);
+        queue.remove("key");
+        final WriteBehindQueue.Pending pending = queue.get("key");
+        Assert.assertTrue(pending == null || pending.getValue() == null);
+        queue.flush();
+        Assert.assertNull(sink.written.get(sink.written.size() - 1));
+        queue.close();
+    }
+
+    @Test
+    public void acknowledgesCompletedWrites() {
+        final RecordingSink sink = new RecordingSink();
+        final WriteBehindQueue queue = new WriteBehindQueue(sink, "test", 10, 10);
+        queue.put("a", metaValue("a"), 0);
+        queue.remove("b");
+        Assert.assertTrue(sink.acknowledged.isEmpty());
+
+        sink.released.countDown();
+        queue.flush();
+        Assert.assertEquals(Arrays.asList("a", "b"), sink.acknowledged);
+        queue.close();
+    }
+
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2010 CosmoCode GmbH
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.cosmocode.palava.cache.keysets;
+
+import com.google.common.collect.Sets;
+import de.cosmocode.palava.core.lifecycle.LifecycleException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Tests {@link ShardedKeySet}.
+ *
+ * @since 1.0
+ */
+public class ShardedKeySetTest {
+
+    private final String name = "sharded-" + UUID.randomUUID();
+
+    @Test
+    public void set() {
+        final ShardedKeySet keys = new ShardedKeySet(name, 4);
+        final Set<String> expected = Sets.newHashSet();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(keys.add("key" + i));
+            expected.add("key" + i);
+        }
+        Assert.assertFalse(keys.add("key1"));
+        Assert.assertEquals(1000, keys.size());
+        Assert.assertEquals(expected, Sets.newHashSet(keys));
+        Assert.assertTrue(keys.remove("key1"));
+        Assert.assertFalse(keys.contains("key1"));
+        Assert.assertTrue(keys.contains("key2"));
+        keys.clear();
+        Assert.assertTrue(keys.isEmpty());
+    }
+
+    @Test
+    public void persistence() throws LifecycleException {
+        final ShardedKeySet keys = new ShardedKeySet(name, 4);
+        keys.initialize();
+        for (int i = 0; i < 1000; i++) {
+            keys.add("key" + i);
+        }
+        keys.dispose();
+
+        // a different shard count redistributes the keys and drops the former files
+        final ShardedKeySet reloaded = new ShardedKeySet(name, 3);
+        reloaded.initialize();
+        Assert.assertEquals(Sets.newHashSet(keys), Sets.newHashSet(reloaded));
+        reloaded.dispose();
+        final File directory = MemoryKeySet.getSerializationDirectory();
+        Assert.assertFalse(new File(directory, name + ".shard-3.ser").exists());
+
+        reloaded.clear();
+        reloaded.dispose();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(new File(directory, name + ".shard-" + i + ".ser").delete());
+        }
+    }
+
+    @Test
+    public void similarNames() throws LifecycleException {
+        final ShardedKeySet keys = new ShardedKeySet(name, 2);
+        final ShardedKeySet similar = new ShardedKeySet(name + ".0", 2);
+        keys.initialize();
+        similar.initialize();
+        keys.add("key");
+        similar.add("similar");
+        keys.dispose();
+        similar.dispose();
+
+        final ShardedKeySet reloaded = new ShardedKeySet(name, 2);
+        final ShardedKeySet reloadedSimilar = new ShardedKeySet(name + ".0", 2);
+        reloaded.initialize();
+        reloadedSimilar.initialize();
+        Assert.assertEquals(Sets.newHashSet("key"), Sets.newHashSet(reloaded));
+        Assert.assertEquals(Sets.newHashSet("similar"), Sets.newHashSet(reloadedSimilar));
+
+        reloaded.clear();
+        reloadedSimilar.clear();
+        reloaded.dispose();
+        reloadedSimilar.dispose();
+        final File directory = MemoryKeySet.getSerializationDirectory();
+        for (int i = 0; i < 2; i++) {
+            Assert.assertTrue(new File(directory, name + ".shard-" + i + ".ser").delete());
+            Assert.assertTrue(new File(directory, name + ".0.shard-" + i + ".ser").delete());
+        }
+    }
+
+}